@@ -0,0 +1,271 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BenchmarkHarness. A small stand-in for JMH, which this project can't pull in without a build tool. It
+ * follows the same recipe, so numbers from different runs can be compared:
+ *
+ * - each benchmark runs in its own freshly forked JVM ("bench.forks" of them, default 1; 0 runs in this JVM),
+ *   so one benchmark's JIT profile, garbage and RMI threads can't skew the next one;
+ * - "bench.warmups" timed iterations (default 3) are thrown away before "bench.iterations" (default 5) are
+ *   measured, each "bench.seconds" long (default 1);
+ * - "bench.threads" threads (default 1) call the operation in a loop, and results go to consume() so the JIT
+ *   can't drop the work;
+ * - each benchmark reports its throughput as mean +- standard deviation over the measured iterations, and for
+ *   benchmarks set up with timeEachCall also the latency percentiles of every call.
+ *
+ * Benchmarks are registered with add in a main method, which then calls run(args). Arguments are substrings
+ * of benchmark names to run; with none, all of them run. The servers' request log is turned off unless
+ * "log.level" is set, and System.out is discarded while benchmarks run.
+ */
+public class BenchmarkHarness {
+
+    /**
+     * One call of the code being measured
+     */
+    public interface Operation {
+        /**
+         * @param thread which benchmark thread is calling, from 0
+         * @param call how many calls this thread has made before this one
+         * @throws Exception fails the benchmark
+         */
+        void run(int thread, long call) throws Exception;
+    }
+
+    /**
+     * Builds a benchmark's state, e.g. servers and clients, in the JVM that runs it
+     */
+    public interface Setup {
+        /**
+         * @return the operation to measure
+         * @throws Exception if the state can't be built
+         */
+        Operation create() throws Exception;
+    }
+
+    private static class Case {
+        final String name;
+        final boolean timeEachCall;
+        final Setup setup;
+
+        Case(String name, boolean timeEachCall, Setup setup) {
+            this.name = name;
+            this.timeEachCall = timeEachCall;
+            this.setup = setup;
+        }
+    }
+
+    private static volatile long sink;
+    private static final Object NOTHING = new Object();
+
+    private final Class<?> suite;
+    private final List<Case> cases = new ArrayList<>();
+    private final int forks = Integer.getInteger("bench.forks", 1);
+    private final int warmups = Integer.getInteger("bench.warmups", 3);
+    private final int iterations = Integer.getInteger("bench.iterations", 5);
+    private final double seconds = Double.parseDouble(System.getProperty("bench.seconds", "1"));
+    private final int threads = Integer.getInteger("bench.threads", 1);
+
+    /**
+     * @param suite the class whose main method registers the benchmarks; forked JVMs run its main again
+     */
+    public BenchmarkHarness(Class<?> suite) {
+        this.suite = suite;
+    }
+
+    /**
+     * Registers a benchmark
+     * @param name name to report it under and to pick it by
+     * @param timeEachCall true to time every call for latency percentiles; leave it off for calls of a few
+     *                     nanoseconds, where reading the clock would cost more than the call
+     * @param setup builds the benchmark's state and returns the operation to measure
+     * @return this harness
+     */
+    public BenchmarkHarness add(String name, boolean timeEachCall, Setup setup) {
+        cases.add(new Case(name, timeEachCall, setup));
+        return this;
+    }
+
+    /**
+     * Keeps a result alive so the JIT can't skip computing it
+     * @param value result
+     */
+    public static void consume(long value) {
+        sink += value;
+    }
+
+    /**
+     * Keeps a result alive so the JIT can't skip computing it
+     * @param value result
+     */
+    public static void consume(boolean value) {
+        sink += value ? 1 : 0;
+    }
+
+    /**
+     * Keeps a result alive so the JIT can't skip computing it
+     * @param value result
+     */
+    public static void consume(Object value) {
+        if (value == NOTHING) {
+            sink++;
+        }
+    }
+
+    /**
+     * Runs the registered benchmarks whose names contain one of the arguments, or all of them
+     * @param args name filters
+     * @throws Exception if a benchmark fails
+     */
+    public void run(String[] args) throws Exception {
+        if (System.getProperty("log.level") == null) {
+            System.setProperty("log.level", "OFF");
+        }
+        PrintStream console = System.out;
+        boolean child = Boolean.getBoolean("bench.child");
+        if (!child) {
+            console.printf("%s: %d fork(s), %d warmup and %d measured iterations of %ss, %d thread(s)%n",
+                    suite.getName(), forks, warmups, iterations, seconds, threads);
+        }
+        for (Case benchmark : cases) {
+            if (child ? !benchmark.name.equals(args[0]) : !selected(benchmark.name, args)) {
+                continue;
+            }
+            if (forks > 0 && !child) {
+                for (int fork = 0; fork < forks; fork++) {
+                    fork(benchmark.name);
+                }
+            } else {
+                // left discarded until exit, which is also when the coordinator's shutdown hook prints
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                measure(console, benchmark);
+            }
+        }
+        if (child || forks == 0) {
+            System.exit(0); // servers and registries keep non-daemon RMI threads alive
+        }
+    }
+
+    private static boolean selected(String name, String[] filters) {
+        if (filters.length == 0) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs one benchmark in a new JVM with the same class path and settings, printing its report
+     */
+    private void fork(String name) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+            String key = property.getKey().toString();
+            if (key.startsWith("bench.") || key.startsWith("coordinator.") || key.startsWith("client.")
+                    || key.startsWith("replica.") || key.startsWith("log.")) {
+                command.add("-D" + key + "=" + property.getValue());
+            }
+        }
+        command.add("-Dbench.child=true");
+        command.add(suite.getName());
+        command.add(name);
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException(name + " failed in its fork, exit code " + process.exitValue());
+        }
+    }
+
+    private void measure(PrintStream console, Case benchmark) throws Exception {
+        Operation operation = benchmark.setup.create();
+        LatencyHistogram latency = new LatencyHistogram();
+        double[] throughput = new double[iterations];
+        for (int i = 0; i < warmups; i++) {
+            iteration(operation, benchmark.timeEachCall, latency);
+        }
+        latency.reset();
+        for (int i = 0; i < iterations; i++) {
+            throughput[i] = iteration(operation, benchmark.timeEachCall, latency);
+        }
+        double mean = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double value : throughput) {
+            mean += value / iterations;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        double variance = 0;
+        for (double value : throughput) {
+            variance += (value - mean) * (value - mean) / Math.max(1, iterations - 1);
+        }
+        console.printf("%-40s %,16.1f +- %,.1f ops/s (min %,.1f, max %,.1f)%n", suite.getName() + "." + benchmark.name,
+                mean, Math.sqrt(variance), min, max);
+        if (benchmark.timeEachCall) {
+            console.printf("%-40s latency %s%n", "", latency.summary());
+        }
+    }
+
+    /**
+     * Calls the operation from every thread for one iteration
+     * @return calls per second
+     */
+    private double iteration(Operation operation, boolean timeEachCall, LatencyHistogram latency) throws Exception {
+        LongAdder calls = new LongAdder();
+        Exception[] failure = new Exception[1];
+        CountDownLatch start = new CountDownLatch(1);
+        long duration = (long) (seconds * 1e9);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    long end = System.nanoTime() + duration;
+                    long call = 0;
+                    if (timeEachCall) {
+                        long now = System.nanoTime();
+                        while (now - end < 0) {
+                            operation.run(thread, call++);
+                            long after = System.nanoTime();
+                            latency.record(after - now);
+                            now = after;
+                        }
+                    } else {
+                        do {
+                            for (int i = 0; i < 1024; i++) { // reading the clock every call would cost more than some calls
+                                operation.run(thread, call++);
+                            }
+                        } while (System.nanoTime() - end < 0);
+                    }
+                    calls.add(call);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return calls.sum() * 1e9 / elapsed;
+    }
+}
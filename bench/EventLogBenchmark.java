@@ -0,0 +1,63 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * EventLogBenchmark. What one request log line costs the thread handling the request: the old way (a new
+ * SimpleDateFormat, string concatenation and System.out.println) against EventLog.info. Several threads log
+ * at once, as the servers' RMI threads do; the console is replaced by a stream that throws the bytes away, so
+ * only the logging itself is measured, not the terminal. The log buffer is sized to hold a whole run, so no
+ * events are dropped; the time the background writer then needs to catch up is printed separately.
+ *
+ * "java -cp out/production/code:out/test/code EventLogBenchmark [threads] [linesPerThread]"
+ */
+public class EventLogBenchmark {
+
+    /**
+     * Main method prints the time per line for both ways of logging
+     * @param args args[0] logging threads (default 4), args[1] lines per thread (default 200000)
+     * @throws Exception if interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        System.setProperty("log.bufferSize", String.valueOf(threads * lines));
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            double println = run(threads, lines, () -> {
+                String prefix = "Timestamp=" + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()) + " (From 127.0.0.1 32000 server:1";
+                System.out.println(prefix + ") Server successfully retrieved GET's (" + "Billy" + ")'s value (" + 150000 + ")");
+            });
+            double eventLog = run(threads, lines, () ->
+                    EventLog.info(1, "127.0.0.1 32000", "Server successfully retrieved GET's ({})'s value ({})", "Billy", 150000));
+            long start = System.nanoTime();
+            EventLog.flush();
+            long drain = System.nanoTime() - start;
+            if (round == 1) {
+                console.printf("println:  %,.0f ns/line%n", println);
+                console.printf("EventLog: %,.0f ns/line, then %,d ms for the writer to catch up (%d dropped)%n", eventLog, drain / 1_000_000, EventLog.droppedEvents());
+            }
+        }
+        System.exit(0);
+    }
+
+    private static double run(int threads, int lines, Runnable logLine) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < lines; i++) {
+                    logLine.run();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (System.nanoTime() - start) / (double) threads / lines;
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * GetCacheBenchmark. One client reads a skewed mix of keys (a few hot employees get most of the GETs) while
+ * another client keeps PUTting to some of them, first with the client's GET cache off and then with it on.
+ * Prints the GET latency of both runs and the cache's hit rate. The coordinator and its servers run in this
+ * JVM and are reached over RMI like RunClient does.
+ *
+ * "java -cp out/production/code:out/test/code GetCacheBenchmark [gets] [keys] [writeEveryNthGet] [cacheSize]"
+ */
+public class GetCacheBenchmark {
+
+    /**
+     * Main method runs both configurations and prints their GET latency
+     * @param args args[0] GETs to time (default 20000), args[1] distinct keys (default 1000),
+     *             args[2] the writer PUTs once per this many GETs (default 50), args[3] cache size (default 256)
+     * @throws Exception if the coordinator can't be started
+     */
+    public static void main(String[] args) throws Exception {
+        int gets = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int writeEvery = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int cacheSize = args.length > 3 ? Integer.parseInt(args[3]) : 256;
+
+        PrintStream console = System.out;
+        // the servers print a line per operation, which would cost more than the operations themselves
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        RunCoordinator.main(new String[] {"32310"});
+        RMIClient writer = new RMIClient("127.0.0.1", 32310);
+        writer.startClient();
+        Transaction fill = new Transaction();
+        for (int k = 0; k < keys; k++) {
+            fill.put("Employee" + k, 30000 + k);
+        }
+        writer.handleTransaction("127.0.0.1", "32310", fill);
+
+        RMIClient uncached = new RMIClient("127.0.0.1", 32310);
+        uncached.startClient();
+        console.println("cache off: " + run(uncached, writer, gets, keys, writeEvery).summary());
+
+        RMIClient cached = new RMIClient("127.0.0.1", 32310);
+        cached.enableCache(cacheSize, 1000);
+        cached.startClient();
+        console.println("cache on:  " + run(cached, writer, gets, keys, writeEvery).summary());
+        console.println(cached.getCacheStats());
+        System.exit(0);
+    }
+
+    private static LatencyHistogram run(RMIClient reader, RMIClient writer, int gets, int keys, int writeEvery) {
+        Random random = new Random(42);
+        LatencyHistogram latency = new LatencyHistogram();
+        for (int i = 0; i < gets; i++) {
+            if (i % writeEvery == 0) {
+                writer.executeAsync(Command.put("Employee" + skewed(random, keys), 40000 + i, "writer"));
+            }
+            Command get = Command.get("Employee" + skewed(random, keys), "reader");
+            long start = System.nanoTime();
+            Result result = reader.execute(get);
+            latency.record(System.nanoTime() - start);
+            if (!result.isSuccessful()) {
+                throw new IllegalStateException("unexpected result: " + result.describe(get));
+            }
+        }
+        return latency;
+    }
+
+    /**
+     * Picks key k with probability roughly proportional to 1/(k+1), so a few keys get most of the reads
+     */
+    private static int skewed(Random random, int keys) {
+        return (int) Math.min(keys - 1, Math.floor(Math.exp(random.nextDouble() * Math.log(keys + 1)) - 1));
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * GroupCommitBenchmark. Many clients PUT at once, first with batching off (coordinator.batchSize=1, every
+ * write its own vote and commit round) and then with the given batch settings. Each run gets its own
+ * coordinator, 5 servers and registry in this JVM; the clients talk to them over RMI like RunClient does.
+ *
+ * "java -cp out/production/code:out/test/code GroupCommitBenchmark [clients] [writesPerClient] [batchSize] [windowMicros]"
+ * Add -Dreplica.dataDir=DIR to include the servers' logs in the cost.
+ */
+public class GroupCommitBenchmark {
+
+    /**
+     * Main method runs both configurations and prints their throughput and latency
+     * @param args args[0] clients (default 32), args[1] writes per client (default 200),
+     *             args[2] batch size (default 256), args[3] batch window in microseconds (default 0)
+     * @throws Exception if a coordinator can't be started
+     */
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int writesPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        String batchSize = args.length > 2 ? args[2] : "256";
+        String windowMicros = args.length > 3 ? args[3] : "0";
+
+        PrintStream console = System.out;
+        // the servers print a line per operation, which would cost more than the operations themselves
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        run(console, 32200, clients, writesPerClient, "1", "0");
+        run(console, 32201, clients, writesPerClient, batchSize, windowMicros);
+        System.exit(0);
+    }
+
+    private static void run(PrintStream console, int port, int clients, int writesPerClient, String batchSize, String windowMicros) throws Exception {
+        System.setProperty("coordinator.batchSize", batchSize);
+        System.setProperty("coordinator.batchWindowMicros", windowMicros);
+        RunCoordinator.main(new String[] {String.valueOf(port)});
+
+        LatencyHistogram latency = new LatencyHistogram();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            RMIClient client = new RMIClient("127.0.0.1", port);
+            client.startClient();
+            int id = c;
+            threads[c] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < writesPerClient; i++) {
+                        long begin = System.nanoTime();
+                        String response = client.handlePUT("127.0.0.1", String.valueOf(port), new String[] {"PUT", "Employee" + id + "x" + i, String.valueOf(30000 + i)});
+                        latency.record(System.nanoTime() - begin);
+                        if (!response.startsWith("Successful PUT")) {
+                            throw new IllegalStateException("unexpected response: " + response);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[c].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        long total = (long) clients * writesPerClient;
+        console.printf("batchSize=%-4s window=%sus: %,d writes in %,.0f ms = %,.0f writes/s%n", batchSize, windowMicros, total, elapsed / 1e6, total * 1e9 / elapsed);
+        console.println("    latency " + latency.summary());
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * ProtocolBenchmark. Compares what a PUT and a GET cost on the wire with the String API (address, port and
+ * String[] in, a sentence out, plus the getFormattedCurrentSystemTime call RunClient used to make after each
+ * one) against the typed API (a Command in, a Result out). RMI writes each call's arguments and reply with a
+ * fresh object stream, so that is what is measured here: bytes per call, and the time to write and read back
+ * the request and reply. It then times both ways of doing a GET end to end, against a coordinator and its
+ * servers started in this JVM and reached over RMI.
+ *
+ * "java -cp out/production/code:out/test/code ProtocolBenchmark [iterations] [port]"
+ */
+public class ProtocolBenchmark {
+
+    private static final String ADDRESS = "127.0.0.1";
+    private static final String PORT = "32000";
+    private static final String TIMESTAMP = "2024-01-01 12:00:00.000";
+
+    /**
+     * Main method prints the bytes and serialization time per call for each protocol
+     * @param args args[0] iterations to time (default 200000), args[1] registry port (default 32300)
+     * @throws Exception if serialization fails or the coordinator can't be started
+     */
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        String port = args.length > 1 ? args[1] : "32300";
+
+        Object[][] stringPut = {
+                {ADDRESS, PORT, new String[] {"PUT", "Billy", "150000"}},
+                {"Successful PUT operation: Billy 150000"},
+                {}, {TIMESTAMP}};
+        Object[][] typedPut = {
+                {Command.put("Billy", 150000, ADDRESS + " " + PORT)},
+                {new Result(Result.Status.OK, 0)}};
+        Object[][] stringGet = {
+                {ADDRESS, PORT, new String[] {"GET", "Billy"}},
+                {"Successful GET operation. key=Billy value=150000"},
+                {}, {TIMESTAMP}};
+        Object[][] typedGet = {
+                {Command.get("Billy", ADDRESS + " " + PORT)},
+                {new Result(Result.Status.OK, 150000)}};
+
+        System.out.printf("%-12s %14s %14s%n", "", "bytes/call", "ns/call");
+        report("String PUT", stringPut, iterations);
+        report("typed PUT", typedPut, iterations);
+        report("String GET", stringGet, iterations);
+        report("typed GET", typedGet, iterations);
+
+        PrintStream console = System.out;
+        // the servers print a line per operation, which would cost more than the operations themselves
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        RunCoordinator.main(new String[] {port});
+        RMIClient client = new RMIClient(ADDRESS, Integer.valueOf(port));
+        client.startClient();
+        client.execute(Command.put("Billy", 150000, ADDRESS + " " + PORT));
+        int calls = Math.max(1, iterations / 20);
+        LatencyHistogram stringLatency = new LatencyHistogram();
+        LatencyHistogram typedLatency = new LatencyHistogram();
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            stringLatency.reset();
+            typedLatency.reset();
+            for (int i = 0; i < calls; i++) {
+                long start = System.nanoTime();
+                client.handleGET(ADDRESS, PORT, new String[] {"GET", "Billy"});
+                client.getFormattedCurrentSystemTime();
+                stringLatency.record(System.nanoTime() - start);
+
+                start = System.nanoTime();
+                client.execute(Command.get("Billy", ADDRESS + " " + PORT));
+                typedLatency.record(System.nanoTime() - start);
+            }
+        }
+        console.println();
+        console.println("GET over RMI, String API + timestamp call: " + stringLatency.summary());
+        console.println("GET over RMI, typed API:                   " + typedLatency.summary());
+        System.exit(0);
+    }
+
+    /**
+     * Each message is written to its own stream, like RMI writes each call's arguments and its reply
+     */
+    private static void report(String name, Object[][] messages, int iterations) throws IOException, ClassNotFoundException {
+        int bytes = 0;
+        for (Object[] message : messages) {
+            bytes += write(message).length;
+        }
+        for (int i = 0; i < iterations / 10; i++) { // warm up
+            roundTrip(messages);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            roundTrip(messages);
+        }
+        System.out.printf("%-12s %14d %14.0f%n", name, bytes, (System.nanoTime() - start) / (double) iterations);
+    }
+
+    private static void roundTrip(Object[][] messages) throws IOException, ClassNotFoundException {
+        for (Object[] message : messages) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(write(message)))) {
+                for (int i = 0; i < message.length; i++) {
+                    in.readObject();
+                }
+            }
+        }
+    }
+
+    private static byte[] write(Object[] message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            for (Object value : message) {
+                out.writeObject(value);
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,48 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * ReadConsistencyBenchmark. Times GETs read at ONE, QUORUM and ALL against a coordinator and its 5 servers
+ * started in this JVM and reached over RMI, the way RunClient reaches them.
+ *
+ * "java -cp out/production/code:out/test/code ReadConsistencyBenchmark [gets] [port]"
+ */
+public class ReadConsistencyBenchmark {
+
+    /**
+     * Main method prints the GET latency of each consistency level
+     * @param args args[0] GETs per level (default 5000), args[1] registry port (default 32320)
+     * @throws Exception if the coordinator can't be started
+     */
+    public static void main(String[] args) throws Exception {
+        int gets = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 32320;
+
+        PrintStream console = System.out;
+        // the servers print a line per operation, which would cost more than the operations themselves
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        RunCoordinator.main(new String[] {String.valueOf(port)});
+        RMIClient client = new RMIClient("127.0.0.1", port);
+        client.startClient();
+        client.execute(Command.put("Billy", 150000, "bench"));
+
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            for (Consistency consistency : Consistency.values()) {
+                Command get = Command.get("Billy", consistency, "bench");
+                LatencyHistogram latency = new LatencyHistogram();
+                for (int i = 0; i < gets; i++) {
+                    long start = System.nanoTime();
+                    Result result = client.execute(get);
+                    latency.record(System.nanoTime() - start);
+                    if (result.getValue() != 150000) {
+                        throw new IllegalStateException("unexpected result: " + result.describe(get));
+                    }
+                }
+                if (round == 1) {
+                    console.printf("%-6s %s%n", consistency, latency.summary());
+                }
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * RmiBenchmark. Times client calls end to end over RMI: RunCoordinator.main creates a registry with
+ * LocateRegistry.createRegistry and binds the coordinator and its 5 servers, and an RMIClient in the same JVM
+ * looks them up and calls them through their stubs, the way RunClient does. Covers GET and PUT through both the
+ * String API and the typed one, and a raise given as a GET followed by a PUT against the same raise as one
+ * INCR. Each benchmark gets its own registry port, counting up from "bench.port" (default 32330), so they can
+ * also run in one JVM with "bench.forks" 0.
+ *
+ * "java -cp out/production/code:out/test/code RmiBenchmark [name filters]"
+ */
+public class RmiBenchmark {
+
+    private static final int KEYS = 1024;
+    private static final int PORT = Integer.getInteger("bench.port", 32330);
+
+    /**
+     * Main method runs the RMI benchmarks
+     * @param args names of the benchmarks to run, all of them if none
+     * @throws Exception if a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        String[][] gets = new String[KEYS][];
+        String[][] puts = new String[KEYS][];
+        Command[] typedGets = new Command[KEYS];
+        Command[] typedPuts = new Command[KEYS];
+        Command[] raises = new Command[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            gets[i] = new String[] {"GET", "Employee" + i};
+            puts[i] = new String[] {"PUT", "Employee" + i, String.valueOf(50000 + i)};
+            typedGets[i] = Command.get("Employee" + i, "bench");
+            typedPuts[i] = Command.put("Employee" + i, 50000 + i, "bench");
+            raises[i] = Command.increment("Employee" + i, 1, "bench");
+        }
+        new BenchmarkHarness(RmiBenchmark.class)
+                .add("handleGET", true, () -> {
+                    RMIClient client = start(PORT, typedPuts);
+                    return (thread, call) ->
+                            BenchmarkHarness.consume(client.handleGET("127.0.0.1", "32000", gets[(int) call & (KEYS - 1)]));
+                })
+                .add("handlePUT", true, () -> {
+                    RMIClient client = start(PORT + 1, null);
+                    return (thread, call) ->
+                            BenchmarkHarness.consume(client.handlePUT("127.0.0.1", "32000", puts[(int) call & (KEYS - 1)]));
+                })
+                .add("executeGET", true, () -> {
+                    RMIClient client = start(PORT + 2, typedPuts);
+                    return (thread, call) -> BenchmarkHarness.consume(client.execute(typedGets[(int) call & (KEYS - 1)]));
+                })
+                .add("executePUT", true, () -> {
+                    RMIClient client = start(PORT + 3, null);
+                    return (thread, call) -> BenchmarkHarness.consume(client.execute(typedPuts[(int) call & (KEYS - 1)]));
+                })
+                .add("getThenPut", true, () -> {
+                    RMIClient client = start(PORT + 4, typedPuts);
+                    return (thread, call) -> {
+                        String key = typedGets[(int) call & (KEYS - 1)].getKey();
+                        Result salary = client.execute(typedGets[(int) call & (KEYS - 1)]);
+                        BenchmarkHarness.consume(client.execute(Command.put(key, salary.getValue() + 1, "bench")));
+                    };
+                })
+                .add("increment", true, () -> {
+                    RMIClient client = start(PORT + 5, typedPuts);
+                    return (thread, call) -> BenchmarkHarness.consume(client.execute(raises[(int) call & (KEYS - 1)]));
+                })
+                .run(args);
+    }
+
+    /**
+     * Starts a coordinator and its servers on a port and connects a client to them
+     * @param preload PUTs to run first, or null
+     */
+    private static RMIClient start(int port, Command[] preload) throws Exception {
+        RunCoordinator.main(new String[] {String.valueOf(port)});
+        RMIClient client = new RMIClient("127.0.0.1", port);
+        client.startClient();
+        if (preload != null) {
+            for (Command put : preload) {
+                client.execute(put);
+            }
+        }
+        return client;
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.Iterator;
+
+/**
+ * ScanBenchmark. Times reading every employee of one department, keys "Dept3Employee0".."Dept3Employee999" out
+ * of ten departments, against a coordinator and its 5 servers started in this JVM and reached over RMI: as a
+ * prefix scan streamed in pages of "bench.pageSize" (default 256), as the same scan on servers started with
+ * "replica.orderedIndex" false, which have to search every stripe for each page, and as one GET per key,
+ * which only works if the client already knows every key. Each benchmark gets its own registry port, counting
+ * up from "bench.port" (default 32360).
+ *
+ * "java -cp out/production/code:out/test/code ScanBenchmark [name filters]"
+ */
+public class ScanBenchmark {
+
+    private static final int DEPARTMENTS = 10;
+    private static final int EMPLOYEES = 1000;
+    private static final int PORT = Integer.getInteger("bench.port", 32360);
+
+    /**
+     * Main method runs the scan benchmarks
+     * @param args names of the benchmarks to run, all of them if none
+     * @throws Exception if a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        int pageSize = Integer.getInteger("bench.pageSize", 256);
+        Command[] gets = new Command[EMPLOYEES];
+        for (int i = 0; i < EMPLOYEES; i++) {
+            gets[i] = Command.get("Dept3Employee" + i, "bench");
+        }
+        new BenchmarkHarness(ScanBenchmark.class)
+                .add("scanDepartment", true, () -> {
+                    RMIClient client = start(PORT, true);
+                    return (thread, call) -> scan(client, pageSize);
+                })
+                .add("scanDepartmentUnindexed", true, () -> {
+                    RMIClient client = start(PORT + 1, false);
+                    return (thread, call) -> scan(client, pageSize);
+                })
+                .add("getDepartment", true, () -> {
+                    RMIClient client = start(PORT + 2, true);
+                    return (thread, call) -> {
+                        for (Command get : gets) {
+                            BenchmarkHarness.consume(client.execute(get));
+                        }
+                    };
+                })
+                .run(args);
+    }
+
+    private static void scan(RMIClient client, int pageSize) {
+        Iterator<Transaction.Operation> entries = client.scan("Dept3", ScanIterator.prefixEnd("Dept3"), pageSize);
+        int count = 0;
+        while (entries.hasNext()) {
+            BenchmarkHarness.consume(entries.next());
+            count++;
+        }
+        if (count != EMPLOYEES) {
+            throw new IllegalStateException("scanned " + count + " employees, expected " + EMPLOYEES);
+        }
+    }
+
+    /**
+     * Starts a coordinator and its servers on a port, connects a client and loads every department
+     */
+    private static RMIClient start(int port, boolean orderedIndex) throws Exception {
+        System.setProperty("replica.orderedIndex", String.valueOf(orderedIndex));
+        RunCoordinator.main(new String[] {String.valueOf(port)});
+        RMIClient client = new RMIClient("127.0.0.1", port);
+        client.startClient();
+        for (int d = 0; d < DEPARTMENTS; d++) {
+            Transaction department = new Transaction();
+            for (int i = 0; i < EMPLOYEES; i++) {
+                department.put("Dept" + d + "Employee" + i, 50000 + i);
+            }
+            client.handleTransaction("127.0.0.1", "32000", department);
+        }
+        return client;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * ServerBenchmark. Times a server's request handlers and the coordinator's vote with the coordinator and its
+ * servers in this JVM, called directly rather than over RMI, so the numbers leave out the network and
+ * serialization: ServerImpl.handleGET and handlePUT with 5 servers, and RunCoordinator.getConsensus with
+ * each number of servers in "bench.replicas" (default "1,3,5").
+ *
+ * "java -cp out/production/code:out/test/code ServerBenchmark [name filters]"
+ */
+public class ServerBenchmark {
+
+    private static final int KEYS = 1024;
+
+    /**
+     * Main method runs the server benchmarks
+     * @param args names of the benchmarks to run, all of them if none
+     * @throws Exception if a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        String[][] gets = new String[KEYS][];
+        String[][] puts = new String[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            gets[i] = new String[] {"GET", "Employee" + i};
+            puts[i] = new String[] {"PUT", "Employee" + i, String.valueOf(50000 + i)};
+        }
+        BenchmarkHarness harness = new BenchmarkHarness(ServerBenchmark.class)
+                .add("handleGET", true, () -> {
+                    ServerImpl server = cluster(5);
+                    for (String[] put : puts) {
+                        server.handlePUT("127.0.0.1", "32000", put);
+                    }
+                    return (thread, call) ->
+                            BenchmarkHarness.consume(server.handleGET("127.0.0.1", "32000", gets[(int) call & (KEYS - 1)]));
+                })
+                .add("handlePUT", true, () -> {
+                    ServerImpl server = cluster(5);
+                    return (thread, call) ->
+                            BenchmarkHarness.consume(server.handlePUT("127.0.0.1", "32000", puts[(int) call & (KEYS - 1)]));
+                });
+        for (String replicas : System.getProperty("bench.replicas", "1,3,5").split(",")) {
+            int count = Integer.parseInt(replicas.trim());
+            harness.add("getConsensus-" + count, true, () -> {
+                RunCoordinator coordinator = cluster(count).coordinator;
+                return (thread, call) ->
+                        BenchmarkHarness.consume(coordinator.getConsensus(puts[(int) call & (KEYS - 1)]));
+            });
+        }
+        harness.run(args);
+    }
+
+    /**
+     * Starts a coordinator with servers, without a registry
+     * @return the first server
+     */
+    private static ServerImpl cluster(int servers) throws Exception {
+        RunCoordinator coordinator = new RunCoordinator();
+        ServerImpl first = null;
+        for (int i = 1; i <= servers; i++) {
+            ServerImpl server = RunCoordinator.createServer(i);
+            coordinator.getListOfServers().add(server);
+            server.setCoordinator(coordinator);
+            first = first == null ? server : first;
+        }
+        return first;
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ShardingBenchmark. Measures how PUT throughput grows with the number of replica groups the keys are split
+ * over: for each count in "bench.groups" (default "1,2,4") it starts that many coordinators, each with its own
+ * 5 servers and registry, on ports counting up from "bench.port" (default 32340), and PUTs through one
+ * ShardedClient. Writes to different groups are voted on and committed by different coordinators, so with
+ * enough threads and cores throughput should rise close to linearly; "bench.threads" defaults to 8 here, since
+ * a single thread waits on one group at a time.
+ *
+ * With "rebalance" as the first argument it instead loads "bench.keys" keys (default 10000) into the first
+ * count of groups, adds one more group and reports how many keys moved, which consistent hashing keeps near
+ * 1/(groups + 1), then checks that every key can still be read.
+ *
+ * "java -cp out/production/code:out/test/code ShardingBenchmark [rebalance | name filters]"
+ */
+public class ShardingBenchmark {
+
+    private static final int KEYS = 1024;
+    private static final int PORT = Integer.getInteger("bench.port", 32340);
+
+    /**
+     * Main method runs the sharding benchmarks, or the rebalance check
+     * @param args names of the benchmarks to run, all of them if none, or "rebalance"
+     * @throws Exception if a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        String[] counts = System.getProperty("bench.groups", "1,2,4").split(",");
+        if (args.length > 0 && args[0].equals("rebalance")) {
+            rebalance(Integer.parseInt(counts[0].trim()));
+            return;
+        }
+        if (System.getProperty("bench.threads") == null) {
+            System.setProperty("bench.threads", "8");
+        }
+        Command[] puts = new Command[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            puts[i] = Command.put("Employee" + i, 50000 + i, "bench");
+        }
+        BenchmarkHarness harness = new BenchmarkHarness(ShardingBenchmark.class);
+        for (int c = 0; c < counts.length; c++) {
+            int groups = Integer.parseInt(counts[c].trim());
+            int firstPort = PORT + 10 * c;
+            harness.add("put-" + groups + "groups", true, () -> {
+                ShardedClient client = start(firstPort, groups);
+                return (thread, call) -> {
+                    Result result = client.execute(puts[(int) (call * 31 + thread * 127) & (KEYS - 1)]);
+                    if (result.getStatus() != Result.Status.OK) {
+                        throw new IllegalStateException(result.toString());
+                    }
+                };
+            });
+        }
+        harness.run(args);
+    }
+
+    /**
+     * Starts groups coordinators, each with its servers and registry, and connects a client to all of them
+     */
+    private static ShardedClient start(int firstPort, int groups) throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int g = 0; g < groups; g++) {
+            RunCoordinator.main(new String[] {String.valueOf(firstPort + g)});
+            names.add("127.0.0.1:" + (firstPort + g));
+        }
+        ShardedClient client = new ShardedClient(names);
+        client.startClient();
+        return client;
+    }
+
+    private static void rebalance(int groups) throws Exception {
+        System.setProperty("log.level", System.getProperty("log.level", "OFF"));
+        int keys = Integer.getInteger("bench.keys", 10000);
+        ShardedClient client = start(PORT, groups);
+        for (int i = 0; i < keys; i++) {
+            client.execute(Command.put("Employee" + i, i, "bench"));
+        }
+        int[] before = new int[keys];
+        for (int i = 0; i < keys; i++) {
+            before[i] = client.getRing().ownerIndex("Employee" + i);
+        }
+        List<String> oldGroups = client.getRing().getGroups();
+        RunCoordinator.main(new String[] {String.valueOf(PORT + groups)});
+        long start = System.nanoTime();
+        int moved = client.addGroup("127.0.0.1:" + (PORT + groups));
+        long took = System.nanoTime() - start;
+        int missing = 0;
+        int changedOwner = 0;
+        for (int i = 0; i < keys; i++) {
+            String key = "Employee" + i;
+            Result result = client.execute(Command.get(key, "bench"));
+            if (result.getStatus() != Result.Status.OK || result.getValue() != i) {
+                missing++;
+            }
+            if (!client.getRing().owner(key).equals(oldGroups.get(before[i]))) {
+                changedOwner++;
+            }
+        }
+        System.out.printf("%d -> %d groups: moved %d of %d keys (%.1f%%, ideal %.1f%%) in %s, %d changed owner, %d unreadable%n",
+                groups, groups + 1, moved, keys, 100.0 * moved / keys, 100.0 / (groups + 1),
+                LatencyHistogram.format(took), changedOwner, missing);
+        System.exit(missing == 0 && moved == changedOwner ? 0 : 1);
+    }
+}
@@ -0,0 +1,48 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * SnapshotBenchmark. Times writing a snapshot of a full ReplicaStore and loading it back into an empty
+ * one, which is what a restarted replica does before it starts serving reads.
+ *
+ * "java -Xmx4g -cp out/production/code:out/test/code SnapshotBenchmark [keys] [directory]"
+ */
+public class SnapshotBenchmark {
+
+    /**
+     * Main method fills a store, snapshots it, and loads the snapshot back
+     * @param args args[0] number of keys (default 10M), args[1] directory for the snapshot (default a temp directory)
+     * @throws Exception if the snapshot can't be written or read
+     */
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Path directory = args.length > 1 ? Paths.get(args[1]) : Files.createTempDirectory("snapshot-bench");
+
+        ReplicaStore store = new ReplicaStore(keys);
+        for (int i = 0; i < keys; i++) {
+            store.put("Employee" + i, 30000 + i % 200000);
+        }
+        ReplicaSnapshot snapshots = new ReplicaSnapshot(directory);
+
+        long start = System.nanoTime();
+        Path file = snapshots.write(1, store);
+        long writeMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("wrote %,d keys (%,d bytes) in %,d ms%n", keys, Files.size(file), writeMillis);
+
+        store = null;
+        System.gc();
+        ReplicaStore restored = new ReplicaStore();
+        start = System.nanoTime();
+        snapshots.loadNewest(restored);
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("loaded %,d keys in %,d ms (%,.0f keys/s)%n", restored.size(), loadMillis, restored.size() * 1000.0 / Math.max(1, loadMillis));
+
+        for (int i = 0; i < keys; i += Math.max(1, keys / 1000)) {
+            if (restored.getInt("Employee" + i) != 30000 + i % 200000) {
+                throw new IllegalStateException("Employee" + i + " did not survive the snapshot");
+            }
+        }
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,87 @@
+import java.lang.ref.Reference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * StoreMemoryBenchmark. Compares how much heap a replica's map takes as a plain HashMap&lt;String, Integer&gt;
+ * versus a CompactStringIntMap, for the same keys and values, and what a ReplicaStore takes with and without
+ * the ordered index scans use ("replica.orderedIndex").
+ *
+ * Run with a big heap so the 10M case fits, e.g.
+ * "java -Xmx6g -cp out/production/code:out/test/code StoreMemoryBenchmark 1000000 10000000"
+ */
+public class StoreMemoryBenchmark {
+
+    /**
+     * Main method builds each map in turn and prints the heap used per entry
+     * @param args key counts to measure, defaults to 1M and 10M
+     */
+    public static void main(String[] args) {
+        int[] keyCounts = args.length == 0 ? new int[] {1_000_000, 10_000_000} : new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            keyCounts[i] = Integer.parseInt(args[i]);
+        }
+        for (int keyCount : keyCounts) {
+            // keys are built on the fly so the key Strings only count against the HashMap
+            long hashMapBytes = measure(() -> {
+                Map<String, Integer> map = new HashMap<>();
+                for (int i = 0; i < keyCount; i++) {
+                    map.put(key(i), salary(i));
+                }
+                return map;
+            });
+            long compactBytes = measure(() -> {
+                CompactStringIntMap map = new CompactStringIntMap();
+                for (int i = 0; i < keyCount; i++) {
+                    map.put(key(i), salary(i));
+                }
+                return map;
+            });
+            long storeBytes = measure(() -> fill(new ReplicaStore(0, false), keyCount));
+            long indexedBytes = measure(() -> fill(new ReplicaStore(0, true), keyCount));
+            System.out.printf("%,d keys: HashMap %,d bytes (%.1f/entry), CompactStringIntMap %,d bytes (%.1f/entry), %.1fx smaller%n",
+                    keyCount, hashMapBytes, (double) hashMapBytes / keyCount,
+                    compactBytes, (double) compactBytes / keyCount, (double) hashMapBytes / compactBytes);
+            System.out.printf("%,d keys: ReplicaStore %,d bytes (%.1f/entry), with ordered index %,d bytes (%.1f/entry), %.1fx larger%n",
+                    keyCount, storeBytes, (double) storeBytes / keyCount,
+                    indexedBytes, (double) indexedBytes / keyCount, (double) indexedBytes / storeBytes);
+        }
+    }
+
+    private static ReplicaStore fill(ReplicaStore store, int keyCount) {
+        for (int i = 0; i < keyCount; i++) {
+            store.put(key(i), salary(i));
+        }
+        return store;
+    }
+
+    private static String key(int i) {
+        return "Employee" + i;
+    }
+
+    private static int salary(int i) {
+        return 30000 + Math.floorMod(i * 7919, 200000);
+    }
+
+    private static long measure(Supplier<Object> builder) {
+        long before = usedHeap();
+        Object map = builder.get();
+        long after = usedHeap();
+        Reference.reachabilityFence(map); // keeps the map alive until we have measured it
+        return after - before;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * TransactionBenchmark. Compares updating N employees with N separate PUTs, each its own consensus round,
+ * against one transaction of N PUTs, which is voted on and committed in a single round. Runs a coordinator
+ * with its 5 servers in this JVM and talks to it over RMI like RunClient does.
+ *
+ * "java -cp out/production/code:out/test/code TransactionBenchmark [port] [rounds]"
+ * Add -Dreplica.dataDir=DIR to include the servers' logs in the cost.
+ */
+public class TransactionBenchmark {
+
+    private static final int[] SIZES = {1, 10, 100, 500};
+
+    /**
+     * Main method starts the coordinator and prints the cost per key of each way of updating
+     * @param args args[0] registry port (default 32100), args[1] rounds per size (default 5)
+     * @throws Exception if the coordinator can't be started
+     */
+    public static void main(String[] args) throws Exception {
+        String port = args.length > 0 ? args[0] : "32100";
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        PrintStream console = System.out;
+        // the servers print a line per operation, which would cost more than the operations themselves
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        RunCoordinator.main(new String[] {port});
+        RMIClient client = new RMIClient("127.0.0.1", Integer.valueOf(port));
+        client.startClient();
+
+        console.printf("%6s %16s %16s %10s%n", "keys", "PUTs (us/key)", "TXN (us/key)", "speedup");
+        for (int size : SIZES) {
+            long singleNanos = Long.MAX_VALUE;
+            long transactionNanos = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < size; i++) {
+                    String response = client.handlePUT("127.0.0.1", port, new String[] {"PUT", "Employee" + i, String.valueOf(40000 + round)});
+                    check(response, "Successful PUT");
+                }
+                singleNanos = Math.min(singleNanos, System.nanoTime() - start);
+
+                Transaction transaction = new Transaction();
+                for (int i = 0; i < size; i++) {
+                    transaction.put("Employee" + i, 50000 + round);
+                }
+                start = System.nanoTime();
+                check(client.handleTransaction("127.0.0.1", port, transaction), "Successful TRANSACTION");
+                transactionNanos = Math.min(transactionNanos, System.nanoTime() - start);
+            }
+            console.printf("%6d %16.1f %16.1f %9.1fx%n", size, singleNanos / 1e3 / size, transactionNanos / 1e3 / size,
+                    (double) singleNanos / transactionNanos);
+        }
+        System.exit(0);
+    }
+
+    private static void check(String response, String expected) {
+        if (!response.startsWith(expected)) {
+            throw new IllegalStateException("unexpected response: " + response);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * ValidationBenchmark. Times the checks every request goes through before it reaches the map: the key and
+ * value checks behind ServerImpl.isAlphaNumeric and isInteger, and parsing a whole typed line into a Command.
+ * Each runs over a handful of good and bad inputs in turn, so no single branch is all the JIT sees.
+ *
+ * "java -cp out/production/code:out/test/code ValidationBenchmark [name filters]"
+ */
+public class ValidationBenchmark {
+
+    private static final String[] KEYS = {"Billy", "Tom42", "Alexandria", "bad-key", "x", "\u00DCn\u00EFcode", "with space", "A1B2C3D4E5"};
+    private static final String[] VALUES = {"150000", "0", "2147483647", "2147483648", "-5", "12a", "70000", ""};
+    private static final String[] LINES = {"PUT Billy 150000", "GET Billy", "GET Billy QUORUM", "DELETE Tom",
+            "PUT  Tom   70000", "PUT Tom", "GET", "PUT Tom abc"};
+
+    /**
+     * Main method runs the validation benchmarks
+     * @param args names of the benchmarks to run, all of them if none
+     * @throws Exception if a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        new BenchmarkHarness(ValidationBenchmark.class)
+                .add("isAlphaNumeric", false, () -> (thread, call) ->
+                        BenchmarkHarness.consume(CommandParser.isAlphaNumeric(KEYS[(int) call & 7])))
+                .add("isInteger", false, () -> (thread, call) ->
+                        BenchmarkHarness.consume(CommandParser.isInteger(VALUES[(int) call & 7])))
+                .add("parse", false, () -> (thread, call) ->
+                        BenchmarkHarness.consume(CommandParser.parse(LINES[(int) call & 7], "bench")))
+                .add("parseAndCheck", false, () -> (thread, call) -> {
+                    Command command = CommandParser.parse(LINES[(int) call & 7], "bench");
+                    BenchmarkHarness.consume(command == null ? null : CommandParser.check(command));
+                })
+                .run(args);
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * WalBenchmark. Measures commit throughput of WriteAheadLog in each Durability mode, with several threads
+ * committing at once the way the coordinator's commit phase does.
+ *
+ * "java -cp out/production/code:out/test/code WalBenchmark [threads] [commitsPerThread] [directory]"
+ */
+public class WalBenchmark {
+
+    /**
+     * Main method runs every durability mode in turn and prints commits per second
+     * @param args args[0] threads (default 16), args[1] commits per thread (default 2000),
+     *             args[2] directory to put the logs in (default a temp directory)
+     * @throws Exception if a log can't be written
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int commitsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Path root = args.length > 2 ? Paths.get(args[2]) : Files.createTempDirectory("wal-bench");
+
+        for (WriteAheadLog.Durability durability : WriteAheadLog.Durability.values()) {
+            Path directory = root.resolve(durability.name().toLowerCase());
+            // per-op forces once per commit, so keep its run short
+            int commits = durability == WriteAheadLog.Durability.PER_OP ? Math.max(1, commitsPerThread / 10) : commitsPerThread;
+            try (WriteAheadLog log = new WriteAheadLog(directory, durability)) {
+                CountDownLatch start = new CountDownLatch(1);
+                Thread[] workers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    int id = t;
+                    workers[t] = new Thread(() -> {
+                        try {
+                            start.await();
+                            for (int i = 0; i < commits; i++) {
+                                log.awaitDurable(log.append(WriteAheadLog.PUT, "Employee" + id + "x" + i, 50000 + i));
+                            }
+                        } catch (IOException | InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                    workers[t].start();
+                }
+                long begin = System.nanoTime();
+                start.countDown();
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                long elapsed = System.nanoTime() - begin;
+                long total = (long) threads * commits;
+                System.out.printf("%-6s %,10d commits in %,8.1f ms = %,12.0f commits/s (%,.1f us/commit)%n",
+                        durability, total, elapsed / 1e6, total * 1e9 / elapsed, elapsed / 1e3 / total);
+            }
+            deleteRecursively(directory);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * CachedClock. Formats times in the "yyyy-MM-dd HH:mm:ss.SSS" format used in every log line and reply. The
+ * date and time up to the second are formatted once per second and reused, so a timestamp costs a few
+ * appends instead of a new SimpleDateFormat. Safe to use from any thread.
+ */
+public final class CachedClock {
+
+    private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.").withZone(ZoneId.systemDefault());
+
+    /**
+     * The formatted date and time up to the second, reused by every timestamp within that second
+     */
+    private static final class Second {
+        final long second;
+        final String prefix;
+
+        Second(long second, String prefix) {
+            this.second = second;
+            this.prefix = prefix;
+        }
+    }
+
+    private static volatile Second cached = new Second(Long.MIN_VALUE, "");
+
+    private CachedClock() {
+    }
+
+    /**
+     * Returns the current time
+     * @return current time in "yyyy-MM-dd HH:mm:ss.SSS" format
+     */
+    public static String now() {
+        return format(System.currentTimeMillis());
+    }
+
+    /**
+     * Formats a time
+     * @param timeMillis milliseconds since the epoch
+     * @return the time in "yyyy-MM-dd HH:mm:ss.SSS" format
+     */
+    public static String format(long timeMillis) {
+        return append(new StringBuilder(23), timeMillis).toString();
+    }
+
+    /**
+     * Appends a time to a builder
+     * @param out where to append
+     * @param timeMillis milliseconds since the epoch
+     * @return out
+     */
+    public static StringBuilder append(StringBuilder out, long timeMillis) {
+        long second = Math.floorDiv(timeMillis, 1000);
+        Second current = cached;
+        if (current.second != second) {
+            current = new Second(second, SECONDS.format(Instant.ofEpochSecond(second)));
+            cached = current;
+        }
+        int millis = Math.floorMod(timeMillis, 1000);
+        out.append(current.prefix);
+        if (millis < 100) {
+            out.append('0');
+        }
+        if (millis < 10) {
+            out.append('0');
+        }
+        return out.append(millis);
+    }
+}
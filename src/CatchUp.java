@@ -0,0 +1,292 @@
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * CatchUp. Brings servers the coordinator fenced after they missed commits back into its rounds, on a
+ * background thread of its own. A server is sent the commits it missed from the CommitLog, a chunk at a time,
+ * while foreground rounds keep going without it and without CatchUp holding any lock they need. Once it is
+ * only HANDOFF_COMMITS behind, new commits are held off while the few that are left are sent and it is let
+ * back in, so it can't miss one in between. That handoff is bounded: if commits in flight don't let go of the
+ * coordinator's membership lock within MEMBERSHIP_LOCK_MILLIS, or the server doesn't apply the last commits
+ * within the handoff time, the lock is let go and the server is tried again after a backoff that doubles each
+ * time, up to MAX_BACKOFF_MILLIS, so a slow server can only ever hold up new commits for a few milliseconds.
+ *
+ * A server that missed commits the log no longer has is cleared and loaded with a copy of a server that is
+ * up to date, streamed a chunk at a time with exportSnapshot, and then sent every commit from the moment the
+ * copy started. Writes that land while the copy is read are in it or not, but replaying those commits puts
+ * every key they touched in the right state either way.
+ *
+ * Each attempt first moves the coordinator's epoch on and fences the server at the new value, so a commit that
+ * was sent to it before it was fenced, and is only now arriving, is rejected instead of overwriting what the
+ * attempt sends it.
+ *
+ * "coordinator.catchUpBatch" is the most operations sent in one call (default 512), and
+ * "coordinator.handoffMillis" the longest new commits are held off for a server's handoff (default 20).
+ */
+public class CatchUp {
+
+    private static final int HANDOFF_COMMITS = 64; // how far behind a server can be when commits are held off
+    // how long to wait for commits in flight to let go of the membership lock; new commits queue behind the wait
+    private static final long MEMBERSHIP_LOCK_MILLIS = 20;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    /**
+     * When a server whose handoff didn't go through is tried again
+     */
+    private static final class Backoff {
+        long millis;
+        long untilNanos;
+    }
+
+    private final RunCoordinator coordinator;
+    private final int batch;
+    private final long handoffNanos;
+    private final Map<Integer, AtomicLong> missedFrom = new ConcurrentSkipListMap<>(); // fenced server -> first commit to send it
+    private final Map<Integer, String> status = new ConcurrentSkipListMap<>();
+    final LongAdder completed = new LongAdder();
+    final LongAdder fromSnapshot = new LongAdder();
+    final LongAdder operationsSent = new LongAdder();
+    final LongAdder entriesCopied = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    private volatile boolean closed;
+    // server -> its last handoff's replay, which may still be running after timing out; catch-up thread only
+    private final Map<Integer, Future<Boolean>> handoffs = new HashMap<>();
+    private final Map<Integer, Backoff> backoffs = new HashMap<>(); // catch-up thread only
+
+    /**
+     * @param coordinator whose fenced servers to bring back
+     */
+    public CatchUp(RunCoordinator coordinator) {
+        this.coordinator = coordinator;
+        this.batch = Integer.getInteger("coordinator.catchUpBatch", 512);
+        this.handoffNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("coordinator.handoffMillis", 20));
+    }
+
+    /**
+     * Notes that a server was fenced after missing a commit. Called with the commit's sequence number, possibly
+     * by several rounds at once; the server is sent everything from the earliest of them on.
+     * @param server server number, from 1
+     * @param sequence the commit it missed, 1 to send it everything the log has
+     */
+    public void missed(int server, long sequence) {
+        missedFrom.computeIfAbsent(server, number -> new AtomicLong(Long.MAX_VALUE)).accumulateAndGet(sequence, Math::min);
+    }
+
+    /**
+     * Starts the thread that catches fenced servers up, checking for them every intervalMillis
+     * @param intervalMillis pause between checks
+     */
+    public void start(long intervalMillis) {
+        Thread thread = new Thread(() -> {
+            while (!closed) {
+                for (Map.Entry<Integer, AtomicLong> server : missedFrom.entrySet()) {
+                    // a server that is still silent would only time out again
+                    if (!coordinator.failureDetector.isSuspected(server.getKey()) && !isBackingOff(server.getKey())) {
+                        catchUp(server.getKey(), server.getValue());
+                    }
+                }
+                LockSupport.parkNanos(intervalMillis * 1_000_000);
+            }
+        }, "catch-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the catch-up thread
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Returns how many commits behind each fenced server is
+     * @return e.g. "Server3 1200 commits behind, replaying log"; empty if none are fenced
+     */
+    public String lag() {
+        StringBuilder out = new StringBuilder();
+        long next = coordinator.commitLog.nextSequence();
+        for (Map.Entry<Integer, AtomicLong> server : missedFrom.entrySet()) {
+            if (out.length() > 0) {
+                out.append("; ");
+            }
+            out.append("Server").append(server.getKey()).append(' ').append(Math.max(0, next - server.getValue().get()))
+                    .append(" commits behind, ").append(status.getOrDefault(server.getKey(), "waiting"));
+        }
+        return out.toString();
+    }
+
+    private void catchUp(int number, AtomicLong from) {
+        MapServer server = coordinator.listOfServers.get(number - 1);
+        try {
+            Future<Boolean> lastHandoff = handoffs.get(number);
+            if (lastHandoff != null && !lastHandoff.isDone()) {
+                status.put(number, "waiting for the last handoff's replay to finish");
+                return; // it is still sending commits from the same position
+            }
+            long epoch = coordinator.epoch.incrementAndGet();
+            server.fence(epoch);
+            if (from.get() < coordinator.commitLog.oldestSequence() && !copySnapshot(number, server, from, epoch)) {
+                return;
+            }
+            status.put(number, "replaying log");
+            // replay while commits keep going, until the server is nearly level
+            while (coordinator.commitLog.nextSequence() - from.get() > HANDOFF_COMMITS) {
+                if (closed || !replay(server, from, epoch)) {
+                    return; // a server that fell off the log gets a copy next time
+                }
+            }
+            // then hold new commits off while the last few are sent and the server is let back in
+            if (!coordinator.membership.writeLock().tryLock(MEMBERSHIP_LOCK_MILLIS, TimeUnit.MILLISECONDS)) {
+                backOff(number, "commits in flight held the membership lock");
+                return;
+            }
+            try {
+                if (coordinator.commitLog.nextSequence() - from.get() > HANDOFF_COMMITS) {
+                    backOff(number, "more commits arrived while waiting for the membership lock");
+                    return;
+                }
+                AtomicBoolean abandoned = new AtomicBoolean();
+                Future<Boolean> rest = coordinator.fanOut.submit(() -> {
+                    while (coordinator.commitLog.nextSequence() > from.get()) {
+                        if (abandoned.get() || !replay(server, from, epoch)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+                handoffs.put(number, rest);
+                try {
+                    if (!rest.get(handoffNanos, TimeUnit.NANOSECONDS)) {
+                        return;
+                    }
+                } catch (TimeoutException e) {
+                    // not interrupted or cancelled: it stops after the call it is in, which may still move from on,
+                    // and the next attempt waits until it has
+                    abandoned.set(true);
+                    backOff(number, "the last commits weren't applied within " + LatencyHistogram.format(handoffNanos));
+                    return;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+                missedFrom.remove(number);
+                status.remove(number);
+                handoffs.remove(number);
+                backoffs.remove(number);
+                coordinator.failureDetector.unfence(number);
+            } finally {
+                coordinator.membership.writeLock().unlock();
+            }
+            completed.increment();
+            System.out.println("Server " + number + " caught up and is back in the rounds");
+        } catch (RemoteException | RuntimeException e) {
+            backOff(number, "failed: " + e);
+            System.out.println("Could not catch server " + number + " up, will retry: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isBackingOff(int number) {
+        Backoff backoff = backoffs.get(number);
+        return backoff != null && backoff.untilNanos - System.nanoTime() > 0;
+    }
+
+    /**
+     * Leaves a server whose handoff didn't go through alone for twice as long as last time
+     */
+    private void backOff(int number, String reason) {
+        Backoff backoff = backoffs.computeIfAbsent(number, server -> new Backoff());
+        backoff.millis = Math.min(MAX_BACKOFF_MILLIS, Math.max(MIN_BACKOFF_MILLIS, 2 * backoff.millis));
+        backoff.untilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff.millis);
+        failures.increment();
+        status.put(number, "handing off again in " + backoff.millis + "ms, " + reason);
+    }
+
+    /**
+     * Sends a server the next batch of commits from the log
+     * @return false if they have already been dropped from the log
+     */
+    private boolean replay(MapServer server, AtomicLong from, long epoch) throws RemoteException {
+        List<Transaction> commits = coordinator.commitLog.read(from.get(), batch);
+        if (commits == null) {
+            return false;
+        }
+        if (commits.isEmpty()) {
+            return true;
+        }
+        Transaction merged = new Transaction().setEpoch(epoch);
+        for (Transaction commit : commits) {
+            for (Transaction.Operation operation : commit.getOperations()) {
+                if (operation.getOp() == WriteAheadLog.PUT) {
+                    merged.put(operation.getKey(), operation.getValue());
+                } else {
+                    merged.delete(operation.getKey());
+                }
+            }
+        }
+        server.executeTransaction("coordinator", "catch-up", merged);
+        operationsSent.add(merged.size());
+        from.addAndGet(commits.size());
+        return true;
+    }
+
+    /**
+     * Clears a server and loads a copy of an up to date one into it, then points it at the commits made since
+     * the copy started
+     * @return false if commits in flight held the membership lock too long to start, so nothing was done
+     */
+    private boolean copySnapshot(int number, MapServer server, AtomicLong from, long epoch) throws RemoteException, InterruptedException {
+        int source = 0;
+        for (int candidate = 1; candidate <= coordinator.listOfServers.size() && source == 0; candidate++) {
+            if (coordinator.failureDetector.isAvailable(candidate)) {
+                source = candidate;
+            }
+        }
+        if (source == 0) {
+            throw new IllegalStateException("no server is up to date to copy from");
+        }
+        // commits already numbered are applied on the up to date servers once in-flight rounds finish
+        long start;
+        if (!coordinator.membership.writeLock().tryLock(MEMBERSHIP_LOCK_MILLIS, TimeUnit.MILLISECONDS)) {
+            status.put(number, "waiting for commits in flight to start a copy");
+            return false;
+        }
+        try {
+            start = coordinator.commitLog.nextSequence();
+        } finally {
+            coordinator.membership.writeLock().unlock();
+        }
+        status.put(number, "clearing for a copy of Server" + source);
+        server.clearMap();
+        MapServer copyFrom = coordinator.listOfServers.get(source - 1);
+        long position = 0;
+        while (true) {
+            Transaction chunk = copyFrom.exportSnapshot(position, batch);
+            if (chunk.size() > 0) {
+                server.executeTransaction("coordinator", "catch-up", chunk.setEpoch(epoch));
+            }
+            position += chunk.size();
+            entriesCopied.add(chunk.size());
+            status.put(number, "copying Server" + source + ", " + position + " keys so far");
+            if (chunk.size() < batch) {
+                break;
+            }
+        }
+        from.set(start);
+        fromSnapshot.increment();
+        return true;
+    }
+}
@@ -0,0 +1,15 @@
+/**
+ * ClientOverloadedException. The client already had as many requests in flight and waiting as it allows, so
+ * this one was refused without being sent. Back off and try again.
+ */
+public class ClientOverloadedException extends MapClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message what went wrong
+     */
+    public ClientOverloadedException(String message) {
+        super(message, null);
+    }
+}
@@ -0,0 +1,293 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Command. One GET, PUT or DELETE from a client, as sent to MapServer.execute. Externalizable, so on the wire
+ * it is just an op code, the key, the value for a PUT and who sent it, rather than a String[] of the words
+ * the user typed plus the client's address and port as separate Strings. A GET also carries the consistency
+ * level it is read at, and a command that is being traced carries its trace id, see Tracer.
+ *
+ * COMPARE_AND_SET, INCREMENT and PUT_IF_ABSENT are conditional writes: the coordinator decides whether and
+ * what to write from the value the servers vote with, in the same round, so a read-modify-write takes one
+ * round trip instead of a GET and a PUT, and no other write can land in between.
+ */
+public class Command implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final byte GET = 0;
+    public static final byte PUT = WriteAheadLog.PUT;
+    public static final byte DELETE = WriteAheadLog.DELETE;
+    public static final byte COMPARE_AND_SET = 4;
+    public static final byte INCREMENT = 5;
+    public static final byte PUT_IF_ABSENT = 6;
+    private static final int TRACED = 0x40; // set in the op byte on the wire when a trace id follows
+
+    private byte op;
+    private String key;
+    private int value;
+    private int expected;
+    private String client;
+    private Consistency consistency = Consistency.ONE;
+    private long traceId;
+
+    /**
+     * Required by Externalizable, use get, put or delete instead
+     */
+    public Command() {
+    }
+
+    private Command(byte op, String key, int value, String client) {
+        this.op = op;
+        this.key = key;
+        this.value = value;
+        this.client = client;
+    }
+
+    private Command(String key, Consistency consistency, String client) {
+        this(GET, key, 0, client);
+        this.consistency = consistency;
+    }
+
+    /**
+     * @param key employee name
+     * @param client who is asking, e.g. "127.0.0.1 32000", for the server's log
+     * @return a GET command
+     */
+    public static Command get(String key, String client) {
+        return new Command(GET, key, 0, client);
+    }
+
+    /**
+     * @param key employee name
+     * @param consistency how many servers have to agree on the value
+     * @param client who is asking, e.g. "127.0.0.1 32000", for the server's log
+     * @return a GET command read at the given level
+     */
+    public static Command get(String key, Consistency consistency, String client) {
+        return new Command(key, consistency, client);
+    }
+
+    /**
+     * @param key employee name
+     * @param value employee salary
+     * @param client who is asking, e.g. "127.0.0.1 32000", for the server's log
+     * @return a PUT command
+     */
+    public static Command put(String key, int value, String client) {
+        return new Command(PUT, key, value, client);
+    }
+
+    /**
+     * @param key employee name
+     * @param client who is asking, e.g. "127.0.0.1 32000", for the server's log
+     * @return a DELETE command
+     */
+    public static Command delete(String key, String client) {
+        return new Command(DELETE, key, 0, client);
+    }
+
+    /**
+     * @param key employee name
+     * @param expected the salary the employee must have now
+     * @param value employee salary to set if so
+     * @param client who is asking, e.g. "127.0.0.1 32000", for the server's log
+     * @return a COMPARE_AND_SET command
+     */
+    public static Command compareAndSet(String key, int expected, int value, String client) {
+        Command command = new Command(COMPARE_AND_SET, key, value, client);
+        command.expected = expected;
+        return command;
+    }
+
+    /**
+     * @param key employee name
+     * @param delta how much to add to the salary, negative to take it off
+     * @param client who is asking, e.g. "127.0.0.1 32000", for the server's log
+     * @return an INCREMENT command
+     */
+    public static Command increment(String key, int delta, String client) {
+        return new Command(INCREMENT, key, delta, client);
+    }
+
+    /**
+     * @param key employee name
+     * @param value employee salary, put only if the employee isn't in the map yet
+     * @param client who is asking, e.g. "127.0.0.1 32000", for the server's log
+     * @return a PUT_IF_ABSENT command
+     */
+    public static Command putIfAbsent(String key, int value, String client) {
+        return new Command(PUT_IF_ABSENT, key, value, client);
+    }
+
+    /**
+     * Turns the words a user typed, e.g. {"PUT", "Tom", "70000"}, into a Command. A PUT value that isn't a
+     * non-negative integer becomes -1, which the server rejects with the usual message. A GET may name its
+     * consistency level after the key, e.g. {"GET", "Tom", "QUORUM"}.
+     * @param words the user's command split on spaces
+     * @param client who is asking, e.g. "127.0.0.1 32000", for the server's log
+     * @return the command, or null if it isn't a command with the right number of arguments
+     */
+    public static Command parse(String[] words, String client) {
+        if (words[0].equals("GET") && words.length == 2) {
+            return get(words[1], client);
+        } else if (words[0].equals("GET") && words.length == 3 && Consistency.parse(words[2]) != null) {
+            return get(words[1], Consistency.parse(words[2]), client);
+        } else if (words[0].equals("DELETE") && words.length == 2) {
+            return delete(words[1], client);
+        } else if (words[0].equals("PUT") && words.length == 3) {
+            return put(words[1], CommandParser.parseValue(words[2], 0, words[2].length()), client);
+        } else if (words[0].equals("CAS") && words.length == 4) {
+            return compareAndSet(words[1], CommandParser.parseValue(words[2], 0, words[2].length()),
+                    CommandParser.parseValue(words[3], 0, words[3].length()), client);
+        } else if ((words[0].equals("INCR") || words[0].equals("DECR")) && words.length == 3) {
+            return increment(words[1], CommandParser.parseDelta(words[2], 0, words[2].length(), words[0].equals("DECR")), client);
+        } else if (words[0].equals("PUTIFABSENT") && words.length == 3) {
+            return putIfAbsent(words[1], CommandParser.parseValue(words[2], 0, words[2].length()), client);
+        }
+        return null;
+    }
+
+    /**
+     * Returns GET, PUT, DELETE or one of the conditional writes
+     * @return op code
+     */
+    public byte getOp() {
+        return op;
+    }
+
+    /**
+     * Getter method for the key
+     * @return employee name
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the value to put, the delta for INCREMENT, 0 for GET and DELETE
+     * @return employee salary
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the value a COMPARE_AND_SET expects the key to have, 0 for other commands
+     * @return employee salary
+     */
+    public int getExpected() {
+        return expected;
+    }
+
+    /**
+     * Returns whether the command is decided from the key's current value, see RunCoordinator.submitConditionalWrite
+     * @return true for COMPARE_AND_SET, INCREMENT and PUT_IF_ABSENT
+     */
+    public boolean isConditional() {
+        return op == COMPARE_AND_SET || op == INCREMENT || op == PUT_IF_ABSENT;
+    }
+
+    /**
+     * Returns how many servers a GET has to consult, ONE for PUT and DELETE
+     * @return consistency level
+     */
+    public Consistency getConsistency() {
+        return consistency;
+    }
+
+    /**
+     * Returns the id the command is traced under
+     * @return trace id, or 0 if the command isn't traced
+     */
+    public long getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Returns a copy of this command traced under the given id
+     * @param traceId trace id from Tracer.startTrace
+     * @return the copy
+     */
+    public Command withTraceId(long traceId) {
+        Command traced = new Command(op, key, value, client);
+        traced.expected = expected;
+        traced.consistency = consistency;
+        traced.traceId = traceId;
+        return traced;
+    }
+
+    /**
+     * Returns who sent the command
+     * @return client's address and port
+     */
+    public String getClient() {
+        return client;
+    }
+
+    /**
+     * Returns the op's name as the user types it
+     * @return "GET", "PUT", "DELETE", "CAS", "INCR" or "PUTIFABSENT"
+     */
+    public String getOpName() {
+        switch (op) {
+            case GET:
+                return "GET";
+            case PUT:
+                return "PUT";
+            case DELETE:
+                return "DELETE";
+            case COMPARE_AND_SET:
+                return "CAS";
+            case INCREMENT:
+                return "INCR";
+            case PUT_IF_ABSENT:
+                return "PUTIFABSENT";
+            default:
+                return "op " + op;
+        }
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(traceId == 0 ? op : op | TRACED);
+        if (traceId != 0) {
+            out.writeLong(traceId);
+        }
+        out.writeUTF(key);
+        if (op == COMPARE_AND_SET) {
+            out.writeInt(expected);
+        }
+        if (op != GET && op != DELETE) {
+            out.writeInt(value);
+        } else if (op == GET) {
+            out.writeByte(consistency.ordinal());
+        }
+        out.writeUTF(client == null ? "" : client);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        op = in.readByte();
+        traceId = (op & TRACED) != 0 ? in.readLong() : 0;
+        op &= ~TRACED;
+        key = in.readUTF();
+        expected = op == COMPARE_AND_SET ? in.readInt() : 0;
+        value = op != GET && op != DELETE ? in.readInt() : 0;
+        consistency = op == GET ? Consistency.of(in.readByte()) : Consistency.ONE;
+        client = in.readUTF();
+    }
+
+    @Override
+    public String toString() {
+        if (op == GET && consistency != Consistency.ONE) {
+            return "GET " + key + " " + consistency;
+        }
+        if (op == COMPARE_AND_SET) {
+            return "CAS " + key + " " + expected + " " + value;
+        }
+        return op == GET || op == DELETE ? getOpName() + " " + key : getOpName() + " " + key + " " + value;
+    }
+}
@@ -0,0 +1,209 @@
+import java.util.List;
+
+/**
+ * CommandParser. Parses and checks the commands users type, with the same rules on the client and the server,
+ * so RunClient can turn away a malformed command without a round trip and send good ones already typed. The
+ * checks walk the characters in place: they allocate nothing, whatever the input.
+ */
+public final class CommandParser {
+
+    /** What parseDelta returns for an amount that isn't a number; no parsed amount, negated or not, is this */
+    public static final int BAD_DELTA = Integer.MIN_VALUE;
+
+    private CommandParser() {
+    }
+
+    /**
+     * Returns whether a string consists of letters and digits only
+     * @param string the string to check
+     * @return true if every character is a letter or a digit
+     */
+    public static boolean isAlphaNumeric(CharSequence string) {
+        return isAlphaNumeric(string, 0, string.length());
+    }
+
+    /**
+     * Returns whether part of a string consists of letters and digits only
+     * @param string the string to check
+     * @param start first character to check
+     * @param end one past the last character to check
+     * @return true if every character in the range is a letter or a digit
+     */
+    public static boolean isAlphaNumeric(CharSequence string, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = string.charAt(i);
+            if (!Character.isLetter(c) && !Character.isDigit(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a string is a non-negative integer that fits in an int
+     * @param string the string to check
+     * @return true if it is
+     */
+    public static boolean isInteger(CharSequence string) {
+        return string.length() == 0 || parseValue(string, 0, string.length()) >= 0; // "" was always accepted
+    }
+
+    /**
+     * Parses a salary
+     * @param string the string holding it
+     * @param start first character of the number
+     * @param end one past the last character of the number
+     * @return the value, or -1 if the range is empty, holds anything but digits, or doesn't fit in an int
+     */
+    public static int parseValue(CharSequence string, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(string.charAt(i), 10);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses how much an INCR or DECR changes a salary by
+     * @param string the string holding it
+     * @param start first character of the number
+     * @param end one past the last character of the number
+     * @param negate true for DECR, which takes the amount off
+     * @return the delta, or BAD_DELTA if the range isn't a non-negative integer that fits in an int
+     */
+    public static int parseDelta(CharSequence string, int start, int end, boolean negate) {
+        int amount = parseValue(string, start, end);
+        return amount < 0 ? BAD_DELTA : negate ? -amount : amount;
+    }
+
+    /**
+     * Parses one line a user typed, e.g. "PUT Tom 70000", "GET Tom", "GET Tom QUORUM", "CAS Tom 70000 75000",
+     * "INCR Tom 5000", "DECR Tom 5000" or "PUTIFABSENT Tom 70000". Words are separated by one or more spaces. A
+     * value that isn't a non-negative integer becomes -1, and an amount BAD_DELTA, which check rejects.
+     * @param line what the user typed
+     * @param client who is asking, e.g. "127.0.0.1 32000", for the server's log
+     * @return the command, or null if it isn't a command with the right number of arguments
+     */
+    public static Command parse(String line, String client) {
+        int[] words = new int[8]; // start and end of up to four words
+        int count = 0;
+        int i = 0;
+        int length = line.length();
+        while (i < length) {
+            while (i < length && line.charAt(i) == ' ') {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            if (count == 4) {
+                return null; // too many words for any command
+            }
+            words[2 * count] = i;
+            while (i < length && line.charAt(i) != ' ') {
+                i++;
+            }
+            words[2 * count + 1] = i;
+            count++;
+        }
+        if (count < 2) {
+            return null;
+        }
+        String key = line.substring(words[2], words[3]);
+        if (isWord(line, words, 0, "GET") && count == 2) {
+            return Command.get(key, client);
+        } else if (isWord(line, words, 0, "GET") && count == 3) {
+            for (Consistency consistency : Consistency.values()) {
+                if (isWord(line, words, 2, consistency.name())) {
+                    return Command.get(key, consistency, client);
+                }
+            }
+            return null;
+        } else if (isWord(line, words, 0, "DELETE") && count == 2) {
+            return Command.delete(key, client);
+        } else if (isWord(line, words, 0, "PUT") && count == 3) {
+            return Command.put(key, parseValue(line, words[4], words[5]), client);
+        } else if (isWord(line, words, 0, "CAS") && count == 4) {
+            return Command.compareAndSet(key, parseValue(line, words[4], words[5]), parseValue(line, words[6], words[7]), client);
+        } else if ((isWord(line, words, 0, "INCR") || isWord(line, words, 0, "DECR")) && count == 3) {
+            return Command.increment(key, parseDelta(line, words[4], words[5], isWord(line, words, 0, "DECR")), client);
+        } else if (isWord(line, words, 0, "PUTIFABSENT") && count == 3) {
+            return Command.putIfAbsent(key, parseValue(line, words[4], words[5]), client);
+        }
+        return null;
+    }
+
+    /**
+     * Checks a command's key, and its values for a write that has them, the way the server does
+     * @param command the command
+     * @return null if the server would accept it, otherwise the status it would reject it with
+     */
+    public static Result.Status check(Command command) {
+        boolean goodKey = isAlphaNumeric(command.getKey());
+        byte op = command.getOp();
+        if (op == Command.GET || op == Command.DELETE) {
+            return goodKey ? null : Result.Status.BAD_KEY;
+        }
+        boolean goodValue = op == Command.INCREMENT ? command.getValue() != BAD_DELTA
+                : command.getValue() >= 0 && (op != Command.COMPARE_AND_SET || command.getExpected() >= 0);
+        if (goodKey && goodValue) {
+            return null;
+        }
+        return !goodKey && !goodValue ? Result.Status.BAD_KEY_AND_VALUE : !goodKey ? Result.Status.BAD_KEY : Result.Status.BAD_VALUE;
+    }
+
+    /**
+     * Checks a transaction's keys and values. Whether its DELETEs' keys exist can only be checked by the server.
+     * @param transaction the transaction
+     * @return null if its keys and values are fine, otherwise BAD_ARGUMENTS if it is empty, or BAD_KEY or
+     *         BAD_VALUE with the index of the first bad operation; see Result.describe(Transaction)
+     */
+    public static Result check(Transaction transaction) {
+        if (transaction == null || transaction.size() == 0) {
+            return new Result(Result.Status.BAD_ARGUMENTS, 0);
+        }
+        List<Transaction.Operation> operations = transaction.getOperations();
+        for (int i = 0; i < operations.size(); i++) {
+            Transaction.Operation operation = operations.get(i);
+            if (!isAlphaNumeric(operation.getKey())) {
+                return new Result(Result.Status.BAD_KEY, i);
+            }
+            if (operation.getOp() == WriteAheadLog.PUT && operation.getValue() < 0) {
+                return new Result(Result.Status.BAD_VALUE, i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first word of a line, e.g. "PUT" for "PUT Tom 70000"
+     * @param line what the user typed
+     * @return the first word, or "" for a blank line
+     */
+    public static String firstWord(String line) {
+        int start = 0;
+        while (start < line.length() && line.charAt(start) == ' ') {
+            start++;
+        }
+        int end = start;
+        while (end < line.length() && line.charAt(end) != ' ') {
+            end++;
+        }
+        return line.substring(start, end);
+    }
+
+    private static boolean isWord(String line, int[] words, int index, String word) {
+        int start = words[2 * index];
+        return words[2 * index + 1] - start == word.length() && line.regionMatches(start, word, 0, word.length());
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CommitLog. The coordinator's in-memory record of its most recent commits, numbered in the order they were
+ * sent to the servers, from which a server that missed some of them is brought level, see CatchUp. A commit
+ * gets its sequence number while its round holds its keys' locks, so commits that share a key are numbered in
+ * the order they were applied, and replaying the log in order leaves a server with the same map as the others.
+ *
+ * The log keeps at most maxOperations PUTs and DELETEs and forgets the oldest commits beyond that, so a server
+ * that is further behind has to be sent a whole copy of a map instead.
+ */
+public class CommitLog {
+
+    private final int maxOperations;
+    private Transaction[] ring = new Transaction[1024]; // commit n is at (n - 1) % ring.length
+    private int count;
+    private long oldest = 1;
+    private long operations;
+
+    /**
+     * @param maxOperations most PUTs and DELETEs to keep
+     */
+    public CommitLog(int maxOperations) {
+        this.maxOperations = Math.max(1, maxOperations);
+    }
+
+    /**
+     * Records a commit
+     * @param transaction the commit's PUTs and DELETEs
+     * @return its sequence number
+     */
+    public synchronized long append(Transaction transaction) {
+        if (count == ring.length) {
+            grow();
+        }
+        long sequence = oldest + count;
+        ring[slot(sequence)] = transaction;
+        count++;
+        operations += transaction.size();
+        while (operations > maxOperations && count > 1) {
+            operations -= ring[slot(oldest)].size();
+            ring[slot(oldest)] = null;
+            oldest++;
+            count--;
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns the sequence number the next commit will get
+     * @return next sequence number
+     */
+    public synchronized long nextSequence() {
+        return oldest + count;
+    }
+
+    /**
+     * Returns the oldest commit still in the log
+     * @return its sequence number
+     */
+    public synchronized long oldestSequence() {
+        return oldest;
+    }
+
+    /**
+     * Returns commits from a sequence number on, as many as fit in maxOperations, but at least one
+     * @param from sequence number of the first commit wanted
+     * @param maxOperations most PUTs and DELETEs to return
+     * @return the commits in order, empty if there are none from there yet, or null if the first of them has
+     *         already been dropped from the log
+     */
+    public synchronized List<Transaction> read(long from, int maxOperations) {
+        if (from < oldest) {
+            return null;
+        }
+        List<Transaction> read = new ArrayList<>();
+        int size = 0;
+        for (long sequence = from; sequence < oldest + count; sequence++) {
+            Transaction commit = ring[slot(sequence)];
+            if (!read.isEmpty() && size + commit.size() > maxOperations) {
+                break;
+            }
+            read.add(commit);
+            size += commit.size();
+        }
+        return read;
+    }
+
+    private int slot(long sequence) {
+        return (int) ((sequence - 1) % ring.length);
+    }
+
+    private void grow() {
+        Transaction[] bigger = new Transaction[ring.length * 2];
+        for (long sequence = oldest; sequence < oldest + count; sequence++) {
+            bigger[(int) ((sequence - 1) % bigger.length)] = ring[slot(sequence)];
+        }
+        ring = bigger;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "commits " + oldest + ".." + (nextSequence() - 1) + ", " + operations + " operations";
+    }
+}
@@ -0,0 +1,543 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * CompactStringIntMap. An open-addressing map from employee name to salary that keeps everything in a
+ * handful of flat arrays instead of a HashMap.Node, a String and a boxed Integer per entry.
+ *
+ * Each entry lives in one shared byte arena as [varint key length][key bytes][4 byte value]. Alphanumeric
+ * keys are almost always ASCII, so that is one byte per character. The hash table itself is just an int
+ * offset into the arena plus a one byte tag taken from the key's hash, which lets a probe skip almost every
+ * non-matching slot without touching the arena. Collisions use linear probing, and removes use
+ * backward-shift deletion, so there are no tombstones. Values must be non-negative, since -1 is reserved
+ * for "missing".
+ *
+ * Not thread safe. ReplicaStore guards each map with a lock, but get is written so that a reader racing
+ * a writer never loops forever or throws; it just may return garbage, which the caller has to discard
+ * after validating its lock stamp.
+ */
+public class CompactStringIntMap {
+
+    /** Returned by get when a key is not in the map */
+    public static final int MISSING = -1;
+
+    /**
+     * Receives entries decoded by forEachEntry
+     */
+    public interface EntryVisitor {
+        void visit(String key, int value);
+    }
+
+    private static final byte EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+    private static final int VALUE_BYTES = 4;
+
+    private byte[] tags;
+    private int[] offsets;
+    private byte[] arena;
+    private int arenaUsed;
+    private int arenaGarbage;
+    private int size;
+    private int threshold;
+
+    public CompactStringIntMap() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize how many keys we expect to hold, used to pre-size the table and arena
+     */
+    public CompactStringIntMap(int expectedSize) {
+        int capacity = tableSizeFor((int) Math.min(1 << 30, expectedSize * 4L / 3 + 1));
+        this.tags = new byte[capacity];
+        this.offsets = new int[capacity];
+        this.arena = new byte[(int) Math.max(64, Math.min(1 << 30, expectedSize * 16L))];
+        this.threshold = capacity * 3 / 4;
+    }
+
+    /**
+     * Computes the hash that the map uses for a key. Exposed so that ReplicaStore can pick a stripe with
+     * the same hash instead of hashing the key twice.
+     * @param key employee name
+     * @return hash of the key's bytes
+     */
+    public static int hash(String key) {
+        int h = 0x811c9dc5; // FNV-1a over the key's bytes
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                return hash(bytes, 0, bytes.length);
+            }
+            h = (h ^ c) * 0x01000193;
+        }
+        return finish(h);
+    }
+
+    /**
+     * Computes the same hash as hash(String), from a key's UTF-8 bytes
+     * @param bytes array holding the key
+     * @param start where the key starts
+     * @param length key length in bytes
+     * @return hash of the key's bytes
+     */
+    public static int hash(byte[] bytes, int start, int length) {
+        int h = 0x811c9dc5;
+        for (int i = start; i < start + length; i++) {
+            h = (h ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        return finish(h);
+    }
+
+    private static int finish(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private static byte tag(int hash) {
+        // the index uses the low bits and stripes use the high ones, so remix before taking 7 bits
+        return (byte) (((hash * 0x9e3779b9) >>> 25) | 0x80);
+    }
+
+    /**
+     * Returns the value stored for a key
+     * @param key employee name
+     * @return the value, or MISSING if the key is not in the map
+     */
+    public int get(String key) {
+        return get(key, hash(key));
+    }
+
+    /**
+     * Returns the value stored for a key whose hash the caller already computed
+     * @param key employee name
+     * @param hash hash(key)
+     * @return the value, or MISSING if the key is not in the map
+     */
+    public int get(String key, int hash) {
+        // read every field once, a racing rehash may swap them underneath us
+        byte[] tags = this.tags;
+        int[] offsets = this.offsets;
+        byte[] arena = this.arena;
+        if (offsets.length != tags.length) {
+            return MISSING;
+        }
+        int mask = tags.length - 1;
+        byte tag = tag(hash);
+        int i = hash & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            byte t = tags[i];
+            if (t == EMPTY) {
+                return MISSING;
+            }
+            if (t == tag) {
+                int valueAt = matchKey(arena, offsets[i], key);
+                if (valueAt >= 0) {
+                    return readValue(arena, valueAt);
+                }
+            }
+            i = (i + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    /**
+     * Puts a key-value pair into the map, replacing any old value
+     * @param key employee name
+     * @param value employee salary, must be non-negative
+     * @return the old value, or MISSING if the key was not in the map
+     */
+    public int put(String key, int value) {
+        return put(key, hash(key), value);
+    }
+
+    /**
+     * Puts a key-value pair into the map, for a key whose hash the caller already computed
+     * @param key employee name
+     * @param hash hash(key)
+     * @param value employee salary, must be non-negative
+     * @return the old value, or MISSING if the key was not in the map
+     */
+    public int put(String key, int hash, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value must be a non-negative integer: " + value);
+        }
+        int slot = findSlot(key, hash);
+        if (tags[slot] != EMPTY) {
+            int valueAt = matchKey(arena, offsets[slot], key);
+            int old = readValue(arena, valueAt);
+            writeValue(arena, valueAt, value);
+            return old;
+        }
+        byte[] bytes = encode(key);
+        int needed = lengthBytes(bytes.length) + bytes.length + VALUE_BYTES;
+        if (size + 1 > threshold) {
+            rehash(tags.length * 2, needed);
+            slot = findSlot(key, hash);
+        } else if (arenaUsed + needed > arena.length && makeRoom(needed)) {
+            slot = findSlot(key, hash);
+        }
+        // write the entry before publishing the tag, so a racing reader never sees half a slot
+        offsets[slot] = append(bytes, 0, bytes.length, value);
+        tags[slot] = tag(hash);
+        size++;
+        return MISSING;
+    }
+
+    /**
+     * Puts a key-value pair into the map from the key's UTF-8 bytes, so bulk loads don't build a String per key
+     * @param key array holding the key
+     * @param start where the key starts
+     * @param length key length in bytes
+     * @param hash hash(key, start, length)
+     * @param value employee salary, must be non-negative
+     * @return the old value, or MISSING if the key was not in the map
+     */
+    public int putEncoded(byte[] key, int start, int length, int hash, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value must be a non-negative integer: " + value);
+        }
+        int slot = findSlot(key, start, length, hash);
+        if (tags[slot] != EMPTY) {
+            int valueAt = matchKey(arena, offsets[slot], key, start, length);
+            int old = readValue(arena, valueAt);
+            writeValue(arena, valueAt, value);
+            return old;
+        }
+        int needed = lengthBytes(length) + length + VALUE_BYTES;
+        if (size + 1 > threshold) {
+            rehash(tags.length * 2, needed);
+            slot = findSlot(key, start, length, hash);
+        } else if (arenaUsed + needed > arena.length && makeRoom(needed)) {
+            slot = findSlot(key, start, length, hash);
+        }
+        offsets[slot] = append(key, start, length, value);
+        tags[slot] = tag(hash);
+        size++;
+        return MISSING;
+    }
+
+    /**
+     * Copies every entry out of the map in its arena format, [varint key length][key bytes][4 byte value],
+     * with no gaps. Used for snapshots, since putEncoded can load the entries straight back.
+     * @return the entries, back to back
+     */
+    public byte[] copyEntries() {
+        // copy in arena (insertion) order rather than slot order: a table that gets its keys back in slot
+        // order, i.e. sorted by hash, piles them all into one long probe run
+        int[] live = new int[size];
+        int n = 0;
+        for (int s = 0; s < tags.length; s++) {
+            if (tags[s] != EMPTY) {
+                live[n++] = offsets[s];
+            }
+        }
+        Arrays.sort(live);
+        byte[] copy = new byte[arenaUsed - arenaGarbage];
+        int used = 0;
+        for (int offset : live) {
+            int length = readLength(arena, offset);
+            int entryLength = lengthBytes(length) + length + VALUE_BYTES;
+            System.arraycopy(arena, offset, copy, used, entryLength);
+            used += entryLength;
+        }
+        return copy;
+    }
+
+    /**
+     * Decodes entries in the format copyEntries writes
+     * @param entries the entries, back to back
+     * @param visitor receives each key and value in turn
+     */
+    public static void forEachEntry(byte[] entries, EntryVisitor visitor) {
+        forEachEntry(entries, 0, Integer.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Decodes some of the entries in the format copyEntries writes, for reading them a chunk at a time
+     * @param entries the entries, back to back
+     * @param offset where the first entry to decode starts
+     * @param maxEntries most entries to decode
+     * @param visitor receives each key and value in turn
+     * @return where the next entry starts, entries.length once all of them have been read
+     */
+    public static int forEachEntry(byte[] entries, int offset, int maxEntries, EntryVisitor visitor) {
+        int at = offset;
+        for (int n = 0; n < maxEntries && at < entries.length; n++) {
+            int length = readLength(entries, at);
+            int keyStart = at + lengthBytes(length);
+            visitor.visit(new String(entries, keyStart, length, StandardCharsets.UTF_8), readValue(entries, keyStart + length));
+            at = keyStart + length + VALUE_BYTES;
+        }
+        return at;
+    }
+
+    /**
+     * Grows the table and arena ahead of time so that inserting up to expectedSize keys doesn't rehash
+     * @param expectedSize number of keys the map is about to hold
+     * @param expectedArenaBytes bytes those keys take up in the arena
+     */
+    public void ensureCapacity(int expectedSize, long expectedArenaBytes) {
+        int capacity = tableSizeFor((int) Math.min(1 << 30, expectedSize * 4L / 3 + 1));
+        int extra = (int) Math.min(1 << 30, Math.max(0, expectedArenaBytes - (arena.length - arenaUsed)));
+        if (capacity > tags.length || extra > 0) {
+            rehash(Math.max(capacity, tags.length), extra);
+        }
+    }
+
+    /**
+     * Removes a key from the map
+     * @param key employee name
+     * @return the removed value, or MISSING if the key was not in the map
+     */
+    public int remove(String key) {
+        return remove(key, hash(key));
+    }
+
+    /**
+     * Removes a key whose hash the caller already computed
+     * @param key employee name
+     * @param hash hash(key)
+     * @return the removed value, or MISSING if the key was not in the map
+     */
+    public int remove(String key, int hash) {
+        int slot = findSlot(key, hash);
+        if (tags[slot] == EMPTY) {
+            return MISSING;
+        }
+        int valueAt = matchKey(arena, offsets[slot], key);
+        int old = readValue(arena, valueAt);
+        arenaGarbage += valueAt + VALUE_BYTES - offsets[slot];
+        // backward-shift deletion: pull later entries of the probe chain into the hole
+        int mask = tags.length - 1;
+        int hole = slot;
+        int i = (slot + 1) & mask;
+        while (tags[i] != EMPTY) {
+            int home = hashAt(offsets[i]) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                tags[hole] = tags[i];
+                offsets[hole] = offsets[i];
+                hole = i;
+            }
+            i = (i + 1) & mask;
+        }
+        tags[hole] = EMPTY;
+        size--;
+        return old;
+    }
+
+    /**
+     * Returns the number of keys in the map
+     * @return number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns roughly how many bytes of heap the map's arrays take up
+     * @return approximate footprint in bytes
+     */
+    public long footprintBytes() {
+        return 5L * tags.length + arena.length;
+    }
+
+    /**
+     * Removes every key from the map
+     */
+    public void clear() {
+        Arrays.fill(tags, EMPTY);
+        arenaUsed = 0;
+        arenaGarbage = 0;
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < tags.length; i++) {
+            if (tags[i] != EMPTY) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                int offset = offsets[i];
+                int length = readLength(arena, offset);
+                int start = offset + lengthBytes(length);
+                sb.append(new String(arena, start, length, StandardCharsets.UTF_8))
+                        .append('=').append(readValue(arena, start + length));
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private int findSlot(String key, int hash) {
+        int mask = tags.length - 1;
+        byte tag = tag(hash);
+        int i = hash & mask;
+        while (tags[i] != EMPTY && !(tags[i] == tag && matchKey(arena, offsets[i], key) >= 0)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private int findSlot(byte[] key, int start, int length, int hash) {
+        int mask = tags.length - 1;
+        byte tag = tag(hash);
+        int i = hash & mask;
+        while (tags[i] != EMPTY && !(tags[i] == tag && matchKey(arena, offsets[i], key, start, length) >= 0)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private int hashAt(int offset) {
+        int length = readLength(arena, offset);
+        return hash(arena, offset + lengthBytes(length), length);
+    }
+
+    private boolean makeRoom(int needed) {
+        if (arenaGarbage >= arenaUsed / 2) {
+            rehash(tags.length, needed); // squeezes out the bytes of removed keys
+            return true;
+        }
+        arena = Arrays.copyOf(arena, Math.max(arena.length + needed, arena.length + (arena.length >> 1)));
+        return false;
+    }
+
+    private void rehash(int capacity, int extraArena) {
+        byte[] newTags = new byte[capacity];
+        int[] newOffsets = new int[capacity];
+        int live = arenaUsed - arenaGarbage;
+        byte[] newArena = new byte[Math.max(64, live + extraArena + (live >> 2))];
+        int used = 0;
+        int mask = capacity - 1;
+        for (int s = 0; s < tags.length; s++) {
+            if (tags[s] == EMPTY) {
+                continue;
+            }
+            int offset = offsets[s];
+            int length = readLength(arena, offset);
+            int start = offset + lengthBytes(length);
+            int entryLength = start + length + VALUE_BYTES - offset;
+            System.arraycopy(arena, offset, newArena, used, entryLength);
+            int i = hash(arena, start, length) & mask;
+            while (newTags[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            newTags[i] = tags[s];
+            newOffsets[i] = used;
+            used += entryLength;
+        }
+        // publish the arena before the tables so readers never index past its end
+        this.arena = newArena;
+        this.offsets = newOffsets;
+        this.tags = newTags;
+        this.arenaUsed = used;
+        this.arenaGarbage = 0;
+        this.threshold = capacity * 3 / 4;
+    }
+
+    private int append(byte[] bytes, int start, int length, int value) {
+        int offset = arenaUsed;
+        int pos = offset;
+        int prefix = length;
+        while (prefix >= 0x80) { // varint length prefix, one byte for keys under 128 bytes
+            arena[pos++] = (byte) (prefix | 0x80);
+            prefix >>>= 7;
+        }
+        arena[pos++] = (byte) prefix;
+        System.arraycopy(bytes, start, arena, pos, length);
+        pos += length;
+        writeValue(arena, pos, value);
+        arenaUsed = pos + VALUE_BYTES;
+        return offset;
+    }
+
+    private static byte[] encode(String key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) >= 0x80) {
+                return key.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        return key.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Compares the entry at offset against a key
+     * @return where the entry's value starts in the arena, or -1 if the entry holds a different key
+     */
+    private static int matchKey(byte[] arena, int offset, String key) {
+        int length = readLength(arena, offset);
+        int start = offset + lengthBytes(length);
+        if (length < 0 || start < 0 || start + length + VALUE_BYTES > arena.length) {
+            return -1; // only happens to a reader racing a writer
+        }
+        if (length == key.length()) {
+            for (int i = 0; i < length; i++) {
+                char c = key.charAt(i);
+                if (c >= 0x80) {
+                    return utf8Equals(arena, start, length, key) ? start + length : -1;
+                }
+                if (arena[start + i] != c) {
+                    return -1;
+                }
+            }
+            return start + length;
+        }
+        // different lengths can still match when the key has multi-byte characters
+        return length > key.length() && utf8Equals(arena, start, length, key) ? start + length : -1;
+    }
+
+    private static int matchKey(byte[] arena, int offset, byte[] key, int keyStart, int keyLength) {
+        int length = readLength(arena, offset);
+        int start = offset + lengthBytes(length);
+        if (length != keyLength || start + length + VALUE_BYTES > arena.length) {
+            return -1;
+        }
+        return Arrays.equals(arena, start, start + length, key, keyStart, keyStart + keyLength) ? start + length : -1;
+    }
+
+    private static boolean utf8Equals(byte[] arena, int start, int length, String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return bytes.length == length && Arrays.equals(arena, start, start + length, bytes, 0, length);
+    }
+
+    private static int readValue(byte[] arena, int at) {
+        return (arena[at] & 0xff) << 24 | (arena[at + 1] & 0xff) << 16 | (arena[at + 2] & 0xff) << 8 | (arena[at + 3] & 0xff);
+    }
+
+    private static void writeValue(byte[] arena, int at, int value) {
+        arena[at] = (byte) (value >>> 24);
+        arena[at + 1] = (byte) (value >>> 16);
+        arena[at + 2] = (byte) (value >>> 8);
+        arena[at + 3] = (byte) value;
+    }
+
+    private static int readLength(byte[] arena, int offset) {
+        int length = 0;
+        int shift = 0;
+        for (int pos = offset; pos >= 0 && pos < arena.length && shift < 32; pos++, shift += 7) {
+            byte b = arena[pos];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return length;
+            }
+        }
+        return -1;
+    }
+
+    private static int lengthBytes(int length) {
+        int n = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static int tableSizeFor(int n) {
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, n - 1)) << 1);
+    }
+}
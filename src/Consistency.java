@@ -0,0 +1,48 @@
+/**
+ * Consistency. How many servers a GET consults before it answers, trading latency for freshness.
+ */
+public enum Consistency {
+    /** The server the client called answers from its own map, without locking; the fastest, may lag a commit */
+    ONE,
+    /** Every server is asked at once and the GET answers as soon as a majority of them agree on the value */
+    QUORUM,
+    /** Every server must answer with the same value, while the coordinator holds the key's lock so that no
+     *  commit on it is half applied */
+    ALL;
+
+    private static final Consistency[] VALUES = values();
+
+    /**
+     * Returns how many servers have to agree on a value
+     * @param servers number of servers
+     * @return servers that must agree
+     */
+    public int required(int servers) {
+        switch (this) {
+            case ONE:
+                return 1;
+            case QUORUM:
+                return servers / 2 + 1;
+            default:
+                return servers;
+        }
+    }
+
+    /**
+     * Looks a level up by the name a user types
+     * @param name "ONE", "QUORUM" or "ALL"
+     * @return the level, or null if there is no such level
+     */
+    public static Consistency parse(String name) {
+        for (Consistency level : VALUES) {
+            if (level.name().equals(name)) {
+                return level;
+            }
+        }
+        return null;
+    }
+
+    static Consistency of(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
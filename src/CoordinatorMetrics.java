@@ -0,0 +1,206 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CoordinatorMetrics. Counts and times the coordinator's voting and commit rounds for JMX, see
+ * CoordinatorMetricsMBean. Like ServerMetrics it only uses LongAdders and LatencyHistograms, so the rounds
+ * never wait on the metrics.
+ */
+public class CoordinatorMetrics implements CoordinatorMetricsMBean {
+
+    final LongAdder rounds = new LongAdder();
+    final LongAdder aborts = new LongAdder();
+    final LongAdder voteTimeouts = new LongAdder();
+    final LongAdder commitTimeouts = new LongAdder();
+    final LongAdder readTimeouts = new LongAdder();
+    final LongAdder commitRetries = new LongAdder();
+    final LongAdder commitFailures = new LongAdder();
+    final LongAdder keyLockWaitNanos = new LongAdder();
+    final LongAdder skippedCalls = new LongAdder();
+    final LatencyHistogram voteLatency;
+    final LatencyHistogram commitLatency;
+    final LatencyHistogram commitPhaseLatency = new LatencyHistogram();
+    private final FailureDetector failureDetector;
+    private final CatchUp catchUp;
+    private final Map<Integer, LatencyHistogram> participants = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param voteLatency the coordinator's histogram of voting rounds
+     * @param commitLatency the coordinator's histogram of commit attempts
+     * @param failureDetector the coordinator's failure detector
+     * @param catchUp what brings the coordinator's fenced servers back
+     */
+    public CoordinatorMetrics(LatencyHistogram voteLatency, LatencyHistogram commitLatency, FailureDetector failureDetector,
+                              CatchUp catchUp) {
+        this.voteLatency = voteLatency;
+        this.commitLatency = commitLatency;
+        this.failureDetector = failureDetector;
+        this.catchUp = catchUp;
+    }
+
+    /**
+     * Returns the histogram of one server's vote latency
+     * @param server server number, from 1
+     * @return its histogram
+     */
+    LatencyHistogram participant(int server) {
+        LatencyHistogram histogram = participants.get(server);
+        return histogram != null ? histogram : participants.computeIfAbsent(server, number -> new LatencyHistogram());
+    }
+
+    @Override
+    public long getConsensusRounds() {
+        return rounds.sum();
+    }
+
+    @Override
+    public long getAborts() {
+        return aborts.sum();
+    }
+
+    @Override
+    public double getAbortRate() {
+        long total = rounds.sum();
+        return total == 0 ? 0 : (double) aborts.sum() / total;
+    }
+
+    @Override
+    public long getVoteTimeouts() {
+        return voteTimeouts.sum();
+    }
+
+    @Override
+    public long getCommitTimeouts() {
+        return commitTimeouts.sum();
+    }
+
+    @Override
+    public long getReadTimeouts() {
+        return readTimeouts.sum();
+    }
+
+    @Override
+    public long getCommitRetries() {
+        return commitRetries.sum();
+    }
+
+    @Override
+    public long getCommitFailures() {
+        return commitFailures.sum();
+    }
+
+    @Override
+    public long getKeyLockWaitMicros() {
+        return keyLockWaitNanos.sum() / 1000;
+    }
+
+    @Override
+    public long getSkippedCalls() {
+        return skippedCalls.sum();
+    }
+
+    @Override
+    public long getFencedServers() {
+        return failureDetector.fencedCount();
+    }
+
+    @Override
+    public String getFailureDetector() {
+        return failureDetector.toString();
+    }
+
+    @Override
+    public long getCatchUpsCompleted() {
+        return catchUp.completed.sum();
+    }
+
+    @Override
+    public long getCatchUpsFromSnapshot() {
+        return catchUp.fromSnapshot.sum();
+    }
+
+    @Override
+    public long getCatchUpOperationsSent() {
+        return catchUp.operationsSent.sum();
+    }
+
+    @Override
+    public long getCatchUpEntriesCopied() {
+        return catchUp.entriesCopied.sum();
+    }
+
+    @Override
+    public long getCatchUpFailures() {
+        return catchUp.failures.sum();
+    }
+
+    @Override
+    public String getCatchUpLag() {
+        return catchUp.lag();
+    }
+
+    @Override
+    public double getVoteLatencyP50Micros() {
+        return voteLatency.percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getVoteLatencyP99Micros() {
+        return voteLatency.percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getCommitPhaseP50Micros() {
+        return commitPhaseLatency.percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getCommitPhaseP99Micros() {
+        return commitPhaseLatency.percentile(99) / 1e3;
+    }
+
+    @Override
+    public String getParticipantVoteLatency() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<Integer, LatencyHistogram> participant : participants.entrySet()) {
+            if (out.length() > 0) {
+                out.append("; ");
+            }
+            out.append("Server").append(participant.getKey()).append(' ').append(participant.getValue().summary());
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String getLatencySummary() {
+        return "vote rounds " + voteLatency.summary() + "; commit attempts " + commitLatency.summary()
+                + "; commit phases " + commitPhaseLatency.summary();
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder counter : new LongAdder[] {rounds, aborts, voteTimeouts, commitTimeouts, readTimeouts, commitRetries,
+                commitFailures, keyLockWaitNanos, skippedCalls, catchUp.completed, catchUp.fromSnapshot, catchUp.operationsSent,
+                catchUp.entriesCopied, catchUp.failures}) {
+            counter.reset();
+        }
+        voteLatency.reset();
+        commitLatency.reset();
+        commitPhaseLatency.reset();
+        for (LatencyHistogram histogram : participants.values()) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("rounds=%d aborts=%d (%.2f%%) voteTimeouts=%d commitTimeouts=%d readTimeouts=%d commitRetries=%d"
+                        + " commitFailures=%d keyLockWait=%s skippedCalls=%d fencedServers=%d catchUps=%d (%d from snapshot)"
+                        + " catchUpOperations=%d catchUpCopied=%d catchUpFailures=%d%n  %s%n  %s%n  %s%n  %s", getConsensusRounds(),
+                getAborts(), 100 * getAbortRate(), getVoteTimeouts(), getCommitTimeouts(), getReadTimeouts(), getCommitRetries(),
+                getCommitFailures(), LatencyHistogram.format(keyLockWaitNanos.sum()), getSkippedCalls(), getFencedServers(),
+                getCatchUpsCompleted(), getCatchUpsFromSnapshot(), getCatchUpOperationsSent(), getCatchUpEntriesCopied(),
+                getCatchUpFailures(), getLatencySummary(), getParticipantVoteLatency(), getFailureDetector(), getCatchUpLag());
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * CoordinatorMetricsMBean. What JMX shows of the coordinator's CoordinatorMetrics, under
+ * "RMIServerClient:type=Coordinator". Latencies are in microseconds.
+ */
+public interface CoordinatorMetricsMBean {
+
+    /** @return voting rounds run, one per batch of writes or transaction */
+    long getConsensusRounds();
+
+    /** @return voting rounds in which the servers didn't all agree */
+    long getAborts();
+
+    /** @return aborts as a fraction of voting rounds */
+    double getAbortRate();
+
+    /** @return votes that didn't arrive within the round timeout */
+    long getVoteTimeouts();
+
+    /** @return commits a server didn't ack within the round timeout */
+    long getCommitTimeouts();
+
+    /** @return QUORUM and ALL reads that timed out before enough servers answered */
+    long getReadTimeouts();
+
+    /** @return commits sent to a server again after it failed or timed out */
+    long getCommitRetries();
+
+    /** @return commit phases that still weren't acked by every server after all retries */
+    long getCommitFailures();
+
+    /** @return total time rounds and ALL reads waited for key locks, in microseconds */
+    long getKeyLockWaitMicros();
+
+    /** @return votes, commits and reads not sent to a server because it was suspected or fenced */
+    long getSkippedCalls();
+
+    /** @return servers currently fenced out of rounds after missing a commit */
+    long getFencedServers();
+
+    /** @return each server's phi and timeout, and whether it is suspected or fenced */
+    String getFailureDetector();
+
+    /** @return fenced servers brought back by sending them what they missed */
+    long getCatchUpsCompleted();
+
+    /** @return catch-ups that had to copy another server's map because the commit log didn't go back far enough */
+    long getCatchUpsFromSnapshot();
+
+    /** @return PUTs and DELETEs replayed from the commit log to fenced servers */
+    long getCatchUpOperationsSent();
+
+    /** @return entries copied to fenced servers from other servers' maps */
+    long getCatchUpEntriesCopied();
+
+    /** @return catch-up attempts that failed and will be retried */
+    long getCatchUpFailures();
+
+    /** @return how many commits behind each fenced server is, and what its catch-up is doing */
+    String getCatchUpLag();
+
+    /** @return median voting round latency */
+    double getVoteLatencyP50Micros();
+
+    /** @return 99th percentile voting round latency */
+    double getVoteLatencyP99Micros();
+
+    /** @return median commit phase duration, retries included */
+    double getCommitPhaseP50Micros();
+
+    /** @return 99th percentile commit phase duration, retries included */
+    double getCommitPhaseP99Micros();
+
+    /** @return summary of the vote latency of each server */
+    String getParticipantVoteLatency();
+
+    /** @return summary of the voting round, commit attempt and commit phase histograms */
+    String getLatencySummary();
+
+    /**
+     * Forgets everything counted so far
+     */
+    void reset();
+}
@@ -0,0 +1,239 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventLog. The servers' request log, kept off the request path. A handler only claims a slot in a ring
+ * buffer and fills in the event's parts: no date formatting, no string building and no console I/O. A
+ * background thread turns the events into the usual "Timestamp=... (From client server:N) message" lines and
+ * writes them out in batches.
+ *
+ * A message may contain up to two "{}" placeholders, filled in by the event's key and then its number. When
+ * the buffer is full the event is dropped rather than making the handler wait, and the writer notes how many
+ * were lost. The level is set with the "log.level" system property (OFF, WARN or INFO, default INFO) and the
+ * buffer size with "log.bufferSize" (default 8192 events).
+ */
+public final class EventLog {
+
+    /**
+     * How much gets logged; each level includes the ones before it
+     */
+    public enum Level {
+        OFF, WARN, INFO
+    }
+
+    private static final class Event {
+        volatile long sequence = -1; // which claim this slot was last published for
+        long timeMillis;
+        int server;
+        String client;
+        String message;
+        String key;
+        long number;
+        boolean hasNumber;
+    }
+
+    private static final Level LEVEL = parseLevel(System.getProperty("log.level", "INFO"));
+    private static final Event[] RING;
+    private static final int MASK;
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long written;
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        int size = Integer.highestOneBit(Math.max(2, Integer.getInteger("log.bufferSize", 8192) - 1)) << 1;
+        RING = new Event[size];
+        for (int i = 0; i < size; i++) {
+            RING[i] = new Event();
+        }
+        MASK = size - 1;
+        if (LEVEL != Level.OFF) {
+            Thread writer = new Thread(EventLog::drainForever, "event-log");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(EventLog::flush, "event-log-flush"));
+        }
+    }
+
+    private EventLog() {
+    }
+
+    /**
+     * Returns whether events at a level are being logged
+     * @param level level to check
+     * @return true if they are
+     */
+    public static boolean isEnabled(Level level) {
+        return level != Level.OFF && level.ordinal() <= LEVEL.ordinal();
+    }
+
+    /**
+     * Logs a routine event
+     * @param server server number
+     * @param client who sent the request, e.g. "127.0.0.1 32000"
+     * @param message what happened
+     */
+    public static void info(int server, String client, String message) {
+        log(Level.INFO, server, client, message, null, 0, false);
+    }
+
+    /**
+     * Logs a routine event about a key
+     * @param server server number
+     * @param client who sent the request
+     * @param message what happened, with "{}" where the key goes
+     * @param key the key
+     */
+    public static void info(int server, String client, String message, String key) {
+        log(Level.INFO, server, client, message, key, 0, false);
+    }
+
+    /**
+     * Logs a routine event about a number, such as how many operations a transaction had
+     * @param server server number
+     * @param client who sent the request
+     * @param message what happened, with "{}" where the number goes
+     * @param number e.g. an operation count
+     */
+    public static void info(int server, String client, String message, long number) {
+        log(Level.INFO, server, client, message, null, number, true);
+    }
+
+    /**
+     * Logs a routine event about a key and a number
+     * @param server server number
+     * @param client who sent the request
+     * @param message what happened, with "{}" where the key goes and then "{}" where the number goes
+     * @param key the key
+     * @param number e.g. the key's value
+     */
+    public static void info(int server, String client, String message, String key, long number) {
+        log(Level.INFO, server, client, message, key, number, true);
+    }
+
+    /**
+     * Logs something that went wrong
+     * @param server server number
+     * @param client who sent the request
+     * @param message what happened
+     */
+    public static void warn(int server, String client, String message) {
+        log(Level.WARN, server, client, message, null, 0, false);
+    }
+
+    /**
+     * Logs something that went wrong with a key
+     * @param server server number
+     * @param client who sent the request
+     * @param message what happened, with "{}" where the key goes
+     * @param key the key
+     */
+    public static void warn(int server, String client, String message, String key) {
+        log(Level.WARN, server, client, message, key, 0, false);
+    }
+
+    /**
+     * Returns how many events were dropped because the buffer was full
+     * @return dropped events
+     */
+    public static long droppedEvents() {
+        return dropped.sum();
+    }
+
+    /**
+     * Blocks until every event logged so far has been written out, or a second has passed
+     */
+    public static void flush() {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (LEVEL != Level.OFF && written < target && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static void log(Level level, int server, String client, String message, String key, long number, boolean hasNumber) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - written >= RING.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        Event event = RING[(int) sequence & MASK];
+        event.timeMillis = System.currentTimeMillis();
+        event.server = server;
+        event.client = client;
+        event.message = message;
+        event.key = key;
+        event.number = number;
+        event.hasNumber = hasNumber;
+        event.sequence = sequence; // publishes the fields above to the writer
+    }
+
+    private static void drainForever() {
+        StringBuilder out = new StringBuilder(64 * 1024);
+        long reportedDrops = 0;
+        while (true) {
+            long next = written;
+            while (out.length() < 60 * 1024) {
+                Event event = RING[(int) next & MASK];
+                if (event.sequence != next) {
+                    break; // not published yet
+                }
+                format(out, event);
+                event.client = null;
+                event.key = null;
+                next++;
+            }
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                out.append("(log buffer full, ").append(drops - reportedDrops).append(" events dropped)").append(System.lineSeparator());
+                reportedDrops = drops;
+            }
+            if (out.length() > 0) {
+                PrintStream console = System.out; // looked up each time, so System.setOut still works
+                console.print(out);
+                console.flush();
+                out.setLength(0);
+            }
+            if (next == written) {
+                LockSupport.parkNanos(1_000_000);
+            }
+            written = next;
+        }
+    }
+
+    private static void format(StringBuilder out, Event event) {
+        out.append("Timestamp=");
+        CachedClock.append(out, event.timeMillis);
+        out.append(" (From ").append(event.client).append(" server:").append(event.server).append(") ");
+        String message = event.message;
+        int start = 0;
+        int argument = event.key == null ? 1 : 0;
+        int placeholder;
+        while ((placeholder = message.indexOf("{}", start)) >= 0) {
+            out.append(message, start, placeholder);
+            if (argument == 0) {
+                out.append(event.key);
+            } else if (event.hasNumber) {
+                out.append(event.number);
+            }
+            argument++;
+            start = placeholder + 2;
+        }
+        out.append(message, start, message.length()).append(System.lineSeparator());
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
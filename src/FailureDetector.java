@@ -0,0 +1,273 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * FailureDetector. Tells RunCoordinator which servers to leave out of its rounds and how long to wait for the
+ * others, so a server that hangs costs a round a few milliseconds instead of the whole round timeout.
+ *
+ * Each watched server is pinged every heartbeatMillis from a thread of its own, so a ping that hangs only holds
+ * up that server's heartbeats. Suspicion is phi accrual (Hayashibara et al., "The phi Accrual Failure Detector",
+ * as in Cassandra and Akka): the gaps between a server's recent heartbeats give a normal distribution, and phi
+ * is -log10 of the chance that the next heartbeat is still to come this long after the last one. A server is
+ * suspected while phi is above the threshold; with the defaults a server that stops answering is suspected
+ * about 100ms after its last heartbeat, and it is trusted again as soon as heartbeats come back.
+ *
+ * How long a round waits for a server is its smoothed round trip time plus four deviations, as TCP computes its
+ * retransmission timeout (RFC 6298), from the server's heartbeats and the coordinator's calls to it, kept
+ * between minTimeoutMillis and maxTimeoutMillis.
+ *
+ * A server that misses a commit is fenced: it stays out of rounds even once it answers again, since its map
+ * no longer matches the others, until CatchUp has sent it what it missed and unfences it.
+ */
+public class FailureDetector implements AutoCloseable {
+
+    /**
+     * The call a heartbeat makes
+     */
+    public interface Probe {
+        void ping() throws Exception;
+    }
+
+    private static final int WINDOW = 100;
+
+    private final long heartbeatNanos;
+    private final double phiThreshold;
+    private final long minTimeoutNanos;
+    private final long maxTimeoutNanos;
+    private final Map<Integer, Participant> participants = new ConcurrentSkipListMap<>();
+    private volatile boolean closed;
+
+    /**
+     * One server's heartbeat history and round trip estimate
+     */
+    private final class Participant {
+        final long[] gaps = new long[WINDOW];
+        int gapCount;
+        int nextGap;
+        long gapSum;
+        double gapSquares;
+        volatile long lastHeartbeat;
+        double smoothedRtt;
+        double rttDeviation;
+        volatile long timeoutNanos = maxTimeoutNanos;
+        volatile boolean fenced;
+
+        Participant() {
+            // until real gaps arrive, assume heartbeats come on time give or take a quarter of the interval
+            addGap(heartbeatNanos - heartbeatNanos / 4);
+            addGap(heartbeatNanos + heartbeatNanos / 4);
+        }
+
+        synchronized void heartbeat(long now) {
+            if (lastHeartbeat != 0) {
+                addGap(now - lastHeartbeat);
+            }
+            lastHeartbeat = now;
+        }
+
+        private void addGap(long gap) {
+            if (gapCount == WINDOW) {
+                gapSum -= gaps[nextGap];
+                gapSquares -= (double) gaps[nextGap] * gaps[nextGap];
+            } else {
+                gapCount++;
+            }
+            gaps[nextGap] = gap;
+            gapSum += gap;
+            gapSquares += (double) gap * gap;
+            nextGap = (nextGap + 1) % WINDOW;
+        }
+
+        synchronized double phi(long now) {
+            if (lastHeartbeat == 0) {
+                return 0;
+            }
+            double mean = (double) gapSum / gapCount;
+            double deviation = Math.max(Math.sqrt(Math.max(0, gapSquares / gapCount - mean * mean)), heartbeatNanos / 4.0);
+            double y = (now - lastHeartbeat - mean) / deviation;
+            // logistic approximation of the normal distribution's tail, as Akka uses
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            return now - lastHeartbeat > mean ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+        }
+
+        synchronized void roundTrip(long nanos) {
+            if (smoothedRtt == 0) {
+                smoothedRtt = nanos;
+                rttDeviation = nanos / 2.0;
+            } else {
+                rttDeviation = 0.75 * rttDeviation + 0.25 * Math.abs(smoothedRtt - nanos);
+                smoothedRtt = 0.875 * smoothedRtt + 0.125 * nanos;
+            }
+            timeoutNanos = Math.min(maxTimeoutNanos, Math.max(minTimeoutNanos, (long) (smoothedRtt + 4 * rttDeviation)));
+        }
+    }
+
+    /**
+     * @param heartbeatMillis how often each watched server is pinged
+     * @param phiThreshold phi above which a server is suspected
+     * @param minTimeoutMillis shortest a round waits for a server
+     * @param maxTimeoutMillis longest a round waits for a server, and how long it waits before there are round
+     *                         trips to go by
+     */
+    public FailureDetector(long heartbeatMillis, double phiThreshold, long minTimeoutMillis, long maxTimeoutMillis) {
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, heartbeatMillis));
+        this.phiThreshold = phiThreshold;
+        this.maxTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(maxTimeoutMillis);
+        this.minTimeoutNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(minTimeoutMillis), maxTimeoutNanos);
+    }
+
+    /**
+     * Starts pinging a server
+     * @param server server number, from 1
+     * @param probe the ping
+     */
+    public void watch(int server, Probe probe) {
+        Participant participant = participant(server);
+        Thread heartbeats = new Thread(() -> {
+            while (!closed) {
+                long sent = System.nanoTime();
+                try {
+                    probe.ping();
+                    long now = System.nanoTime();
+                    participant.heartbeat(now);
+                    participant.roundTrip(now - sent);
+                } catch (Exception e) {
+                    // a server that can't be reached sends no heartbeat, and phi goes up
+                }
+                long wait = sent + heartbeatNanos - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }, "heartbeat-Server" + server);
+        heartbeats.setDaemon(true);
+        heartbeats.start();
+    }
+
+    /**
+     * Returns how suspicious a server's silence is
+     * @param server server number, from 1
+     * @return phi, 0 for a server that isn't watched
+     */
+    public double phi(int server) {
+        return participant(server).phi(System.nanoTime());
+    }
+
+    /**
+     * Returns whether a server seems to be down
+     * @param server server number, from 1
+     * @return true if its phi is above the threshold
+     */
+    public boolean isSuspected(int server) {
+        return phi(server) > phiThreshold;
+    }
+
+    /**
+     * Returns whether rounds should include a server
+     * @param server server number, from 1
+     * @return true if it is neither fenced nor suspected
+     */
+    public boolean isAvailable(int server) {
+        Participant participant = participant(server);
+        return !participant.fenced && participant.phi(System.nanoTime()) <= phiThreshold;
+    }
+
+    /**
+     * Records how long a call to a server took, for its timeout
+     * @param server server number, from 1
+     * @param nanos the call's round trip
+     */
+    public void recordRoundTrip(int server, long nanos) {
+        participant(server).roundTrip(nanos);
+    }
+
+    /**
+     * Returns how long a round should wait for a server
+     * @param server server number, from 1
+     * @return timeout in nanoseconds
+     */
+    public long timeoutNanos(int server) {
+        return participant(server).timeoutNanos;
+    }
+
+    /**
+     * Leaves a server out of rounds from now on, because it missed a commit
+     * @param server server number, from 1
+     * @return true if it wasn't fenced already
+     */
+    public boolean fence(int server) {
+        Participant participant = participant(server);
+        boolean wasFenced = participant.fenced;
+        participant.fenced = true;
+        return !wasFenced;
+    }
+
+    /**
+     * Lets a fenced server back into rounds, once it has been sent the commits it missed
+     * @param server server number, from 1
+     */
+    public void unfence(int server) {
+        participant(server).fenced = false;
+    }
+
+    /**
+     * Returns whether a server has been fenced
+     * @param server server number, from 1
+     * @return true if it missed a commit
+     */
+    public boolean isFenced(int server) {
+        return participant(server).fenced;
+    }
+
+    /**
+     * Returns how many servers are fenced
+     * @return fenced servers
+     */
+    public int fencedCount() {
+        int count = 0;
+        for (Participant participant : participants.values()) {
+            if (participant.fenced) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Returns each server's phi and timeout, and whether it is suspected or fenced
+     * @return e.g. "Server1 phi=0.3 timeout=100.00ms; Server2 phi=12.1 timeout=100.00ms suspected"
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        long now = System.nanoTime();
+        for (Map.Entry<Integer, Participant> entry : participants.entrySet()) {
+            Participant participant = entry.getValue();
+            double phi = participant.phi(now);
+            if (out.length() > 0) {
+                out.append("; ");
+            }
+            out.append("Server").append(entry.getKey()).append(String.format(" phi=%.1f timeout=%s", phi,
+                    LatencyHistogram.format(participant.timeoutNanos)));
+            if (phi > phiThreshold) {
+                out.append(" suspected");
+            }
+            if (participant.fenced) {
+                out.append(" fenced");
+            }
+        }
+        return out.toString();
+    }
+
+    private Participant participant(int server) {
+        Participant participant = participants.get(server);
+        return participant != null ? participant : participants.computeIfAbsent(server, number -> new Participant());
+    }
+}
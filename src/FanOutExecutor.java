@@ -0,0 +1,224 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FanOutExecutor. The long-lived executor RunCoordinator uses to send one request to every server at once
+ * and wait for the answers. Each round gets a single overall deadline; whatever hasn't answered by then is
+ * cancelled, except for calls started with start, which are left to finish. Each round's latency is recorded
+ * in the LatencyHistogram the caller passes in.
+ *
+ * A call the executor has no room for fails at once with a RejectedExecutionException rather than being run
+ * on the caller's thread, where a slow server would hold up the whole round: a vote counts as not given and a
+ * commit as not acked, like any other call that fails.
+ */
+public class FanOutExecutor implements AutoCloseable {
+
+    /**
+     * Which threads run the participant calls
+     */
+    public enum Mode {
+        /** One virtual thread per call. Needs Java 21+, otherwise falls back to PLATFORM */
+        VIRTUAL,
+        /** A fixed pool of platform threads with a bounded queue */
+        PLATFORM;
+
+        /**
+         * Parses a mode name, ignoring case
+         * @param name mode name
+         * @return the mode
+         */
+        public static Mode parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final int QUEUE_PER_THREAD = 64;
+
+    private final ExecutorService executor;
+    private final Mode mode;
+
+    /**
+     * @param mode which threads run the participant calls
+     * @param platformThreads pool size in PLATFORM mode
+     * @param name prefix for the pool's thread names
+     */
+    public FanOutExecutor(Mode mode, int platformThreads, String name) {
+        ExecutorService virtual = mode == Mode.VIRTUAL ? newVirtualThreadExecutor() : null;
+        if (virtual != null) {
+            this.executor = virtual;
+            this.mode = Mode.VIRTUAL;
+        } else {
+            if (mode == Mode.VIRTUAL) {
+                System.out.println("Virtual threads need Java 21+, using a pool of " + platformThreads + " platform threads instead");
+            }
+            // when the queue is full a call is rejected, failing that server's part of the round straight away
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(platformThreads, platformThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(platformThreads * QUEUE_PER_THREAD), daemonThreads(name),
+                    new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+            this.mode = Mode.PLATFORM;
+        }
+    }
+
+    /**
+     * Runs every task in parallel and waits for all of them, but no longer than the round's deadline.
+     * Tasks still running at the deadline are cancelled, and a task the executor rejects fails on its own
+     * without holding up the others.
+     * @param tasks one call per participant
+     * @param timeout deadline for the whole round
+     * @param unit unit of timeout
+     * @param latency where the round's latency is recorded
+     * @param <T> result type
+     * @return one future per task, in the same order, each either done or cancelled; a rejected task's fails
+     *         with a RejectedExecutionException
+     * @throws InterruptedException if interrupted while waiting, in which case every task is cancelled
+     */
+    public <T> List<Future<T>> invokeAll(List<? extends Callable<T>> tasks, long timeout, TimeUnit unit, LatencyHistogram latency) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                FutureTask<T> future = new FutureTask<>(task);
+                try {
+                    executor.execute(future);
+                } catch (RejectedExecutionException e) {
+                    future = new FutureTask<>(() -> {
+                        throw e;
+                    });
+                    future.run();
+                }
+                futures.add(future);
+            }
+            for (Future<T> future : futures) {
+                if (!future.isDone()) {
+                    try {
+                        future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    } catch (ExecutionException | CancellationException e) {
+                        // for the caller to find, future by future
+                    } catch (TimeoutException e) {
+                        break;
+                    }
+                }
+            }
+            cancelAll(futures);
+            return futures;
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            throw e;
+        } finally {
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true); // does nothing to those that are done
+        }
+    }
+
+    /**
+     * Starts a task that must not be interrupted halfway, such as a commit that is writing a server's log. Its
+     * future is never cancelled, so waiting for it with awaitAll leaves it running after the deadline.
+     * @param task the task
+     * @param <T> result type
+     * @return completes with the task's result or exception, or a RejectedExecutionException if the executor
+     *         had no room for it
+     */
+    public <T> CompletableFuture<T> start(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Waits until every future is done, but no longer than the round's deadline. Unlike invokeAll, nothing is
+     * cancelled at the deadline; the caller finds what is still running with isDone.
+     * @param futures futures returned by start
+     * @param timeout deadline for the whole round
+     * @param unit unit of timeout
+     * @param latency where the round's latency is recorded
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitAll(List<? extends CompletableFuture<?>> futures, long timeout, TimeUnit unit, LatencyHistogram latency) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(timeout, unit);
+        } catch (ExecutionException | TimeoutException e) {
+            // failed and unfinished calls are for the caller to sort out, future by future
+        } finally {
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Runs a single task on the executor
+     * @param task the task
+     * @param <T> result type
+     * @return the task's future
+     * @throws RejectedExecutionException if the executor has no room for it
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Returns the mode actually in use, which is PLATFORM if VIRTUAL was asked for but isn't available
+     * @return mode in use
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        // looked up reflectively so the project still builds and runs on Java 11
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
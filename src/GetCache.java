@@ -0,0 +1,159 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * GetCache. RMIClient's optional cache of GET results, so repeated GETs of the same employees are answered
+ * without leaving the client's JVM.
+ *
+ * Values are kept until the coordinator says a commit changed their key (see InvalidationListener), but never
+ * longer than their lease. If an invalidation gets lost, a cached value is therefore at most one lease old.
+ * The cache holds at most maxEntries keys and evicts the least recently used one when full.
+ *
+ * A GET that was in flight while its key was invalidated may carry the old value, so a GET's answer is only
+ * cached if no invalidation for a key in the same stripe came in between the GET being sent and answered.
+ */
+public class GetCache implements InvalidationListener {
+
+    private static final int STRIPES = 64;
+
+    private static class Cached {
+        final int value;
+        final long expiresAtNanos;
+
+        Cached(int value, long expiresAtNanos) {
+            this.value = value;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final Map<String, Cached> entries;
+    private final long leaseNanos;
+    private final AtomicLongArray invalidations = new AtomicLongArray(STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LatencyHistogram hitLatency = new LatencyHistogram();
+    private final LatencyHistogram missLatency = new LatencyHistogram();
+
+    /**
+     * @param maxEntries most keys kept
+     * @param leaseMillis longest a value is served from the cache
+     */
+    public GetCache(int maxEntries, long leaseMillis) {
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                if (size() > maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Looks a key up
+     * @param key employee name
+     * @return the cached salary, or CompactStringIntMap.MISSING if it isn't cached or its lease ran out
+     */
+    public int get(String key) {
+        Cached entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.expiresAtNanos - System.nanoTime() < 0) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return CompactStringIntMap.MISSING;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Called before a GET is sent to the server
+     * @param key employee name
+     * @return a ticket to pass to put with the answer
+     */
+    public long beginLoad(String key) {
+        return invalidations.get(stripe(key));
+    }
+
+    /**
+     * Caches a GET's answer, unless its key may have been invalidated while the GET was in flight
+     * @param key employee name
+     * @param value the salary the server returned
+     * @param ticket what beginLoad returned before the GET was sent
+     * @param sentAtNanos System.nanoTime() when the GET was sent; the lease counts from then
+     */
+    public void put(String key, int value, long ticket, long sentAtNanos) {
+        synchronized (entries) {
+            if (invalidations.get(stripe(key)) == ticket) {
+                entries.put(key, new Cached(value, sentAtNanos + leaseNanos));
+            }
+        }
+    }
+
+    /**
+     * Drops any cached values for the keys
+     * @param keys keys whose values just changed
+     */
+    @Override
+    public void invalidate(String[] keys) {
+        synchronized (entries) {
+            for (String key : keys) {
+                invalidations.incrementAndGet(stripe(key));
+                if (entries.remove(key) != null) {
+                    invalidated.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records how long a GET took
+     * @param hit true if it was answered from the cache
+     * @param nanos how long it took
+     */
+    public void recordLatency(boolean hit, long nanos) {
+        (hit ? hitLatency : missLatency).record(nanos);
+    }
+
+    /**
+     * Returns the share of lookups answered from the cache
+     * @return hits divided by lookups, or 0 if there were none
+     */
+    public double hitRate() {
+        long lookups = hits.sum() + misses.sum();
+        return lookups == 0 ? 0 : (double) hits.sum() / lookups;
+    }
+
+    /**
+     * Returns the number of keys cached right now
+     * @return number of entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d hit rate=%.1f%% entries=%d invalidated=%d evicted=%d%n  hit latency: %s%n  miss latency: %s",
+                hits.sum(), misses.sum(), hitRate() * 100, size(), invalidated.sum(), evictions.sum(), hitLatency.summary(), missLatency.summary());
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() * 0x9e3779b9) >>> 26;
+    }
+}
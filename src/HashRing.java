@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * HashRing. Consistent hashing of keys onto replica groups, each group being a coordinator and its servers
+ * reached through one registry, named e.g. "127.0.0.1:32000". Every group is placed at VIRTUAL_NODES points
+ * on a ring of 64 bit hashes, and a key belongs to the group at the first point at or after the key's hash.
+ * With many points per group each one gets close to an even share of the keys, and adding a group only moves
+ * the keys that land on its points, about 1/(groups + 1) of them, all from the ranges it takes over.
+ *
+ * The ring depends only on the set of group names, so every client and server that knows the same groups
+ * agrees on where each key goes.
+ */
+public final class HashRing {
+
+    /** Points per group on the ring */
+    public static final int VIRTUAL_NODES = 160;
+
+    private final String[] groups;
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * @param groups the groups' names, in any order
+     * @throws IllegalArgumentException if there are none
+     */
+    public HashRing(Collection<String> groups) {
+        this.groups = new TreeSet<>(groups).toArray(new String[0]);
+        if (this.groups.length == 0) {
+            throw new IllegalArgumentException("a hash ring needs at least one group");
+        }
+        long[][] placed = new long[this.groups.length * VIRTUAL_NODES][];
+        int n = 0;
+        for (int g = 0; g < this.groups.length; g++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                placed[n++] = new long[] {hash(this.groups[g] + "#" + v), g};
+            }
+        }
+        Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        this.points = new long[placed.length];
+        this.owners = new int[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = (int) placed[i][1];
+        }
+    }
+
+    /**
+     * Returns the ring with one more group
+     * @param group the new group's name
+     * @return the new ring
+     */
+    public HashRing with(String group) {
+        List<String> more = new ArrayList<>(Arrays.asList(groups));
+        more.add(group);
+        return new HashRing(more);
+    }
+
+    /**
+     * Returns the group a key belongs to
+     * @param key employee name
+     * @return the group's name
+     */
+    public String owner(String key) {
+        return groups[ownerIndex(key)];
+    }
+
+    /**
+     * Returns the group a key belongs to, as an index into getGroups
+     * @param key employee name
+     * @return the group's index
+     */
+    public int ownerIndex(String key) {
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1; // first point after the hash
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * Returns the groups on the ring, sorted by name
+     * @return group names
+     */
+    public List<String> getGroups() {
+        return Arrays.asList(groups.clone());
+    }
+
+    /**
+     * Hashes a key or point name onto the ring: 64 bit FNV-1a over its chars, then MurmurHash3's finalizer so
+     * that similar names, like a group's point names, spread over the whole ring
+     * @param key what to hash
+     * @return position on the ring
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "HashRing" + Arrays.toString(groups);
+    }
+}
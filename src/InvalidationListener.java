@@ -0,0 +1,16 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * InvalidationListener. Implemented by clients that cache GETs. The coordinator calls it after every commit
+ * with the keys the commit changed, so the client can drop its copies of them.
+ */
+public interface InvalidationListener extends Remote {
+
+    /**
+     * Drops any cached values for the keys
+     * @param keys keys whose values just changed
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    void invalidate(String[] keys) throws RemoteException;
+}
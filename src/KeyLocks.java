@@ -0,0 +1,69 @@
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+
+/**
+ * KeyLocks. The coordinator's key-level locks. A round holds the locks of every key it votes on and commits,
+ * so rounds on unrelated keys run side by side while rounds that share a key are ordered one after the other.
+ *
+ * Keys are hashed onto a fixed set of lock stripes. A round locks its stripes in ascending order, which keeps
+ * two rounds with overlapping keys from deadlocking on each other.
+ *
+ * Stripes are single-permit semaphores rather than locks owned by a thread, so a round whose commit is still
+ * on its way to a server can hand its locks over to whatever finishes that call, see RunCoordinator.runRound.
+ */
+public class KeyLocks {
+
+    private final Semaphore[] stripes;
+    private final int mask;
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two; more stripes means fewer unrelated keys share a lock
+     */
+    public KeyLocks(int stripes) {
+        int count = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new Semaphore[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Semaphore(1);
+        }
+        this.mask = count - 1;
+    }
+
+    /**
+     * Blocks until every key's lock is held
+     * @param keys keys the round touches, duplicates allowed
+     * @return the stripes now held, to pass to unlock
+     */
+    public int[] lock(String... keys) {
+        int[] held = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            held[i] = stripe(keys[i]);
+        }
+        Arrays.sort(held);
+        int distinct = 0;
+        for (int i = 0; i < held.length; i++) {
+            if (i == 0 || held[i] != held[i - 1]) {
+                held[distinct++] = held[i];
+            }
+        }
+        held = Arrays.copyOf(held, distinct);
+        for (int stripe : held) {
+            stripes[stripe].acquireUninterruptibly();
+        }
+        return held;
+    }
+
+    /**
+     * Releases locks taken by lock, from any thread
+     * @param held the stripes lock returned
+     */
+    public void unlock(int[] held) {
+        for (int i = held.length - 1; i >= 0; i--) {
+            stripes[held[i]].release();
+        }
+    }
+
+    private int stripe(String key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
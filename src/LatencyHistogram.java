@@ -0,0 +1,156 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram. A fixed-size, thread-safe histogram of durations in nanoseconds, in the spirit of
+ * HdrHistogram: every power of two is split into 32 linear sub-buckets, so any recorded value is off by at
+ * most about 3%, and recording is one array increment with no locking or allocation.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int SHIFTS = 64 - SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((SHIFTS + 1) * SUB_BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records one duration
+     * @param nanos duration in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns the number of recorded durations
+     * @return count
+     */
+    public long count() {
+        return total.sum();
+    }
+
+    /**
+     * Returns the mean of the recorded durations
+     * @return mean in nanoseconds, or 0 if nothing was recorded
+     */
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Returns the largest recorded duration
+     * @return max in nanoseconds
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns the duration below which the given fraction of recorded durations fall
+     * @param percentile between 0 and 100
+     * @return the percentile in nanoseconds (upper edge of its bucket), or 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperEdge(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Adds every duration recorded in another histogram into this one
+     * @param other histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        max.accumulate(other.max.get());
+    }
+
+    /**
+     * Forgets every recorded duration
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Returns a one line summary, e.g. "n=120 mean=1.20ms p50=1.05ms p99=3.10ms max=4.00ms"
+     * @return summary of the recorded durations
+     */
+    public String summary() {
+        return String.format("n=%d mean=%s p50=%s p90=%s p99=%s p99.9=%s max=%s", count(), format((long) mean()),
+                format(percentile(50)), format(percentile(90)), format(percentile(99)), format(percentile(99.9)), format(max()));
+    }
+
+    @Override
+    public String toString() {
+        return summary();
+    }
+
+    /**
+     * Formats a duration in the unit that suits it best
+     * @param nanos duration in nanoseconds
+     * @return e.g. "850us" or "1.25ms"
+     */
+    public static String format(long nanos) {
+        if (nanos < TimeUnit.MICROSECONDS.toNanos(1)) {
+            return nanos + "ns";
+        } else if (nanos < TimeUnit.MILLISECONDS.toNanos(1)) {
+            return String.format("%.1fus", nanos / 1e3);
+        } else if (nanos < TimeUnit.SECONDS.toNanos(1)) {
+            return String.format("%.2fms", nanos / 1e6);
+        }
+        return String.format("%.2fs", nanos / 1e9);
+    }
+
+    private static int bucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value; // small values get a bucket each
+        }
+        // value = sub << shift with sub in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift);
+        return shift * SUB_BUCKETS + sub;
+    }
+
+    private static long upperEdge(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket - (long) shift * SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
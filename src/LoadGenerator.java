@@ -0,0 +1,276 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator. Drives GETs, PUTs and DELETEs at the servers from several threads for a fixed time, then
+ * reports the throughput and latency percentiles of each op, for sizing the coordinator. Keys are
+ * "Key0".."KeyN-1", picked uniformly or with a zipfian skew so a few keys get most of the traffic.
+ *
+ * It runs closed loop by default: each thread sends its next request as soon as the last one is answered.
+ * With a target rate it runs open loop instead: requests are due at fixed intervals whether or not earlier ones
+ * have been answered, and each one's latency is counted from when it was due rather than when it went out. A
+ * server that falls behind then shows up in the percentiles instead of quietly lowering the load.
+ *
+ * The settings are system properties, see fromProperties.
+ */
+public class LoadGenerator {
+
+    /**
+     * How keys are picked
+     */
+    public enum Distribution {
+        /** Every key as likely as any other */
+        UNIFORM,
+        /** Key i about 1/(i+1)^theta as likely as Key0 */
+        ZIPFIAN;
+
+        /**
+         * Looks a distribution up by name, ignoring case
+         * @param name "uniform" or "zipfian"
+         * @return the distribution
+         * @throws IllegalArgumentException if the name is neither
+         */
+        public static Distribution parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private static final String[] OP_NAMES = {"GET", "PUT", "DELETE"};
+
+    private final MapClient client;
+    private final String clientName;
+    private final int threads;
+    private final int[] mix; // cumulative weights of GET, PUT and DELETE
+    private final String[] keys;
+    private final Distribution distribution;
+    private final double theta;
+    private final double zetaN;
+    private final double eta;
+    private final double rate;
+    private final long warmupNanos;
+    private final long runNanos;
+
+    private final LatencyHistogram[] latency = {new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()};
+    private final LongAdder[] notFound = {new LongAdder(), new LongAdder(), new LongAdder()};
+    private final LongAdder[] failed = {new LongAdder(), new LongAdder(), new LongAdder()};
+
+    /**
+     * @param client connected client, shared by all threads
+     * @param clientName who is asking, e.g. "127.0.0.1 32000", for the server's log
+     * @param threads how many threads send requests
+     * @param getWeight share of GETs
+     * @param putWeight share of PUTs
+     * @param deleteWeight share of DELETEs
+     * @param keyCount how many different keys
+     * @param distribution how keys are picked
+     * @param theta zipfian skew, between 0 (uniform) and 1 exclusive
+     * @param rate requests per second over all threads, or 0 to run closed loop
+     * @param warmupSeconds how long to run before measuring
+     * @param seconds how long to measure
+     */
+    public LoadGenerator(MapClient client, String clientName, int threads, int getWeight, int putWeight, int deleteWeight,
+                         int keyCount, Distribution distribution, double theta, double rate, double warmupSeconds, double seconds) {
+        if (threads < 1 || keyCount < 1 || getWeight < 0 || putWeight < 0 || deleteWeight < 0
+                || getWeight + putWeight + deleteWeight == 0 || theta < 0 || theta >= 1 || rate < 0) {
+            throw new IllegalArgumentException("bad load settings");
+        }
+        this.client = client;
+        this.clientName = clientName;
+        this.threads = threads;
+        this.mix = new int[] {getWeight, getWeight + putWeight, getWeight + putWeight + deleteWeight};
+        this.keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "Key" + i;
+        }
+        this.distribution = distribution;
+        this.theta = theta;
+        // Gray et al., "Quickly Generating Billion-Record Synthetic Databases", as used by YCSB
+        double zeta = 0;
+        for (int i = 1; i <= keyCount; i++) {
+            zeta += 1 / Math.pow(i, theta);
+        }
+        this.zetaN = zeta;
+        double zeta2 = 1 + 1 / Math.pow(2, theta);
+        this.eta = (1 - Math.pow(2.0 / keyCount, 1 - theta)) / (1 - zeta2 / zeta);
+        this.rate = rate;
+        this.warmupNanos = (long) (warmupSeconds * 1e9);
+        this.runNanos = (long) (seconds * 1e9);
+    }
+
+    /**
+     * Builds a generator from system properties:
+     * "load.threads" (default 4), "load.mix" as GET, PUT and DELETE weights (default "80,15,5"), "load.keys"
+     * (default 10000), "load.distribution" uniform or zipfian (default uniform), "load.zipfTheta" (default
+     * 0.99), "load.rate" requests per second, 0 for closed loop (default 0), "load.warmupSeconds" (default 5)
+     * and "load.seconds" (default 30)
+     * @param client connected client
+     * @param clientName who is asking, for the server's log
+     * @return the generator
+     * @throws IllegalArgumentException if a setting is malformed
+     */
+    public static LoadGenerator fromProperties(MapClient client, String clientName) {
+        String[] mix = System.getProperty("load.mix", "80,15,5").split(",");
+        if (mix.length != 3) {
+            throw new IllegalArgumentException("load.mix must be three weights, GET,PUT,DELETE");
+        }
+        return new LoadGenerator(client, clientName, Integer.getInteger("load.threads", 4),
+                Integer.parseInt(mix[0].trim()), Integer.parseInt(mix[1].trim()), Integer.parseInt(mix[2].trim()),
+                Integer.getInteger("load.keys", 10000),
+                Distribution.parse(System.getProperty("load.distribution", "uniform")),
+                Double.parseDouble(System.getProperty("load.zipfTheta", "0.99")),
+                Double.parseDouble(System.getProperty("load.rate", "0")),
+                Double.parseDouble(System.getProperty("load.warmupSeconds", "5")),
+                Double.parseDouble(System.getProperty("load.seconds", "30")));
+    }
+
+    /**
+     * PUTs every key once, split over the threads, so GETs and DELETEs find something from the start
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public void preload() throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            workers[t] = new Thread(() -> {
+                for (int i = first; i < keys.length; i += threads) {
+                    try {
+                        client.execute(Command.put(keys[i], i, clientName));
+                    } catch (MapClientException e) {
+                        failed[1].increment();
+                    }
+                }
+            }, "load-preload-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Runs the load for the warmup and then the measured time
+     * @return the report, see report
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public String run() throws InterruptedException {
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            latency[op].reset();
+            notFound[op].reset();
+            failed[op].reset();
+        }
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + runNanos;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> drive(thread, start, measureFrom, end), "load-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return report();
+    }
+
+    /**
+     * Sends requests from one thread until the end of the run
+     */
+    private void drive(int thread, long start, long measureFrom, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = rate > 0 ? (long) (1e9 * threads / rate) : 0;
+        long due = start + (interval * thread) / threads; // spreads the threads' first requests over one interval
+        while (true) {
+            if (interval > 0) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                due = System.nanoTime();
+            }
+            if (due - end >= 0) {
+                return;
+            }
+            int op = pickOp(random);
+            String key = keys[pickKey(random)];
+            Command command = op == 0 ? Command.get(key, clientName)
+                    : op == 1 ? Command.put(key, random.nextInt(Integer.MAX_VALUE), clientName)
+                    : Command.delete(key, clientName);
+            Result.Status status;
+            try {
+                status = client.execute(command).getStatus();
+            } catch (MapClientException e) {
+                status = null;
+            }
+            long finished = System.nanoTime();
+            if (due - measureFrom >= 0) {
+                latency[op].record(finished - due);
+                if (status == Result.Status.NOT_FOUND) {
+                    notFound[op].increment();
+                } else if (status != Result.Status.OK) {
+                    failed[op].increment();
+                }
+            }
+            due += interval;
+        }
+    }
+
+    private int pickOp(ThreadLocalRandom random) {
+        int draw = random.nextInt(mix[2]);
+        return draw < mix[0] ? 0 : draw < mix[1] ? 1 : 2;
+    }
+
+    private int pickKey(ThreadLocalRandom random) {
+        if (distribution == Distribution.UNIFORM) {
+            return random.nextInt(keys.length);
+        }
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < 1 + Math.pow(0.5, theta)) {
+            return Math.min(1, keys.length - 1);
+        }
+        int key = (int) (keys.length * Math.pow(eta * u - eta + 1, 1 / (1 - theta)));
+        return Math.min(key, keys.length - 1);
+    }
+
+    /**
+     * Returns a table with a row per op and one for all of them: requests, throughput, how many found no key,
+     * how many failed (aborted, rejected or unreachable), and the latency percentiles
+     * @return the report of the last run
+     */
+    public String report() {
+        double seconds = runNanos / 1e9;
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%d threads, %s, %d keys %s, %.0fs measured after %.0fs warmup%n", threads,
+                rate > 0 ? String.format("open loop at %.0f ops/s", rate) : "closed loop", keys.length,
+                distribution == Distribution.ZIPFIAN ? "zipfian (theta " + theta + ")" : "uniform", seconds, warmupNanos / 1e9));
+        out.append(String.format("%-7s %10s %12s %10s %8s  %s%n", "op", "requests", "ops/s", "not found", "failed", "latency"));
+        LatencyHistogram all = new LatencyHistogram();
+        long allNotFound = 0;
+        long allFailed = 0;
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            if (latency[op].count() == 0) {
+                continue;
+            }
+            all.add(latency[op]);
+            allNotFound += notFound[op].sum();
+            allFailed += failed[op].sum();
+            row(out, OP_NAMES[op], latency[op], notFound[op].sum(), failed[op].sum(), seconds);
+        }
+        row(out, "total", all, allNotFound, allFailed, seconds);
+        return out.toString();
+    }
+
+    private static void row(StringBuilder out, String name, LatencyHistogram latency, long notFound, long failed, double seconds) {
+        out.append(String.format("%-7s %10d %12.1f %10d %8d  p50=%s p90=%s p99=%s p99.9=%s p99.99=%s max=%s%n", name,
+                latency.count(), latency.count() / seconds, notFound, failed,
+                LatencyHistogram.format(latency.percentile(50)), LatencyHistogram.format(latency.percentile(90)),
+                LatencyHistogram.format(latency.percentile(99)), LatencyHistogram.format(latency.percentile(99.9)),
+                LatencyHistogram.format(latency.percentile(99.99)), LatencyHistogram.format(latency.max())));
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * MapClient. What RunClient and LoadGenerator need from a client: RMIClient talks to one replica group, and
+ * ShardedClient spreads keys over several of them.
+ */
+public interface MapClient extends AutoCloseable {
+
+    /**
+     * Connects to the servers
+     * @throws Exception if they can't be reached
+     */
+    void startClient() throws Exception;
+
+    /**
+     * Sends a GET, PUT or DELETE to the server
+     * @param command the command
+     * @return the server's result
+     * @throws MapClientException if the server couldn't be reached or the call failed
+     */
+    Result execute(Command command);
+
+    /**
+     * Sends a GET, PUT or DELETE to the server without waiting for the answer
+     * @param command the command
+     * @return the server's result, or a MapClientException
+     */
+    CompletableFuture<Result> executeAsync(Command command);
+
+    /**
+     * Sends a transaction to the server, which applies all of its operations on every server or none of them
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param transaction the PUTs and DELETEs to apply together
+     * @return the server's response
+     * @throws MapClientException if the server couldn't be reached or the call failed
+     */
+    String handleTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction);
+
+    /**
+     * Streams the entries of a key range in key order, a page at a time, see ScanIterator. For every key
+     * starting with a prefix, scan from the prefix to ScanIterator.prefixEnd(prefix).
+     * @param from first key of the range
+     * @param to key the range ends before, or null for no end
+     * @param pageSize entries per round trip, at most MapServer.MAX_SCAN_PAGE
+     * @return the entries, as PUTs; its methods throw MapClientException if a page can't be read
+     */
+    Iterator<Transaction.Operation> scan(String from, String to, int pageSize);
+
+    /**
+     * Returns the server's current time
+     * @return time in "yyyy-MM-dd HH:mm:ss.SSS" format
+     * @throws MapClientException if the server couldn't be reached or the call failed
+     */
+    String getFormattedCurrentSystemTime();
+
+    @Override
+    void close();
+}
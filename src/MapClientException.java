@@ -0,0 +1,17 @@
+/**
+ * MapClientException. Thrown by RMIClient when a request couldn't be carried out. The subclasses say why:
+ * ServerUnavailableException if the server couldn't be reached, RemoteCallFailedException if it was reached but
+ * the call failed, and ClientOverloadedException if the client already had too many requests waiting.
+ */
+public class MapClientException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message what went wrong
+     * @param cause the underlying exception, or null
+     */
+    public MapClientException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,11 +1,13 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.util.concurrent.Callable;
 
 /**
  * MapServer. ServerImpl implements these methods, and RMIClient accesses them via RMI.
  */
-public interface MapServer extends Remote, Callable<Integer> {
+public interface MapServer extends Remote {
+
+    /** Most entries scan returns in one page, however many are asked for */
+    int MAX_SCAN_PAGE = 4096;
 
     /**
      * Returns a String of the current system time in "yyyy-MM-dd HH:mm:ss.SSS" format
@@ -54,6 +56,17 @@ public interface MapServer extends Remote, Callable<Integer> {
      */
     void executePUT(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException;
 
+    /**
+     * Runs a client's GET, PUT or DELETE. Does the same as handleGET, handlePUT and handleDELETE, but with a
+     * compact typed request and reply, and the reply carries the server's time. Also runs the conditional
+     * writes, compare-and-set, increment and put-if-absent, which have no String method.
+     * @param command the client's command
+     * @return the result, stamped with the server's time
+     * @throws RemoteException RMI methods throw remote exception
+     * @throws InterruptedException If response times out
+     */
+    Result execute(Command command) throws RemoteException, InterruptedException;
+
     /**
      * Handles GET requests from the client. Returns a String response to the client
      * @param clientINetAddress client's internet address
@@ -85,9 +98,144 @@ public interface MapServer extends Remote, Callable<Integer> {
     void executeDELETE(String clientINetAddress, String clientPORT_number, String[] splitClientMessage) throws RemoteException;
 
     /**
-     * Long story short, this is my work-around for Callable's not taking parameters. Used for getting consensus
-     * @param key used to get the value
+     * Handles a transaction from the client: checks every operation, then has the coordinator vote on and commit
+     * all of them in one round. Returns a String response to the client
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param transaction the PUTs and DELETEs to apply together
+     * @return String representing our response to the client
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    String handleTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) throws RemoteException;
+
+    /**
+     * Runs a client's transaction like handleTransaction, and returns what happened to it rather than a sentence
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param transaction the PUTs and DELETEs to apply together
+     * @return OK with the number of operations, ABORTED, or why the transaction is bad
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    Result submitTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) throws RemoteException;
+
+    /**
+     * Executes a transaction on the server, logging and applying all of its operations together
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param transaction the PUTs and DELETEs to apply
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    void executeTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) throws RemoteException;
+
+    /**
+     * Registers a client's cache with the coordinator, which from then on tells it about every key a commit
+     * changes. A listener that can't be reached is dropped.
+     * @param listener the client's cache
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    void addInvalidationListener(InvalidationListener listener) throws RemoteException;
+
+    /**
+     * Returns the server's vote in a round: its current value for each of the round's keys. Votes carry
+     * everything they need, so any number of rounds can be voting at once
+     * @param keys the keys the round touches
+     * @return the value of each key, or CompactStringIntMap.MISSING for keys that aren't in the map
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    int[] vote(String[] keys) throws RemoteException;
+
+    /**
+     * Returns the server's own value for a key, without logging; the coordinator's QUORUM and ALL reads ask
+     * every server for this
+     * @param key employee name
+     * @return the value, or CompactStringIntMap.MISSING if the key isn't in the map
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    int readLocal(String key) throws RemoteException;
+
+    /**
+     * Does nothing; the coordinator's FailureDetector calls it as a heartbeat
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    void ping() throws RemoteException;
+
+    /**
+     * Returns this server's entries whose keys a hash ring of the given groups puts on one of them, so they can
+     * be copied there when that group joins the ring
+     * @param groups every group on the ring, see HashRing
+     * @param owner the group whose keys are wanted
+     * @return the entries, as PUTs
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    Transaction exportShard(String[] groups, String owner) throws RemoteException;
+
+    /**
+     * Starts moving the keys a joining group takes over from this server's group: writes to them are turned
+     * away with Result.Status.MOVING until endShardMove, and their entries are returned to be copied over
+     * @param group this server's group, as "host:port"
+     * @param groups every group on the ring now, see HashRing
+     * @param joining the group joining the ring
+     * @return the entries to copy, as PUTs
+     * @throws RemoteException RMI methods throw remote exception, or if the entries couldn't be exported
+     */
+    Transaction beginShardMove(String group, String[] groups, String joining) throws RemoteException;
+
+    /**
+     * Puts this server's group on a ring, turning away requests for keys it doesn't put there with
+     * Result.Status.WRONG_SHARD, and ends the move beginShardMove started. If the moved entries were copied,
+     * they are deleted here, each only if it still has the value that was exported.
+     * @param group this server's group, as "host:port"
+     * @param groups every group on the ring
+     * @param moved true to delete the entries beginShardMove exported; false for a group joining the ring, or
+     *              to call a move off
+     * @throws RemoteException RMI methods throw remote exception, or if the moved entries couldn't be deleted
+     */
+    void endShardMove(String group, String[] groups, boolean moved) throws RemoteException;
+
+    /**
+     * Returns the groups on the ring this server's group is on, see endShardMove
+     * @return the groups, or null if the group isn't on a ring and takes every key
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    String[] getShardGroups() throws RemoteException;
+
+    /**
+     * Makes the server reject every commit stamped with an epoch lower than the given one, see
+     * Transaction.getEpoch. The coordinator calls this on a fenced server before catching it up, so a commit
+     * that was still on its way when the server was fenced can't land on top of the ones replayed to it.
+     * Returns once no commit is being applied.
+     * @param epoch the catch-up's epoch
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    void fence(long epoch) throws RemoteException;
+
+    /**
+     * Returns the next chunk of a copy of this server's map, for loading into a server too far behind to catch
+     * up from the coordinator's commit log. Chunks have to be read in order from position 0; each stripe of the
+     * map is copied as of one instant, so writes that land while the chunks are read may or may not be in them.
+     * @param position how many entries have been read so far, 0 to start a new copy
+     * @param maxEntries most entries to return
+     * @return the entries, as PUTs; fewer than maxEntries only once the copy is finished
+     * @throws RemoteException RMI methods throw remote exception, or if chunks are read out of order
+     */
+    Transaction exportSnapshot(long position, int maxEntries) throws RemoteException;
+
+    /**
+     * Deletes every key, logging the deletes like any commit, before a copy of another server's map is loaded
+     * @return how many keys were deleted
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    int clearMap() throws RemoteException;
+
+    /**
+     * Returns one page of this server's entries in key order, for reading a key range without knowing its keys.
+     * The next page starts just after the last key of this one, see ScanIterator, so a range of any size is
+     * read a page at a time. Not a snapshot: a key written between pages may or may not be seen.
+     * @param from first key of the range
+     * @param to key the range ends before, or null for no end
+     * @param limit most entries to return, capped at MAX_SCAN_PAGE
+     * @return the entries, as PUTs in key order; fewer than the capped limit only once the range is finished
      * @throws RemoteException RMI methods throw remote exception
      */
-    void setValue(String key) throws RemoteException;
+    Transaction scan(String from, String to, int limit) throws RemoteException;
 }
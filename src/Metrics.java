@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics. Publishes the servers' and coordinator's metrics as MBeans on the platform MBean server, where
+ * jconsole, VisualVM or any JMX client can read them, and can also append them to a file every so often.
+ * The file is set with the "metrics.dumpFile" system property and the interval with "metrics.dumpSeconds"
+ * (default 10).
+ */
+public final class Metrics {
+
+    private static final Map<String, Object> registered = new LinkedHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers an MBean under "RMIServerClient:" plus the given properties, replacing whatever was there
+     * @param properties e.g. "type=Server,name=Server1"
+     * @param mbean the metrics
+     */
+    public static synchronized void register(String properties, Object mbean) {
+        try {
+            ObjectName name = new ObjectName("RMIServerClient:" + properties);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            registered.put(properties, mbean);
+        } catch (JMException e) {
+            System.out.println("Could not register the " + properties + " metrics: " + e);
+        }
+    }
+
+    /**
+     * Starts appending every registered MBean to the file named by "metrics.dumpFile", if it is set
+     */
+    public static void startDumpsIfConfigured() {
+        String file = System.getProperty("metrics.dumpFile");
+        if (file == null) {
+            return;
+        }
+        long seconds = Long.getLong("metrics.dumpSeconds", 10);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Path path = Path.of(file);
+        timer.scheduleWithFixedDelay(() -> {
+            try {
+                Files.write(path, dump().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.out.println("Could not write metrics to " + file + ": " + e);
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns every registered MBean's current values, under the current time
+     * @return the dump
+     */
+    public static synchronized String dump() {
+        StringBuilder out = new StringBuilder("Timestamp=").append(CachedClock.now()).append(System.lineSeparator());
+        for (Map.Entry<String, Object> entry : registered.entrySet()) {
+            out.append(entry.getKey()).append(": ").append(entry.getValue()).append(System.lineSeparator());
+        }
+        return out.toString();
+    }
+}
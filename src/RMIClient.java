@@ -1,62 +1,302 @@
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
-import java.util.Random;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * RMIClient. The RMIClient picks one of 5 servers at random, which the client uses to perform operations.
+ * RMIClient. The RMIClient spreads its operations over every server in the registry, sending each one to the
+ * server likely to answer soonest and moving on to another server when one can't be reached. GETs can be
+ * hedged: sent to a second server as well if the first is slow to answer.
+ *
+ * Every operation can be called blocking, or asynchronously through the *Async methods, which return a
+ * CompletableFuture right away so one client can have many requests in flight. At most maxInFlight requests
+ * run at once and up to maxQueued more wait their turn; beyond that requests fail with a
+ * ClientOverloadedException. Failures are MapClientExceptions; from a future they arrive wrapped in the usual
+ * CompletionException or ExecutionException.
+ *
+ * GETs can optionally be answered from a GetCache, which the coordinator keeps up to date by invalidating keys
+ * as their writes commit. It is off unless "client.cacheSize" is set or enableCache is called before
+ * startClient. A GET answered from the cache carries the client's clock rather than the server's.
  */
-public class RMIClient {
-    private MapServer server;
+public class RMIClient implements MapClient {
+
+    /**
+     * A call on the server that may fail remotely
+     */
+    private interface RemoteCall<T> {
+        T call(MapServer server) throws RemoteException, InterruptedException;
+    }
+
+    /**
+     * One of the servers bound in the registry, with what this client has seen of it so far
+     */
+    private static class Replica {
+        final String name;
+        final MapServer server;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final LongAdder failures = new LongAdder();
+        volatile double latencyNanos; // EWMA of successful calls, 0 until the first one
+        volatile long downUntilNanos;
+
+        Replica(String name, MapServer server) {
+            this.name = name;
+            this.server = server;
+        }
+
+        boolean isDown(long now) {
+            return downUntilNanos - now > 0;
+        }
+
+        /**
+         * Expected wait for one more request: the typical latency times the requests already waiting on it
+         */
+        double load() {
+            return latencyNanos * (inFlight.get() + 1);
+        }
+
+        void recordLatency(long nanos) {
+            double previous = latencyNanos;
+            latencyNanos = previous == 0 ? nanos : previous + EWMA_WEIGHT * (nanos - previous);
+        }
+
+        @Override
+        public String toString() {
+            return name + ": latency=" + LatencyHistogram.format((long) latencyNanos) + " inFlight=" + inFlight.get()
+                    + " failures=" + failures.sum() + (isDown(System.nanoTime()) ? " (down)" : "");
+        }
+    }
+
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final long DOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private Replica[] replicas;
     private String IP_ADDRESS;
     private Integer PORT_NUMBER;
+    private final ThreadPoolExecutor executor;
+    private GetCache cache;
+    private final long hedgeAfterMillis;
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
 
+    /**
+     * Creates a client whose concurrency limits come from the system properties "client.maxInFlight" (default 64)
+     * and "client.maxQueued" (default 10000), and whose GET cache holds "client.cacheSize" keys (default 0, off)
+     * for up to "client.cacheLeaseMillis" (default 1000), and whose GETs are hedged after "client.hedgeAfterMillis"
+     * (default 0, off)
+     * @param IP_ADDRESS registry's address
+     * @param PORT_NUMBER registry's port
+     */
     public RMIClient(String IP_ADDRESS, Integer PORT_NUMBER) {
+        this(IP_ADDRESS, PORT_NUMBER, Integer.getInteger("client.maxInFlight", 64), Integer.getInteger("client.maxQueued", 10_000),
+                Long.getLong("client.hedgeAfterMillis", 0L));
+        int cacheSize = Integer.getInteger("client.cacheSize", 0);
+        if (cacheSize > 0) {
+            enableCache(cacheSize, Long.getLong("client.cacheLeaseMillis", 1000L));
+        }
+    }
+
+    /**
+     * @param IP_ADDRESS registry's address
+     * @param PORT_NUMBER registry's port
+     * @param maxInFlight most asynchronous requests sent to the server at once
+     * @param maxQueued most asynchronous requests waiting for one of those slots
+     */
+    public RMIClient(String IP_ADDRESS, Integer PORT_NUMBER, int maxInFlight, int maxQueued) {
+        this(IP_ADDRESS, PORT_NUMBER, maxInFlight, maxQueued, 0);
+    }
+
+    /**
+     * @param IP_ADDRESS registry's address
+     * @param PORT_NUMBER registry's port
+     * @param maxInFlight most asynchronous requests sent to the server at once
+     * @param maxQueued most asynchronous requests waiting for one of those slots
+     * @param hedgeAfterMillis if a GET hasn't been answered after this long, send it to a second server as well
+     *                         and take whichever answer comes first; 0 turns hedging off
+     */
+    public RMIClient(String IP_ADDRESS, Integer PORT_NUMBER, int maxInFlight, int maxQueued, long hedgeAfterMillis) {
         this.IP_ADDRESS = IP_ADDRESS;
         this.PORT_NUMBER = PORT_NUMBER;
+        this.hedgeAfterMillis = hedgeAfterMillis;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(maxInFlight, maxInFlight, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, maxQueued)), runnable -> {
+                    Thread thread = new Thread(runnable, "rmi-client-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
     }
 
+    /**
+     * Turns on the GET cache; call before startClient
+     * @param maxEntries most keys cached
+     * @param leaseMillis longest a value is served from the cache, which bounds how stale it can be if an
+     *                    invalidation from the coordinator is lost
+     */
+    public void enableCache(int maxEntries, long leaseMillis) {
+        this.cache = new GetCache(maxEntries, leaseMillis);
+    }
+
+    /**
+     * Returns the GET cache's hit rate, size and latencies
+     * @return cache statistics, or "cache off"
+     */
+    public String getCacheStats() {
+        return cache == null ? "cache off" : cache.toString();
+    }
 
     /**
-     * Retrieves a server from the registry.
+     * Retrieves every server bound in the registry. Each request goes to whichever of two randomly picked servers
+     * is expected to answer sooner, judging by their recent latency and the requests this client already has
+     * waiting on them. A request that can't reach its server is sent to another one.
      * @throws RemoteException Exception may occur during the execution of a remote method call.
      * @throws NotBoundException Thrown if an attempt is made to lookup or unbind in the registry a
      *                           name that has no associated binding.
      */
+    @Override
     public void startClient() throws Exception {
         Registry registry = LocateRegistry.getRegistry(IP_ADDRESS, PORT_NUMBER);
-        // pick one of the 5 randomly
-        int randomNum = new Random().nextInt(5) + 1;
-        System.out.println("randomNum: " + randomNum);
-        switch (randomNum) {
-            case 1: server = (MapServer) registry.lookup("Server1");
-                    break;
-            case 2: server = (MapServer) registry.lookup("Server2");
-                    break;
-            case 3: server = (MapServer) registry.lookup("Server3");
-                    break;
-            case 4: server = (MapServer) registry.lookup("Server4");
-                    break;
-            case 5: server = (MapServer) registry.lookup("Server5");
-                    break;
-            default: throw new Exception("invalid randomNum");
+        List<Replica> found = new ArrayList<>();
+        String[] names = registry.list();
+        Arrays.sort(names);
+        for (String name : names) {
+            if (name.startsWith("Server")) {
+                found.add(new Replica(name, (MapServer) registry.lookup(name)));
+            }
         }
+        if (found.isEmpty()) {
+            throw new NotBoundException("no servers bound in the registry at " + IP_ADDRESS + ":" + PORT_NUMBER);
+        }
+        replicas = found.toArray(new Replica[0]);
+        System.out.println("Servers: " + found.size());
+        if (cache != null) {
+            InvalidationListener listener = (InvalidationListener) UnicastRemoteObject.exportObject(cache, 0);
+            call(server -> {
+                server.addInvalidationListener(listener);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Returns what this client has seen of each server, plus how often it failed over or hedged
+     * @return one line per server
+     */
+    public String getReplicaStats() {
+        StringBuilder stats = new StringBuilder("failovers=" + failovers.sum() + " hedges=" + hedges.sum());
+        for (Replica replica : replicas) {
+            stats.append(System.lineSeparator()).append("  ").append(replica);
+        }
+        return stats.toString();
     }
 
     /**
      * Calls the server's getFormattedCurrentSystemTime method.
      * @return String of current system time in "yyyy-MM-dd HH:mm:ss.SSS" format.
+     * @throws MapClientException if the server couldn't be reached or the call failed
      */
+    @Override
     public String getFormattedCurrentSystemTime() {
-        String result = null;
+        return call(server -> server.getFormattedCurrentSystemTime());
+    }
+
+    /**
+     * Sends a GET, PUT or DELETE to the server. A sampled command is traced, see Tracer.
+     * @param command the command
+     * @return the server's result, which carries the server's time
+     * @throws MapClientException if the server couldn't be reached or the call failed
+     */
+    @Override
+    public Result execute(Command command) {
+        long traceId = Tracer.startTrace();
+        if (traceId == 0) {
+            return executeCommand(command);
+        }
+        long start = Tracer.start(traceId);
         try {
-            result = server.getFormattedCurrentSystemTime();
-        } catch (RemoteException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Could not contact server");
+            return executeCommand(command.withTraceId(traceId));
+        } finally {
+            Tracer.span(traceId, "client " + command.getOpName(), start, command.getKey());
         }
-        return result;
+    }
+
+    private Result executeCommand(Command command) {
+        if (cache == null) {
+            return command.getOp() == Command.GET ? read(server -> server.execute(command)) : call(server -> server.execute(command));
+        }
+        if (command.getConsistency() != Consistency.ONE) {
+            return read(server -> server.execute(command)); // asked to be fresher than the cache can promise
+        }
+        if (command.getOp() != Command.GET) {
+            Result result = call(server -> server.execute(command));
+            cache.invalidate(new String[] {command.getKey()}); // read your own writes
+            return result;
+        }
+        long start = System.nanoTime();
+        int value = cache.get(command.getKey());
+        if (value != CompactStringIntMap.MISSING) {
+            cache.recordLatency(true, System.nanoTime() - start);
+            return new Result(Result.Status.OK, value);
+        }
+        return load(command, start);
+    }
+
+    /**
+     * Sends a GET, PUT or DELETE to the server without waiting for the answer
+     * @param command the command
+     * @return the server's result, or a MapClientException
+     */
+    @Override
+    public CompletableFuture<Result> executeAsync(Command command) {
+        long traceId = Tracer.startTrace();
+        if (traceId == 0) {
+            return executeCommandAsync(command);
+        }
+        long start = Tracer.start(traceId);
+        return executeCommandAsync(command.withTraceId(traceId))
+                .whenComplete((result, e) -> Tracer.span(traceId, "client " + command.getOpName(), start, command.getKey()));
+    }
+
+    private CompletableFuture<Result> executeCommandAsync(Command command) {
+        if (cache == null) {
+            return command.getOp() == Command.GET ? readAsync(server -> server.execute(command)) : callAsync(server -> server.execute(command));
+        }
+        if (command.getConsistency() != Consistency.ONE) {
+            return readAsync(server -> server.execute(command));
+        }
+        if (command.getOp() != Command.GET) {
+            return callAsync(server -> {
+                Result result = server.execute(command);
+                cache.invalidate(new String[] {command.getKey()});
+                return result;
+            });
+        }
+        long start = System.nanoTime();
+        int value = cache.get(command.getKey());
+        if (value != CompactStringIntMap.MISSING) {
+            cache.recordLatency(true, System.nanoTime() - start);
+            return CompletableFuture.completedFuture(new Result(Result.Status.OK, value));
+        }
+        long ticket = cache.beginLoad(command.getKey());
+        return readAsync(server -> server.execute(command)).thenApply(result -> loaded(command, result, ticket, start));
     }
 
     /**
@@ -65,16 +305,27 @@ public class RMIClient {
      * @param clientPORT_NUMBER - client's port number
      * @param splitClientMessage - String array containing the PUT command sent by the client
      * @return String representing our response to the client
+     * @throws MapClientException if the server couldn't be reached or the call failed
      */
-    public synchronized String handlePUT(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) {
-        String result = null;
-        try {
-            result = server.handlePUT(clientINetAddress, clientPORT_NUMBER, splitClientMessage);
-        } catch (RemoteException | InterruptedException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Could not contact server");
-        }
-        return result;
+    public String handlePUT(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) {
+        String response = call(server -> server.handlePUT(clientINetAddress, clientPORT_NUMBER, splitClientMessage));
+        invalidate(splitClientMessage);
+        return response;
+    }
+
+    /**
+     * Asynchronous handlePUT
+     * @param clientINetAddress - client's internet address
+     * @param clientPORT_NUMBER - client's port number
+     * @param splitClientMessage - String array containing the PUT command sent by the client
+     * @return String representing our response to the client, or a MapClientException
+     */
+    public CompletableFuture<String> handlePUTAsync(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) {
+        return callAsync(server -> {
+            String response = server.handlePUT(clientINetAddress, clientPORT_NUMBER, splitClientMessage);
+            invalidate(splitClientMessage);
+            return response;
+        });
     }
 
     /**
@@ -83,16 +334,29 @@ public class RMIClient {
      * @param clientPORT_NUMBER - client's port number
      * @param splitClientMessage - String array containing the GET command sent by the client
      * @return String representing our response to the client
+     * @throws MapClientException if the server couldn't be reached or the call failed
      */
-    public synchronized String handleGET(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) {
-        String result = null;
-        try {
-            result = server.handleGET(clientINetAddress, clientPORT_NUMBER, splitClientMessage);
-        } catch (RemoteException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Could not contact server");
+    public String handleGET(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) {
+        Command command = cache == null ? null : Command.parse(splitClientMessage, clientINetAddress + " " + clientPORT_NUMBER);
+        if (command != null && command.getOp() == Command.GET) {
+            return execute(command).describe(command);
         }
-        return result;
+        return read(server -> server.handleGET(clientINetAddress, clientPORT_NUMBER, splitClientMessage));
+    }
+
+    /**
+     * Asynchronous handleGET
+     * @param clientINetAddress - client's internet address
+     * @param clientPORT_NUMBER - client's port number
+     * @param splitClientMessage - String array containing the GET command sent by the client
+     * @return String representing our response to the client, or a MapClientException
+     */
+    public CompletableFuture<String> handleGETAsync(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) {
+        Command command = cache == null ? null : Command.parse(splitClientMessage, clientINetAddress + " " + clientPORT_NUMBER);
+        if (command != null && command.getOp() == Command.GET) {
+            return executeAsync(command).thenApply(result -> result.describe(command));
+        }
+        return readAsync(server -> server.handleGET(clientINetAddress, clientPORT_NUMBER, splitClientMessage));
     }
 
     /**
@@ -101,15 +365,355 @@ public class RMIClient {
      * @param clientPORT_NUMBER - client's port number
      * @param splitClientMessage - String array containing the DELETE command sent by the client
      * @return String representing our response to the client
+     * @throws MapClientException if the server couldn't be reached or the call failed
      */
-    public synchronized String handleDELETE(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) {
-        String result = null;
-        try {
-            result = server.handleDELETE(clientINetAddress, clientPORT_NUMBER, splitClientMessage);
-        } catch (RemoteException | InterruptedException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Could not contact server");
+    public String handleDELETE(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) {
+        String response = call(server -> server.handleDELETE(clientINetAddress, clientPORT_NUMBER, splitClientMessage));
+        invalidate(splitClientMessage);
+        return response;
+    }
+
+    /**
+     * Asynchronous handleDELETE
+     * @param clientINetAddress - client's internet address
+     * @param clientPORT_NUMBER - client's port number
+     * @param splitClientMessage - String array containing the DELETE command sent by the client
+     * @return String representing our response to the client, or a MapClientException
+     */
+    public CompletableFuture<String> handleDELETEAsync(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) {
+        return callAsync(server -> {
+            String response = server.handleDELETE(clientINetAddress, clientPORT_NUMBER, splitClientMessage);
+            invalidate(splitClientMessage);
+            return response;
+        });
+    }
+
+    /**
+     * Sends a transaction to the server, which applies all of its operations on every server or none of them
+     * @param clientINetAddress - client's internet address
+     * @param clientPORT_NUMBER - client's port number
+     * @param transaction - the PUTs and DELETEs to apply together
+     * @return String representing our response to the client
+     * @throws MapClientException if the server couldn't be reached or the call failed
+     */
+    @Override
+    public String handleTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) {
+        long traceId = Tracer.startTrace();
+        transaction.setTraceId(traceId);
+        long start = Tracer.start(traceId);
+        String response = call(server -> server.handleTransaction(clientINetAddress, clientPORT_NUMBER, transaction));
+        if (cache != null) {
+            cache.invalidate(transaction.keys());
+        }
+        if (traceId != 0) {
+            Tracer.span(traceId, "client TRANSACTION", start, transaction.size() + " operations");
+        }
+        return response;
+    }
+
+    /**
+     * Runs a transaction like handleTransaction, and returns what happened to it rather than a sentence
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param transaction the PUTs and DELETEs to apply together
+     * @return OK with the number of operations, ABORTED, or why the transaction is bad
+     * @throws MapClientException if the server couldn't be reached or the call failed
+     */
+    public Result submitTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) {
+        long traceId = Tracer.startTrace();
+        transaction.setTraceId(traceId);
+        long start = Tracer.start(traceId);
+        Result result = call(server -> server.submitTransaction(clientINetAddress, clientPORT_NUMBER, transaction));
+        if (cache != null) {
+            cache.invalidate(transaction.keys());
+        }
+        if (traceId != 0) {
+            Tracer.span(traceId, "client TRANSACTION", start, transaction.size() + " operations");
+        }
+        return result;
+    }
+
+    /**
+     * Starts moving the keys a joining group takes over from this group, see ShardedClient.addGroup
+     * @param group this client's group, as "host:port"
+     * @param groups every group on the ring now
+     * @param joining the group joining the ring
+     * @return the entries to copy, as PUTs
+     * @throws MapClientException if the server couldn't be reached or the call failed
+     */
+    public Transaction beginShardMove(String group, String[] groups, String joining) {
+        return call(server -> server.beginShardMove(group, groups, joining));
+    }
+
+    /**
+     * Puts this group on a ring and ends a move, see MapServer.endShardMove
+     * @param group this client's group, as "host:port"
+     * @param groups every group on the ring
+     * @param moved true to delete the entries beginShardMove exported
+     * @throws MapClientException if the server couldn't be reached or the call failed
+     */
+    public void endShardMove(String group, String[] groups, boolean moved) {
+        call(server -> {
+            server.endShardMove(group, groups, moved);
+            return null;
+        });
+    }
+
+    /**
+     * Returns the groups on the ring this group is on
+     * @return the groups, or null if the group isn't on a ring
+     * @throws MapClientException if the server couldn't be reached or the call failed
+     */
+    public String[] getShardGroups() {
+        return call(server -> server.getShardGroups());
+    }
+
+    /**
+     * Streams the entries of a key range in key order from the servers, a page at a time. Each page is read
+     * from whichever server a GET would be, so a scan keeps going if one of them goes down.
+     * @param from first key of the range
+     * @param to key the range ends before, or null for no end
+     * @param pageSize entries per round trip, at most MapServer.MAX_SCAN_PAGE
+     * @return the entries, as PUTs; its methods throw MapClientException if a page can't be read
+     */
+    @Override
+    public Iterator<Transaction.Operation> scan(String from, String to, int pageSize) {
+        return new ScanIterator((first, end, limit) -> readAsync(server -> server.scan(first, end, limit)), from, to, pageSize);
+    }
+
+    /**
+     * Asynchronous handleTransaction
+     * @param clientINetAddress - client's internet address
+     * @param clientPORT_NUMBER - client's port number
+     * @param transaction - the PUTs and DELETEs to apply together
+     * @return String representing our response to the client, or a MapClientException
+     */
+    public CompletableFuture<String> handleTransactionAsync(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) {
+        return callAsync(server -> {
+            String response = server.handleTransaction(clientINetAddress, clientPORT_NUMBER, transaction);
+            if (cache != null) {
+                cache.invalidate(transaction.keys());
+            }
+            return response;
+        });
+    }
+
+    /**
+     * Returns how many asynchronous requests are being sent or waiting right now
+     * @return requests in flight plus requests queued
+     */
+    public int getPendingRequests() {
+        return executor.getActiveCount() + executor.getQueue().size();
+    }
+
+    /**
+     * Stops the threads behind the asynchronous API once the requests already accepted are done
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        if (cache != null) {
+            try {
+                UnicastRemoteObject.unexportObject(cache, true);
+            } catch (NoSuchObjectException e) {
+                // never exported, startClient wasn't called
+            }
+        }
+    }
+
+    /**
+     * Sends a GET the cache couldn't answer, and caches the value unless the key changed meanwhile
+     */
+    private Result load(Command command, long start) {
+        long ticket = cache.beginLoad(command.getKey());
+        return loaded(command, read(server -> server.execute(command)), ticket, start);
+    }
+
+    private Result loaded(Command command, Result result, long ticket, long start) {
+        if (result.isSuccessful()) {
+            cache.put(command.getKey(), result.getValue(), ticket, start);
         }
+        cache.recordLatency(false, System.nanoTime() - start);
         return result;
     }
+
+    private void invalidate(String[] splitClientMessage) {
+        if (cache != null && splitClientMessage.length > 1) {
+            cache.invalidate(new String[] {splitClientMessage[1]});
+        }
+    }
+
+    private <T> T call(RemoteCall<T> call) {
+        return callFrom(pick(null), call);
+    }
+
+    /**
+     * Calls the replica, or if it can't be reached, each of the others in turn. Only failures to reach a server
+     * are retried: the request never got to it, so sending it elsewhere can't apply it twice.
+     */
+    private <T> T callFrom(Replica replica, RemoteCall<T> call) {
+        boolean[] tried = new boolean[replicas.length];
+        while (true) {
+            tried[indexOf(replica)] = true;
+            replica.inFlight.incrementAndGet();
+            long start = System.nanoTime();
+            MapClientException failure;
+            try {
+                T result = call.call(replica.server);
+                replica.recordLatency(System.nanoTime() - start);
+                return result;
+            } catch (RemoteException | InterruptedException e) {
+                failure = translate(replica, e);
+            } finally {
+                replica.inFlight.decrementAndGet();
+            }
+            if (!(failure instanceof ServerUnavailableException)) {
+                throw failure;
+            }
+            replica.failures.increment();
+            replica.downUntilNanos = System.nanoTime() + DOWN_NANOS;
+            replica = pick(tried);
+            if (replica == null) {
+                throw failure;
+            }
+            failovers.increment();
+        }
+    }
+
+    /**
+     * Power of two choices: of two random servers not yet tried, the one expected to answer sooner. Servers
+     * that recently couldn't be reached are only picked when no other server is left.
+     * @param tried servers to skip, or null
+     * @return the server to call, or null if every server has been tried
+     */
+    private Replica pick(boolean[] tried) {
+        long now = System.nanoTime();
+        int[] up = new int[replicas.length];
+        int ups = 0;
+        int down = -1;
+        for (int i = 0; i < replicas.length; i++) {
+            if (tried != null && tried[i]) {
+                continue;
+            }
+            if (replicas[i].isDown(now)) {
+                down = i;
+            } else {
+                up[ups++] = i;
+            }
+        }
+        if (ups == 0) {
+            return down < 0 ? null : replicas[down];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Replica first = replicas[up[random.nextInt(ups)]];
+        if (ups == 1) {
+            return first;
+        }
+        Replica second = first;
+        while (second == first) {
+            second = replicas[up[random.nextInt(ups)]];
+        }
+        return second.load() < first.load() ? second : first;
+    }
+
+    private int indexOf(Replica replica) {
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i] == replica) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(replica.name);
+    }
+
+    private <T> CompletableFuture<T> callAsync(RemoteCall<T> call) {
+        try {
+            return CompletableFuture.supplyAsync(() -> call(call), executor);
+        } catch (RejectedExecutionException e) {
+            return overloaded();
+        }
+    }
+
+    /**
+     * A call that only reads, so it can be hedged
+     */
+    private <T> T read(RemoteCall<T> call) {
+        if (hedgeAfterMillis <= 0 || replicas.length < 2) {
+            return call(call);
+        }
+        try {
+            return readAsync(call).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof MapClientException) {
+                throw (MapClientException) e.getCause();
+            }
+            throw new RemoteCallFailedException("Read failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Sends the read to one server and, if it hasn't answered within hedgeAfterMillis, to a second one as well.
+     * The first answer wins; the read only fails if both do.
+     */
+    private <T> CompletableFuture<T> readAsync(RemoteCall<T> call) {
+        if (hedgeAfterMillis <= 0 || replicas.length < 2) {
+            return callAsync(call);
+        }
+        CompletableFuture<T> answer = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        Replica primary = pick(null);
+        try {
+            executor.execute(() -> send(primary, call, answer, outstanding));
+        } catch (RejectedExecutionException e) {
+            return overloaded();
+        }
+        CompletableFuture.delayedExecutor(hedgeAfterMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (answer.isDone() || outstanding.getAndIncrement() == 0) {
+                return; // answered, or the first request already failed on every server
+            }
+            boolean[] tried = new boolean[replicas.length];
+            tried[indexOf(primary)] = true;
+            Replica backup = pick(tried);
+            try {
+                executor.execute(() -> send(backup, call, answer, outstanding));
+                hedges.increment();
+            } catch (RejectedExecutionException e) {
+                outstanding.decrementAndGet(); // too busy to hedge, the first request is still running
+            }
+        });
+        return answer;
+    }
+
+    /**
+     * Makes one attempt at a hedged read. Whatever it throws counts as a failed attempt, so the answer is
+     * always completed once the last attempt still running has failed, and never left waiting.
+     */
+    private <T> void send(Replica replica, RemoteCall<T> call, CompletableFuture<T> answer, AtomicInteger outstanding) {
+        try {
+            answer.complete(callFrom(replica, call));
+        } catch (Throwable e) {
+            if (outstanding.decrementAndGet() == 0) {
+                answer.completeExceptionally(e instanceof MapClientException ? e
+                        : new RemoteCallFailedException("Read from " + replica.name + " at " + IP_ADDRESS + ":" + PORT_NUMBER + " failed: " + e, e));
+            }
+        }
+    }
+
+    private <T> CompletableFuture<T> overloaded() {
+        CompletableFuture<T> refused = new CompletableFuture<>();
+        refused.completeExceptionally(new ClientOverloadedException("Too many requests waiting for server at "
+                + IP_ADDRESS + ":" + PORT_NUMBER + " (" + executor.getQueue().size() + " queued)"));
+        return refused;
+    }
+
+    private MapClientException translate(Replica replica, Exception e) {
+        String server = replica.name + " at " + IP_ADDRESS + ":" + PORT_NUMBER;
+        if (e instanceof ConnectException || e instanceof ConnectIOException || e instanceof UnknownHostException
+                || e instanceof NoSuchObjectException) {
+            return new ServerUnavailableException("Could not contact " + server, e);
+        }
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        return new RemoteCallFailedException("Request to " + server + " failed: " + e, e);
+    }
 }
@@ -0,0 +1,16 @@
+/**
+ * RemoteCallFailedException. The client reached its server but the call failed part way, e.g. the connection
+ * dropped or the server threw. A PUT or DELETE may or may not have been committed.
+ */
+public class RemoteCallFailedException extends MapClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message what went wrong
+     * @param cause the underlying exception
+     */
+    public RemoteCallFailedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
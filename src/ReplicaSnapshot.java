@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * ReplicaSnapshot. Writes a replica's whole map to a compact binary file, and loads the newest one back
+ * when the replica starts, so a restart only has to replay the log written since that snapshot.
+ *
+ * A snapshot file is [int magic][int version][long lsn], then one block per store stripe as
+ * [int byte length][int entry count][entries], then an end marker [int -1][int 0], then
+ * [long total entries][int crc32 of everything before the crc]. The entries are in CompactStringIntMap's
+ * own arena format, so loading is a memory-mapped read straight into the maps, one block per thread,
+ * without building a String or Integer per key.
+ */
+public class ReplicaSnapshot {
+
+    private static final int MAGIC = 0x52534e50; // "RSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int KEEP = 2;
+
+    private final Path directory;
+
+    /**
+     * @param directory directory holding the snapshot files
+     * @throws IOException if the directory can't be created
+     */
+    public ReplicaSnapshot(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+    }
+
+    /**
+     * Writes a snapshot of the store. Writers keep going while the snapshot is taken, so the snapshot may
+     * also hold some writes after lsn; that's fine because replaying PUTs and DELETEs again is harmless.
+     * @param lsn every write up to this log sequence number is already applied to the store
+     * @param store the replica's store
+     * @return path of the new snapshot file
+     * @throws IOException if the snapshot can't be written
+     */
+    public Path write(long lsn, ReplicaStore store) throws IOException {
+        Path temp = directory.resolve(String.format("snapshot-%020d.tmp", lsn));
+        CRC32 crc = new CRC32();
+        long[] total = new long[1];
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(out, crc, ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putLong(lsn));
+            store.forEachStripe((entries, count) -> {
+                write(out, crc, ByteBuffer.allocate(8).putInt(entries.length).putInt(count));
+                write(out, crc, ByteBuffer.wrap(entries).position(entries.length));
+                total[0] += count;
+            });
+            write(out, crc, ByteBuffer.allocate(16).putInt(-1).putInt(0).putLong(total[0]));
+            ByteBuffer trailer = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+            trailer.flip();
+            out.write(trailer);
+            out.force(true);
+        }
+        Path snapshot = directory.resolve(String.format("snapshot-%020d.snap", lsn));
+        Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        prune();
+        return snapshot;
+    }
+
+    private static void write(FileChannel out, CRC32 crc, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Loads the newest intact snapshot into an empty store. A damaged snapshot is skipped in favour of
+     * the one before it.
+     * @param store the replica's store, expected to be empty
+     * @return lsn of the loaded snapshot, or 0 if there is none
+     * @throws IOException if the directory can't be read
+     */
+    public long loadNewest(ReplicaStore store) throws IOException {
+        for (Path snapshot : list()) {
+            try {
+                long start = System.nanoTime();
+                long lsn = load(snapshot, store);
+                System.out.println("Loaded " + snapshot.getFileName() + " (" + store.size() + " keys) in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+                return lsn;
+            } catch (IOException e) {
+                System.out.println("Skipping damaged snapshot " + snapshot + ": " + e.getMessage());
+            }
+        }
+        return 0;
+    }
+
+    private long load(Path snapshot, ReplicaStore store) throws IOException {
+        List<MappedByteBuffer> blocks = new ArrayList<>();
+        long lsn;
+        long entryCount;
+        try (FileChannel in = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < HEADER_BYTES + 20) {
+                throw new IOException("snapshot is truncated");
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer header = in.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            crc.update(header.duplicate());
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("not a snapshot file");
+            }
+            lsn = header.getLong();
+            long position = HEADER_BYTES;
+            long entries = 0;
+            while (true) {
+                if (position + 8 > size) {
+                    throw new IOException("snapshot is truncated");
+                }
+                ByteBuffer blockHeader = in.map(FileChannel.MapMode.READ_ONLY, position, 8);
+                crc.update(blockHeader.duplicate());
+                int length = blockHeader.getInt();
+                int count = blockHeader.getInt();
+                position += 8;
+                if (length == -1) {
+                    break;
+                }
+                if (length < 0 || position + length > size) {
+                    throw new IOException("snapshot is truncated");
+                }
+                MappedByteBuffer block = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                crc.update(block.duplicate());
+                blocks.add(block);
+                entries += count;
+                position += length;
+            }
+            if (position + 12 != size) {
+                throw new IOException("snapshot is truncated");
+            }
+            ByteBuffer trailer = in.map(FileChannel.MapMode.READ_ONLY, position, 12);
+            crc.update(trailer.duplicate().limit(8));
+            entryCount = trailer.getLong();
+            if (entryCount != entries) {
+                throw new IOException("snapshot entry count does not match");
+            }
+            if (trailer.getInt() != (int) crc.getValue()) {
+                throw new IOException("snapshot checksum does not match");
+            }
+        }
+        long bytes = 0;
+        for (MappedByteBuffer block : blocks) {
+            bytes += block.capacity();
+        }
+        store.ensureCapacity(entryCount, bytes);
+        // blocks hold disjoint keys, so they can be loaded in parallel
+        blocks.parallelStream().forEach(block -> loadBlock(block, store));
+        return lsn;
+    }
+
+    private static void loadBlock(ByteBuffer block, ReplicaStore store) {
+        byte[] key = new byte[256];
+        while (block.hasRemaining()) {
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = block.get();
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (key.length < length) {
+                key = new byte[Math.max(length, key.length * 2)];
+            }
+            block.get(key, 0, length);
+            store.putEncoded(key, 0, length, block.getInt());
+        }
+    }
+
+    /**
+     * Returns the lsn of the oldest snapshot still kept. The log must be kept from there on, so that if the
+     * newest snapshot turns out to be damaged the older one can still be brought up to date.
+     * @return lsn of the oldest kept snapshot, or 0 if there is none
+     * @throws IOException if the directory can't be read
+     */
+    public long oldestLsn() throws IOException {
+        List<Path> snapshots = list();
+        if (snapshots.isEmpty()) {
+            return 0;
+        }
+        String name = snapshots.get(snapshots.size() - 1).getFileName().toString();
+        return Long.parseLong(name.substring("snapshot-".length(), name.length() - ".snap".length()));
+    }
+
+    private List<Path> list() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "snapshot-*.snap")) {
+            for (Path snapshot : stream) {
+                snapshots.add(snapshot);
+            }
+        }
+        // zero padded lsns sort by name, newest first
+        snapshots.sort(Collections.reverseOrder());
+        return snapshots;
+    }
+
+    private void prune() throws IOException {
+        List<Path> snapshots = list();
+        for (int i = KEEP; i < snapshots.size(); i++) {
+            Files.deleteIfExists(snapshots.get(i));
+        }
+    }
+}
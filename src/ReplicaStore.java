@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * ReplicaStore. The key-value storage engine behind each ServerImpl. The keys are split across stripes,
+ * and each stripe is a CompactStringIntMap guarded by its own StampedLock.
+ *
+ * Reads are optimistic: they read the stripe without locking and then check that no write happened in
+ * between, so a GET is never stuck behind a PUT or DELETE that is waiting on the coordinator. Writes only
+ * contend with other writes that land in the same stripe.
+ *
+ * The stripes are hash tables, so the keys are also kept in order in a concurrent skip list, which scan walks
+ * to read a key range without looking at the rest of the store. A key is added to or removed from it under
+ * its stripe's write lock, together with the stripe itself. The list costs a String and a few small nodes per
+ * key, several times what the compact stripes take (see StoreMemoryBenchmark), so it is only kept when asked
+ * for; a store made without it still scans, by searching every stripe for the range.
+ */
+public class ReplicaStore {
+
+    /**
+     * Receives a copy of one stripe's entries, see forEachStripe
+     */
+    public interface StripeVisitor {
+        void visit(byte[] entries, int count) throws IOException;
+    }
+
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 4;
+
+    private final CompactStringIntMap[] stripes;
+    private final StampedLock[] locks;
+    private final int stripeShift;
+    private final ConcurrentSkipListSet<String> ordered; // every key in order, or null if not kept
+
+    public ReplicaStore() {
+        this(0);
+    }
+
+    /**
+     * Creates a store without the ordered index
+     * @param expectedSize how many keys we expect to hold, used to pre-size the stripes
+     */
+    public ReplicaStore(int expectedSize) {
+        this(expectedSize, false);
+    }
+
+    /**
+     * @param expectedSize how many keys we expect to hold, used to pre-size the stripes
+     * @param orderedIndex whether to keep the keys in order for scan as well
+     */
+    public ReplicaStore(int expectedSize, boolean orderedIndex) {
+        this.ordered = orderedIndex ? new ConcurrentSkipListSet<>() : null;
+        // at least two stripes per core so writers rarely share one
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        this.stripes = new CompactStringIntMap[stripeCount];
+        this.locks = new StampedLock[stripeCount];
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new CompactStringIntMap(expectedSize / stripeCount);
+            locks[i] = new StampedLock();
+        }
+    }
+
+    /**
+     * Returns the value stored for a key, reading optimistically without taking the stripe's lock
+     * @param key employee name
+     * @return the salary for the key, or null if the key is not in the store
+     */
+    public Integer get(String key) {
+        int value = getInt(key);
+        return value == CompactStringIntMap.MISSING ? null : value;
+    }
+
+    /**
+     * Same as get, without boxing the value
+     * @param key employee name
+     * @return the salary for the key, or CompactStringIntMap.MISSING if the key is not in the store
+     */
+    public int getInt(String key) {
+        int hash = CompactStringIntMap.hash(key);
+        int s = stripe(hash);
+        CompactStringIntMap map = stripes[s];
+        StampedLock lock = locks[s];
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            int value = map.get(key, hash);
+            if (lock.validate(stamp)) {
+                return value;
+            }
+        }
+        // a busy stripe, fall back to a real read lock rather than spinning forever
+        long stamp = lock.readLock();
+        try {
+            return map.get(key, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Puts a key-value pair into the store, replacing any old value
+     * @param key employee name
+     * @param value employee salary
+     */
+    public void put(String key, int value) {
+        int hash = CompactStringIntMap.hash(key);
+        int s = stripe(hash);
+        long stamp = locks[s].writeLock();
+        try {
+            if (stripes[s].put(key, hash, value) == CompactStringIntMap.MISSING && ordered != null) {
+                ordered.add(key);
+            }
+        } finally {
+            locks[s].unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a key from the store
+     * @param key employee name
+     * @return true if the key was in the store
+     */
+    public boolean remove(String key) {
+        int hash = CompactStringIntMap.hash(key);
+        int s = stripe(hash);
+        long stamp = locks[s].writeLock();
+        try {
+            boolean removed = stripes[s].remove(key, hash) != CompactStringIntMap.MISSING;
+            if (removed && ordered != null) {
+                ordered.remove(key);
+            }
+            return removed;
+        } finally {
+            locks[s].unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Puts a key-value pair into the store from the key's UTF-8 bytes. Used to bulk load snapshots.
+     * @param key array holding the key
+     * @param start where the key starts
+     * @param length key length in bytes
+     * @param value employee salary
+     */
+    public void putEncoded(byte[] key, int start, int length, int value) {
+        int hash = CompactStringIntMap.hash(key, start, length);
+        int s = stripe(hash);
+        long stamp = locks[s].writeLock();
+        try {
+            if (stripes[s].putEncoded(key, start, length, hash, value) == CompactStringIntMap.MISSING && ordered != null) {
+                ordered.add(new String(key, start, length, StandardCharsets.UTF_8));
+            }
+        } finally {
+            locks[s].unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Grows every stripe ahead of a bulk load so the load doesn't keep rehashing
+     * @param expectedSize number of keys about to be loaded
+     * @param expectedBytes their size in CompactStringIntMap entry format
+     */
+    public void ensureCapacity(long expectedSize, long expectedBytes) {
+        for (int i = 0; i < stripes.length; i++) {
+            long stamp = locks[i].writeLock();
+            try {
+                // a little headroom, keys don't split perfectly evenly across stripes
+                stripes[i].ensureCapacity((int) Math.min(1 << 29, expectedSize / stripes.length * 9 / 8),
+                        expectedBytes / stripes.length * 9 / 8);
+            } finally {
+                locks[i].unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Hands a copy of each stripe's entries to the visitor, one stripe at a time. A stripe is only locked
+     * (against writers, not readers) while its entries are copied, never while the visitor runs.
+     * @param visitor receives each stripe's entries in CompactStringIntMap.copyEntries format
+     * @throws IOException if the visitor throws
+     */
+    public void forEachStripe(StripeVisitor visitor) throws IOException {
+        for (int i = 0; i < stripes.length; i++) {
+            byte[] entries;
+            int count;
+            long stamp = locks[i].readLock();
+            try {
+                entries = stripes[i].copyEntries();
+                count = stripes[i].size();
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
+            visitor.visit(entries, count);
+        }
+    }
+
+    /**
+     * Returns how many stripes the keys are split across
+     * @return stripe count
+     */
+    public int stripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Copies one stripe's entries, locking it against writers only while they are copied
+     * @param stripe which stripe, from 0 to stripeCount() - 1
+     * @return the entries in CompactStringIntMap.copyEntries format
+     */
+    public byte[] copyStripe(int stripe) {
+        long stamp = locks[stripe].readLock();
+        try {
+            return stripes[stripe].copyEntries();
+        } finally {
+            locks[stripe].unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Hands every entry to the visitor, a stripe at a time like forEachStripe, so it sees each stripe as it
+     * was at one instant but not the whole store
+     * @param visitor receives each key and value
+     */
+    public void forEachEntry(CompactStringIntMap.EntryVisitor visitor) {
+        try {
+            forEachStripe((entries, count) -> CompactStringIntMap.forEachEntry(entries, visitor));
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // the visitor above doesn't throw
+        }
+    }
+
+    /**
+     * Hands the entries whose keys are in a range to the visitor in key order, at most limit of them. With the
+     * ordered index only the keys in the range are looked at; without it every stripe is searched, keeping the
+     * limit smallest keys found. Not a snapshot: an entry written while the scan runs may or may not be seen.
+     * @param from first key of the range
+     * @param to key the range ends before, or null for no end
+     * @param limit most entries to visit
+     * @param visitor receives each key and value
+     * @return how many entries were visited
+     */
+    public int scan(String from, String to, int limit, CompactStringIntMap.EntryVisitor visitor) {
+        if (limit <= 0 || (to != null && from.compareTo(to) >= 0)) {
+            return 0;
+        }
+        if (ordered == null) {
+            return scanStripes(from, to, limit, visitor);
+        }
+        NavigableSet<String> range = to == null ? ordered.tailSet(from, true) : ordered.subSet(from, true, to, false);
+        int count = 0;
+        for (String key : range) {
+            int value = getInt(key);
+            if (value != CompactStringIntMap.MISSING) { // removed since the index was read
+                visitor.visit(key, value);
+                if (++count == limit) {
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int scanStripes(String from, String to, int limit, CompactStringIntMap.EntryVisitor visitor) {
+        TreeMap<String, Integer> smallest = new TreeMap<>();
+        forEachEntry((key, value) -> {
+            if (key.compareTo(from) < 0 || (to != null && key.compareTo(to) >= 0)) {
+                return;
+            }
+            if (smallest.size() < limit) {
+                smallest.put(key, value);
+            } else if (key.compareTo(smallest.lastKey()) < 0) {
+                smallest.pollLastEntry();
+                smallest.put(key, value);
+            }
+        });
+        for (Map.Entry<String, Integer> entry : smallest.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+        return smallest.size();
+    }
+
+    /**
+     * Returns the number of keys in the store. Not a snapshot, writes may land while we add up the stripes
+     * @return number of keys
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            long stamp = locks[i].readLock();
+            try {
+                size += stripes[i].size();
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    private int stripe(int hash) {
+        // the maps index with the low bits of the hash, so the stripe comes from the high bits
+        return hash >>> stripeShift;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < stripes.length; i++) {
+            long stamp = locks[i].readLock();
+            try {
+                String stripe = stripes[i].toString();
+                if (stripe.length() > 2) {
+                    sb.append(sb.length() == 0 ? "{" : ", ").append(stripe, 1, stripe.length() - 1);
+                }
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
+        }
+        return sb.length() == 0 ? "{}" : sb.append('}').toString();
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Result. A server's answer to a Command: a status code, the value for a successful GET or conditional write,
+ * or the current value a conditional write found instead of what it needed, and the server's
+ * clock when it answered, so the client can timestamp the reply without asking the server for the time
+ * again. describe turns it back into the sentence the String API has always returned.
+ */
+public class Result implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * What happened to the command
+     */
+    public enum Status {
+        /** Done; for a GET the value is set, for a conditional write the value the key now has */
+        OK,
+        /** GET or DELETE of a key that isn't in the map */
+        NOT_FOUND,
+        /** The key isn't alphanumeric */
+        BAD_KEY,
+        /** The PUT's value isn't a non-negative integer, or an INCR's amount isn't one */
+        BAD_VALUE,
+        /** Both the key and the PUT's value are bad */
+        BAD_KEY_AND_VALUE,
+        /** The request had the wrong number of arguments (String API only) */
+        BAD_ARGUMENTS,
+        /** The servers didn't all vote to commit */
+        ABORTED,
+        /** Not a GET, PUT or DELETE */
+        BAD_OP,
+        /** Too few servers agreed on the value for the GET's consistency level */
+        NOT_ENOUGH_REPLICAS,
+        /** A conditional write's condition didn't hold; the value is the key's current value */
+        CONDITION_FAILED,
+        /** The key belongs to another replica group; ask this one for the ring it is on, see ShardedClient */
+        WRONG_SHARD,
+        /** The key is being moved to a group that is joining the ring; writes to it can be tried again shortly */
+        MOVING
+    }
+
+    private static final Status[] STATUSES = Status.values();
+
+    private Status status;
+    private int value;
+    private long serverTimeMillis;
+
+    /**
+     * Required by Externalizable
+     */
+    public Result() {
+    }
+
+    /**
+     * @param status what happened to the command
+     * @param value the value for a successful GET, the key's value for a conditional write, otherwise 0
+     */
+    public Result(Status status, int value) {
+        this.status = status;
+        this.value = value;
+        this.serverTimeMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Getter method for the status
+     * @return what happened to the command
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns true if the command was carried out
+     * @return true for OK
+     */
+    public boolean isSuccessful() {
+        return status == Status.OK;
+    }
+
+    /**
+     * Returns the value of a successful GET, or the value a conditional write left or found
+     * @return employee salary
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the server's clock when it answered
+     * @return milliseconds since the epoch
+     */
+    public long getServerTimeMillis() {
+        return serverTimeMillis;
+    }
+
+    /**
+     * Returns the server's clock when it answered, in the same format as MapServer.getFormattedCurrentSystemTime
+     * @return server time in "yyyy-MM-dd HH:mm:ss.SSS" format
+     */
+    public String getServerTimestamp() {
+        return CachedClock.format(serverTimeMillis);
+    }
+
+    /**
+     * Returns the sentence the String API answers with for this result
+     * @param command the command this is the result of
+     * @return String representing the server's response to the client
+     */
+    public String describe(Command command) {
+        String op = command.getOpName();
+        String key = command.getKey();
+        switch (status) {
+            case OK:
+                if (command.getOp() == Command.GET) {
+                    return "Successful GET operation. key=" + key + " value=" + value;
+                }
+                return "Successful " + op + " operation: " + (command.isConditional() ? key + " " + value : describeTarget(command));
+            case ABORTED:
+                return "Unsuccessful " + op + " operation: " + describeTarget(command);
+            case NOT_FOUND:
+                return "Unsuccessful operation: " + op + "'s key does not exist";
+            case BAD_KEY:
+                return "Unsuccessful operation: " + op + "'s key must contain only alphanumeric characters";
+            case BAD_VALUE:
+                return "Unsuccessful operation: " + op + "'s value must be a non-negative integer";
+            case BAD_KEY_AND_VALUE:
+                return "Unsuccessful operation: " + op + "'s key must contain only alphanumeric characters and " + op + "'s value must be a non-negative integer";
+            case CONDITION_FAILED:
+                if (command.getOp() == Command.COMPARE_AND_SET) {
+                    return "Unsuccessful CAS operation: " + key + "'s value is " + value + ", not " + command.getExpected();
+                } else if (command.getOp() == Command.INCREMENT) {
+                    return "Unsuccessful INCR operation: " + key + "'s value " + value + " plus " + command.getValue() + " is not a non-negative integer";
+                }
+                return "Unsuccessful PUTIFABSENT operation: " + key + " already exists with value " + value;
+            case NOT_ENOUGH_REPLICAS:
+                return "Unsuccessful GET operation: too few servers agreed on " + key + "'s value for a " + command.getConsistency() + " read";
+            case BAD_ARGUMENTS:
+                return "Unsuccessful operation: " + op + " request does not have appropriate number of arguments";
+            case WRONG_SHARD:
+                return "Unsuccessful operation: " + op + "'s key is on another shard";
+            case MOVING:
+                return "Unsuccessful " + op + " operation: " + key + " is being moved to another shard, try again";
+            default:
+                return "Unsuccessful operation: Please pick from 'PUT', 'GET', 'DELETE', 'TXN'";
+        }
+    }
+
+    /**
+     * Returns the sentence the String API answers a transaction with for this result
+     * @param transaction the transaction this is the result of; for BAD_KEY, BAD_VALUE and NOT_FOUND the
+     *                    result's value is the index of the operation at fault
+     * @return String representing the server's response to the client
+     */
+    public String describe(Transaction transaction) {
+        switch (status) {
+            case OK:
+                return "Successful TRANSACTION: " + transaction.size() + " operations";
+            case ABORTED:
+                return "Unsuccessful TRANSACTION: " + transaction.size() + " operations";
+            case BAD_ARGUMENTS:
+                return "Unsuccessful operation: TRANSACTION must contain at least one PUT or DELETE";
+            case BAD_KEY:
+                return "Unsuccessful operation: TRANSACTION's keys must contain only alphanumeric characters (" + transaction.getOperations().get(value) + ")";
+            case BAD_VALUE:
+                return "Unsuccessful operation: TRANSACTION's PUT values must be non-negative integers (" + transaction.getOperations().get(value) + ")";
+            case NOT_FOUND:
+                return "Unsuccessful operation: TRANSACTION's DELETE key does not exist (" + transaction.getOperations().get(value) + ")";
+            case WRONG_SHARD:
+                return "Unsuccessful operation: TRANSACTION's keys are on another shard";
+            case MOVING:
+                return "Unsuccessful TRANSACTION: " + transaction.size() + " operations, its keys are being moved to another shard, try again";
+            default:
+                return "Unsuccessful TRANSACTION: " + status;
+        }
+    }
+
+    private static String describeTarget(Command command) {
+        return command.getOp() == Command.PUT ? command.getKey() + " " + command.getValue() : command.getKey();
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(status.ordinal());
+        out.writeLong(serverTimeMillis);
+        if (status == Status.OK || status == Status.CONDITION_FAILED) {
+            out.writeInt(value);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        status = STATUSES[in.readByte()];
+        serverTimeMillis = in.readLong();
+        value = status == Status.OK || status == Status.CONDITION_FAILED ? in.readInt() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return status == Status.OK || status == Status.CONDITION_FAILED ? status.name() + " " + value : status.name();
+    }
+}
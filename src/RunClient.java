@@ -2,10 +2,13 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.util.Iterator;
 import java.util.Scanner;
 
 public class RunClient {
 
+    private static final int SCAN_PAGE = 256;
+
     /**
      * Per project requirements, we are to pre-populate our map with data. This method calls 7 PUTS,
      * 5 GETS, and 5 DELETES.
@@ -15,121 +18,81 @@ public class RunClient {
      * @param client which will call methods on the server which populate the server
      * @return void
      */
-    private static void fillUpServer(String IP_ADDRESS, String PORT_NUMBER, RMIClient client) {
+    private static void fillUpServer(String IP_ADDRESS, String PORT_NUMBER, MapClient client) {
+        String[] clientMessages = {
+                // populate with 2 key-value pairs (aka 2 PUTS)
+                "PUT Tom 70000", "PUT Jerry 80000",
+                // 5 PUTs
+                "PUT Billy 150000", "PUT Mandy 60000", "PUT Jill 100000", "PUT Jack 120000", "PUT Elon 5000000",
+                // 5 GETs
+                "GET Billy", "GET Mandy", "GET Jill", "GET Jack", "GET Elon",
+                // 5 DELETEs
+                "DELETE Billy", "DELETE Mandy", "DELETE Jill", "DELETE Jack", "DELETE Elon"
+        };
         try {
-
-            String stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-
-            // populate with 2 key-value pairs (aka 2 PUTS)
-            String clientMessage = "PUT Tom 70000";
-            String[] splitClientMessage = clientMessage.split(" ");
-            String serverResponse = client.handlePUT(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "PUT Jerry 80000";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handlePUT(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            // 5 PUTs
-            clientMessage = "PUT Billy 150000";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handlePUT(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "PUT Mandy 60000";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handlePUT(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-
-            clientMessage = "PUT Jill 100000";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handlePUT(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "PUT Jack 120000";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handlePUT(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "PUT Elon 5000000";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handlePUT(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            // 5 GETs
-            clientMessage = "GET Billy";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handleGET(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "GET Mandy";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handleGET(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "GET Jill";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handleGET(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "GET Jack";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handleGET(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "GET Elon";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handleGET(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            // 5 DELETEs
-            clientMessage = "DELETE Billy";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handleDELETE(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "DELETE Mandy";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handleDELETE(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "DELETE Jill";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handleDELETE(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "DELETE Jack";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handleDELETE(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
-
-            clientMessage = "DELETE Elon";
-            splitClientMessage = clientMessage.split(" ");
-            serverResponse = client.handleDELETE(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-            stringCurrentDate = "(Timestamp=" + client.getFormattedCurrentSystemTime() + ")";
-            System.out.println(stringCurrentDate + ": " + serverResponse);
+            for (String clientMessage : clientMessages) {
+                System.out.println(runCommand(IP_ADDRESS, PORT_NUMBER, client, clientMessage));
+            }
         } catch (Exception e) {
             System.out.println("Exception: " + e);
         }
     }
 
+    /**
+     * Sends a GET, PUT, DELETE or conditional write to the server as a typed Command. The server's time comes back with the
+     * result, so there's no need to ask the server for it separately. Commands the server would reject are
+     * answered here, with the same response and the client's time, without asking the server.
+     * @param IP_ADDRESS IP_Address of server
+     * @param PORT_NUMBER Port number of server
+     * @param client which will call methods on the server
+     * @param line the user's command
+     * @return the server's response, prefixed with the server's timestamp
+     */
+    private static String runCommand(String IP_ADDRESS, String PORT_NUMBER, MapClient client, String line) {
+        Command command = CommandParser.parse(line, IP_ADDRESS + " " + PORT_NUMBER);
+        Result result;
+        if (command == null) { // wrong number of arguments
+            String op = CommandParser.firstWord(line);
+            command = op.equals("PUT") ? Command.put("", 0, null) : op.equals("GET") ? Command.get("", null)
+                    : op.equals("CAS") ? Command.compareAndSet("", 0, 0, null)
+                    : op.equals("INCR") || op.equals("DECR") ? Command.increment("", 0, null)
+                    : op.equals("PUTIFABSENT") ? Command.putIfAbsent("", 0, null) : Command.delete("", null);
+            result = new Result(Result.Status.BAD_ARGUMENTS, 0);
+        } else {
+            Result.Status problem = CommandParser.check(command);
+            result = problem != null ? new Result(problem, 0) : client.execute(command);
+        }
+        return "(Timestamp=" + result.getServerTimestamp() + "): " + result.describe(command);
+    }
+
+    /**
+     * Prints every entry of a key range, read from the servers a page at a time so a range of any size fits,
+     * for "SCAN (PREFIX)" or "SCAN (FROM) (TO)"
+     * @param client which will read the range
+     * @param line the user's command
+     * @return how many entries were printed, or what is wrong with the command
+     */
+    private static String runScan(MapClient client, String line) {
+        String[] words = line.trim().split(" +");
+        if (words.length < 2 || words.length > 3) {
+            return "Unsuccessful operation: SCAN request does not have appropriate number of arguments";
+        }
+        for (int i = 1; i < words.length; i++) {
+            if (!CommandParser.isAlphaNumeric(words[i])) {
+                return "Unsuccessful operation: SCAN's keys must contain only alphanumeric characters";
+            }
+        }
+        String to = words.length == 3 ? words[2] : ScanIterator.prefixEnd(words[1]);
+        Iterator<Transaction.Operation> entries = client.scan(words[1], to, SCAN_PAGE);
+        int count = 0;
+        while (entries.hasNext()) {
+            Transaction.Operation entry = entries.next();
+            System.out.println(entry.getKey() + " " + entry.getValue());
+            count++;
+        }
+        return "Successful SCAN operation: " + count + " entries";
+    }
+
     /**
      * Prints some statements to the console, informing the user of how to communicate with the server.
      *
@@ -139,32 +102,67 @@ public class RunClient {
         System.out.println("Type commands to the server in the following format:");
         System.out.println("PUT (KEY) (VALUE) - puts an employee name (KEY) and an employee salary (VALUE) into the server.");
         System.out.println("GET (KEY) - GET an employee salary (KEY) from the server.");
+        System.out.println("GET (KEY) (ONE|QUORUM|ALL) - GET read from one server, a majority of them, or all of them.");
         System.out.println("DELETE (KEY) - DELETE an employee entry (KEY) from the server");
+        System.out.println("CAS (KEY) (EXPECTED) (VALUE) - sets the salary to VALUE only if it is EXPECTED now");
+        System.out.println("INCR (KEY) (AMOUNT) / DECR (KEY) (AMOUNT) - adds AMOUNT to the salary, or takes it off");
+        System.out.println("PUTIFABSENT (KEY) (VALUE) - PUTs only if the employee isn't in the server yet");
+        System.out.println("TXN (COMMAND), (COMMAND), ... - applies several PUTs and DELETEs together, all or none of them");
+        System.out.println("SCAN (PREFIX) / SCAN (FROM) (TO) - lists every employee whose name starts with PREFIX, or sorts from FROM up to before TO");
         System.out.println();
         System.out.println("Here's an example how to use each:");
         System.out.println("'PUT Billy 100000'");
         System.out.println("'GET Billy'");
+        System.out.println("'GET Billy QUORUM'");
         System.out.println("'DELETE Billy'");
+        System.out.println("'CAS Billy 100000 105000'");
+        System.out.println("'INCR Billy 5000'");
+        System.out.println("'PUTIFABSENT Mandy 60000'");
+        System.out.println("'TXN PUT Billy 110000, PUT Mandy 65000, DELETE Jerry'");
+        System.out.println("'SCAN J'");
         System.out.println();
         System.out.println("Starting map is populated with following entries- Tom:70000, Jerry:80000");
     }
 
+    /**
+     * Runs the load generator with the settings from the "load.*" system properties and prints its report
+     * @param IP_ADDRESS IP_Address of server
+     * @param PORT_NUMBER Port number of server
+     * @param client which will send the load
+     * @throws InterruptedException if interrupted while the load runs
+     */
+    private static void runLoad(String IP_ADDRESS, String PORT_NUMBER, MapClient client) throws InterruptedException {
+        LoadGenerator load = LoadGenerator.fromProperties(client, IP_ADDRESS + " " + PORT_NUMBER);
+        System.out.println("Preloading keys...");
+        load.preload();
+        System.out.println("Running load...");
+        System.out.print(load.run());
+    }
+
     /**
      * Main method instantiates the RMIClient and sends user input for the RMIClient to handle.
-     * @param args args[0] is the IP Address, and args[1] is the Port Number
+     * @param args args[0] is the IP Address, and args[1] is the Port Number. Several ports separated by commas
+     *             split the keys over the coordinators at those ports, see ShardedClient. With "load" as args[2]
+     *             it runs the load generator instead of reading commands
      * @throws Exception unexpected exception
      */
     public static void main(String[] args) throws Exception {
-        if (args.length != 2) {
-            System.out.println("Please pass IP_ADDRESS and PORT_NUMBER as arguments through args");
+        if (args.length != 2 && !(args.length == 3 && args[2].equals("load"))) {
+            System.out.println("Please pass IP_ADDRESS and PORT_NUMBER as arguments through args, and 'load' after them to generate load");
         } else {
 
             String IP_ADDRESS = args[0];
             String PORT_NUMBER = args[1];
 
-            RMIClient client = new RMIClient(IP_ADDRESS, Integer.valueOf(PORT_NUMBER));
+            MapClient client = PORT_NUMBER.contains(",") ? new ShardedClient(ShardedClient.groupsOn(IP_ADDRESS, PORT_NUMBER))
+                    : new RMIClient(IP_ADDRESS, Integer.valueOf(PORT_NUMBER));
             client.startClient();
 
+            if (args.length == 3) {
+                runLoad(IP_ADDRESS, PORT_NUMBER, client);
+                System.exit(0);
+            }
+
             fillUpServer(IP_ADDRESS, PORT_NUMBER, client);
             introduceClient();
 
@@ -178,16 +176,23 @@ public class RunClient {
                 String responseToClient = "";
 
                 try {
-                    String[] splitClientMessage = line.split(" ");
-                    if (splitClientMessage[0].equals("PUT")) {
-                        responseToClient = client.handlePUT(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-                    } else if (splitClientMessage[0].equals("GET")) {
-                        responseToClient = client.handleGET(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
-                    } else if (splitClientMessage[0].equals("DELETE")) {
-                        responseToClient = client.handleDELETE(IP_ADDRESS, PORT_NUMBER, splitClientMessage);
+                    String op = CommandParser.firstWord(line);
+                    if (op.equals("PUT") || op.equals("GET") || op.equals("DELETE") || op.equals("CAS") || op.equals("INCR")
+                            || op.equals("DECR") || op.equals("PUTIFABSENT")) {
+                        responseToClient = runCommand(IP_ADDRESS, PORT_NUMBER, client, line);
+                    } else if (op.equals("SCAN")) {
+                        responseToClient = runScan(client, line);
+                    } else if (op.equals("TXN")) {
+                        try {
+                            Transaction transaction = Transaction.parse(line.substring(line.indexOf("TXN") + "TXN".length()));
+                            Result problem = CommandParser.check(transaction);
+                            responseToClient = problem != null ? problem.describe(transaction) : client.handleTransaction(IP_ADDRESS, PORT_NUMBER, transaction);
+                        } catch (IllegalArgumentException e) {
+                            responseToClient = "Unsuccessful operation: " + e.getMessage();
+                        }
                     } else {
-                        System.out.println("Timestamp=" + client.getFormattedCurrentSystemTime() + " (From " + IP_ADDRESS + " " + PORT_NUMBER + ") Server received bad request: client did not pick from 'PUT', 'GET', 'DELETE'");
-                        responseToClient = "Unsuccessful operation: Please pick from 'PUT', 'GET', 'DELETE'";
+                        System.out.println("Timestamp=" + client.getFormattedCurrentSystemTime() + " (From " + IP_ADDRESS + " " + PORT_NUMBER + ") Server received bad request: client did not pick from 'PUT', 'GET', 'DELETE', 'TXN'");
+                        responseToClient = "Unsuccessful operation: Please pick from 'PUT', 'GET', 'DELETE', 'TXN'";
                     }
                     System.out.println("Result: " + responseToClient);
                 } catch (Exception e) {
@@ -1,3 +1,6 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.AlreadyBoundException;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
@@ -5,19 +8,25 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.sql.Time;
-import java.time.Clock;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * RunCoordinator. This creates the registry, 5 servers, and binds the servers to the
@@ -25,10 +34,65 @@ import java.util.concurrent.TimeoutException;
  */
 public class RunCoordinator implements Remote {
 
+    private static final int NO_ANSWER = Integer.MIN_VALUE; // a server that couldn't be read, values are never negative
+    private static final int SHARD_MOVE_BATCH = 500; // keys per round when deleting a shard move's keys
+
     List<MapServer> listOfServers;
+    FanOutExecutor fanOut;
+    long roundTimeoutMillis;
+    long minCommitTimeoutMillis;
+    int commitRetries;
+    WriteBatcher batcher;
+    final KeyLocks keyLocks;
+    final List<InvalidationListener> invalidationListeners = new CopyOnWriteArrayList<>();
+    final LatencyHistogram voteLatency = new LatencyHistogram();
+    final LatencyHistogram commitLatency = new LatencyHistogram();
+    final FailureDetector failureDetector;
+    final CommitLog commitLog;
+    // commits hold the read side from taking a sequence number until they are acked, see CatchUp
+    final ReentrantReadWriteLock membership = new ReentrantReadWriteLock();
+    // stamped on every commit; CatchUp moves it on and fences the server it catches up at the new value
+    final AtomicLong epoch = new AtomicLong();
+    final CatchUp catchUp;
+    final CoordinatorMetrics metrics;
+    // the keys this group is responsible for, null until ShardedClient puts it on a ring; see route
+    private volatile Shard shard;
 
+    /**
+     * Creates the coordinator. The fan-out is set with system properties: "coordinator.fanout"
+     * (platform or virtual, default platform), "coordinator.fanoutThreads" (platform pool size, default 32),
+     * "coordinator.roundTimeoutMillis" (deadline for a whole voting or commit round, default 3000) and
+     * "coordinator.commitRetries" (how many more times a failed commit is sent to a server, default 3).
+     * Writes are group committed, see WriteBatcher: "coordinator.batchSize" caps a batch (default 256, 1 turns
+     * batching off), "coordinator.batchWindowMicros" is how long a batch waits for more writes (default 0) and
+     * "coordinator.batchThreads" is how many batches can be in their rounds at once (default one per core).
+     * Rounds lock their keys with one of "coordinator.keyLockStripes" locks (default 1024).
+     * Servers are watched by a FailureDetector once startFailureDetector is called: "coordinator.heartbeatMillis"
+     * is how often each one is pinged (default 50), "coordinator.phiThreshold" is the phi above which it is
+     * suspected (default 8) and "coordinator.minParticipantTimeoutMillis" is the least a round waits for a
+     * server (default 100); the most is the round timeout. A commit waits on each server's disk as well, so it
+     * waits at least "coordinator.minCommitTimeoutMillis" (default 1000). Commits are kept in a CommitLog of at most
+     * "coordinator.commitLogOperations" PUTs and DELETEs (default 1000000), from which CatchUp brings fenced
+     * servers back once startCatchUp is called.
+     * @throws RemoteException if the coordinator can't be exported
+     */
     public RunCoordinator() throws RemoteException {
         this.listOfServers = new ArrayList<>();
+        this.fanOut = new FanOutExecutor(FanOutExecutor.Mode.parse(System.getProperty("coordinator.fanout", "platform")),
+                Integer.getInteger("coordinator.fanoutThreads", 32), "coordinator-fanout");
+        this.roundTimeoutMillis = Long.getLong("coordinator.roundTimeoutMillis", 3000);
+        this.commitRetries = Integer.getInteger("coordinator.commitRetries", 3);
+        this.minCommitTimeoutMillis = Long.getLong("coordinator.minCommitTimeoutMillis", 1000);
+        this.failureDetector = new FailureDetector(Long.getLong("coordinator.heartbeatMillis", 50),
+                Double.parseDouble(System.getProperty("coordinator.phiThreshold", "8")),
+                Long.getLong("coordinator.minParticipantTimeoutMillis", 100), roundTimeoutMillis);
+        this.commitLog = new CommitLog(Integer.getInteger("coordinator.commitLogOperations", 1_000_000));
+        this.catchUp = new CatchUp(this);
+        this.metrics = new CoordinatorMetrics(voteLatency, commitLatency, failureDetector, catchUp);
+        this.keyLocks = new KeyLocks(Integer.getInteger("coordinator.keyLockStripes", 1024));
+        this.batcher = new WriteBatcher(this::runBatch, Integer.getInteger("coordinator.batchSize", 256),
+                Long.getLong("coordinator.batchWindowMicros", 0),
+                Integer.getInteger("coordinator.batchThreads", Runtime.getRuntime().availableProcessors()), "coordinator-batcher");
         UnicastRemoteObject.exportObject(this, 0);
     }
 
@@ -40,6 +104,48 @@ public class RunCoordinator implements Remote {
         return this.listOfServers;
     }
 
+    /**
+     * Starts pinging every server in the list, so rounds leave out servers that stop answering
+     */
+    public void startFailureDetector() {
+        for (int i = 0; i < listOfServers.size(); i++) {
+            MapServer server = listOfServers.get(i);
+            failureDetector.watch(i + 1, server::ping);
+        }
+    }
+
+    /**
+     * Starts bringing fenced servers back, checking for them every 100ms
+     */
+    public void startCatchUp() {
+        catchUp.start(100);
+    }
+
+    /**
+     * Fences a server whose map can't be trusted, e.g. one restarted from an old copy, so that CatchUp sends it
+     * every commit the log has, or a whole copy of another server if the log doesn't go back far enough
+     * @param number server number, from 1
+     */
+    public void resync(int number) {
+        fence(number, 1, "asked to resync");
+    }
+
+    /**
+     * Returns the log of recent commits fenced servers are caught up from
+     * @return the commit log
+     */
+    public CommitLog getCommitLog() {
+        return commitLog;
+    }
+
+    /**
+     * Returns the failure detector that decides which servers rounds include
+     * @return the failure detector
+     */
+    public FailureDetector getFailureDetector() {
+        return failureDetector;
+    }
+
     /**
      * Gathers consensus from the servers on whether to commit or abort
      * @param splitClientMessage client's input
@@ -47,44 +153,371 @@ public class RunCoordinator implements Remote {
      * @throws RemoteException RMI methods throw remote exception
      */
     public boolean getConsensus(String[] splitClientMessage) throws RemoteException {
+        return vote(new String[] {splitClientMessage[1]}, 0) != null;
+    }
+
+    /**
+     * Votes on and commits a PUT or DELETE together with whatever other writes arrive at about the same time.
+     * Blocks until the write's batch has been committed or aborted.
+     * @param op WriteAheadLog.PUT or WriteAheadLog.DELETE
+     * @param key employee name
+     * @param value employee salary, ignored for DELETE
+     * @return true if the write was committed on all servers
+     * @throws InterruptedException if interrupted while waiting for the batch
+     */
+    public boolean submitWrite(byte op, String key, int value) throws InterruptedException {
+        return batcher.submit(op, key, value);
+    }
 
-        List<Integer> accumList = new ArrayList<>();
-        List<Future> allFutures = new ArrayList<>();
-        ExecutorService service = Executors.newFixedThreadPool(5);
+    /**
+     * Like submitWrite, for a traced write: the round of the batch it ends up in is traced too, see Tracer
+     * @param op WriteAheadLog.PUT or WriteAheadLog.DELETE
+     * @param key employee name
+     * @param value employee salary, ignored for DELETE
+     * @param traceId the write's trace id, or 0 if it isn't traced
+     * @return true if the write was committed on all servers
+     * @throws InterruptedException if interrupted while waiting for the batch
+     */
+    public boolean submitWrite(byte op, String key, int value, long traceId) throws InterruptedException {
+        return batcher.submit(op, key, value, traceId);
+    }
 
-        // gathering votes multithreaded
-        for (MapServer server : listOfServers) {
-            server.setValue(splitClientMessage[1]);
-            Future<Integer> future = service.submit(server);
-            allFutures.add(future);
+    /**
+     * Votes on and commits a compare-and-set, increment or put-if-absent in one round, batched like other
+     * writes: the condition is checked against the value the servers vote with, while the key is locked, so
+     * nothing can change it in between. Blocks until the write's batch has been committed or aborted.
+     * @param op Command.COMPARE_AND_SET, Command.INCREMENT or Command.PUT_IF_ABSENT
+     * @param key employee name
+     * @param expected the value a COMPARE_AND_SET expects, ignored otherwise
+     * @param value the value to set, or for INCREMENT the amount to add
+     * @param traceId the write's trace id, or 0 if it isn't traced
+     * @return OK with the key's new value; CONDITION_FAILED or NOT_FOUND, with the key's value, if the
+     *         condition didn't hold; or ABORTED
+     * @throws InterruptedException if interrupted while waiting for the batch
+     */
+    public Result submitConditionalWrite(byte op, String key, int expected, int value, long traceId) throws InterruptedException {
+        return batcher.submitConditional(op, key, expected, value, traceId);
+    }
+
+    /**
+     * Runs one vote and commit round for a batch of writes
+     * @param keys the keys the batch touches
+     * @param traceId trace id of the round, or 0 if it isn't traced
+     * @param resolver decides the batch's writes from the agreed values
+     * @return true if all servers voted to commit and the commit was logged
+     */
+    private boolean runBatch(String[] keys, long traceId, WriteBatcher.Resolver resolver) {
+        return runRound("coordinator", "batch", keys, traceId, resolver, true);
+    }
+
+    /**
+     * Votes on a transaction and, if all servers agree, commits it on all servers. The transaction's keys are
+     * locked from the vote until the commit is acked, so rounds that share a key can't interleave, while rounds
+     * on other keys go ahead at the same time.
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param transaction the PUTs and DELETEs to apply
+     * @return true if all servers voted to commit and the commit was logged
+     */
+    public boolean runTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) {
+        return runRound(clientINetAddress, clientPORT_NUMBER, transaction.keys(), transaction.getTraceId(), current -> transaction, true);
+    }
+
+    /**
+     * Votes on some keys and, if all servers agree on their values, commits what the resolver makes of those
+     * values on all servers, with the keys locked from the vote until the commit is acked. If a server's commit
+     * call is still running when the round gives up on it, the keys stay locked until that call is done, so it
+     * can't land on top of a later commit of the same keys.
+     *
+     * The round can only abort before its commit is logged: once it is in the commit log it is decided, and
+     * servers that don't ack it are fenced and sent it by CatchUp, so it is reported as committed however many
+     * acked. That is why a majority of the servers has to be available before the commit is logged. It also
+     * aborts if a shard move has taken any of its keys away from this group since they were voted on.
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param keys the keys to vote on, which must include every key the resolver writes
+     * @param traceId trace id of the round, or 0 if it isn't traced
+     * @param resolver decides the PUTs and DELETEs from the agreed values
+     * @param checkShard whether to abort if this group may not write the keys, see route
+     * @return true if the round's commit was logged, false if it aborted before anything was committed
+     */
+    private boolean runRound(String clientINetAddress, String clientPORT_NUMBER, String[] keys, long traceId, WriteBatcher.Resolver resolver, boolean checkShard) {
+        long start = System.nanoTime();
+        int[] held = keyLocks.lock(keys);
+        metrics.keyLockWaitNanos.add(System.nanoTime() - start);
+        if (traceId != 0) {
+            Tracer.span(traceId, "coordinator key locks", start, null);
+        }
+        CommitOutcome outcome = null;
+        try {
+            long phase = Tracer.start(traceId);
+            int[] agreed = vote(keys, traceId);
+            Tracer.span(traceId, "coordinator vote", phase, agreed != null ? "agreed" : "aborted");
+            if (agreed == null) {
+                return false;
+            }
+            Transaction transaction = resolver.resolve(agreed);
+            if (transaction.size() == 0) {
+                return true; // every condition failed, so there is nothing to commit
+            }
+            int available = availableCount();
+            if (available <= listOfServers.size() / 2) {
+                System.out.println("Aborting: only " + available + " of " + listOfServers.size() + " servers are available to commit a TRANSACTION of " + transaction.size() + " operations");
+                metrics.aborts.increment();
+                return false;
+            }
+            phase = Tracer.start(traceId);
+            outcome = commitTransaction(clientINetAddress, clientPORT_NUMBER, transaction, checkShard);
+            if (outcome == null) {
+                System.out.println("Aborting: a TRANSACTION of " + transaction.size() + " operations writes keys that are being moved to another shard");
+                metrics.aborts.increment();
+                return false;
+            }
+            if (outcome.acks <= listOfServers.size() / 2) {
+                System.out.println("Only " + outcome.acks + " of " + listOfServers.size() + " servers acked a TRANSACTION of " + transaction.size() + " operations; CatchUp will apply it on the rest");
+            } else if (!outcome.acked) {
+                System.out.println("Not every server acked a TRANSACTION of " + transaction.size() + " operations after retries");
+            }
+            if (traceId != 0) {
+                Tracer.span(traceId, "coordinator commit", phase, transaction.size() + " operations");
+            }
+            return true;
+        } finally {
+            if (outcome == null || outcome.settled.isDone()) {
+                keyLocks.unlock(held);
+            } else {
+                outcome.settled.whenComplete((done, failure) -> keyLocks.unlock(held));
+            }
+        }
+    }
+
+    /**
+     * Gathers consensus from the servers on a whole transaction in one round. Every server votes with its
+     * current values for all of the transaction's keys, and the transaction can only commit if they all match.
+     * @param transaction the PUTs and DELETEs to vote on
+     * @return boolean indicating whether to commit or not
+     */
+    public boolean getTransactionConsensus(Transaction transaction) {
+        return vote(transaction.keys(), transaction.getTraceId()) != null;
+    }
+
+    /**
+     * Runs one voting round
+     * @param keys the keys to vote on
+     * @param traceId trace id of the round, or 0 if it isn't traced
+     * @return the values all of the servers voted, if a majority of them voted in time, otherwise null
+     */
+    private int[] vote(String[] keys, long traceId) {
+        List<Integer> numbers = availableServers();
+        List<Callable<int[]>> voters = new ArrayList<>();
+        for (int number : numbers) {
+            MapServer server = listOfServers.get(number - 1);
+            LatencyHistogram latency = metrics.participant(number);
+            voters.add(() -> {
+                long start = System.nanoTime();
+                try {
+                    return server.vote(keys);
+                } finally {
+                    long took = System.nanoTime() - start;
+                    latency.record(took);
+                    failureDetector.recordRoundTrip(number, took);
+                    if (traceId != 0) {
+                        Tracer.span(traceId, "vote Server" + number, start, null);
+                    }
+                }
+            });
+        }
+        metrics.rounds.increment();
+        List<int[]> accumList = collectVotes(voters, numbers);
+        if (accumList == null || accumList.size() <= listOfServers.size() / 2) {
+            if (accumList != null) {
+                System.out.println("Aborting: only " + accumList.size() + " of " + listOfServers.size() + " servers voted");
+            }
+            metrics.aborts.increment();
+            return null;
+        }
+
+        // comparing votes
+        int[] firstVote = accumList.get(0);
+        for (int i=1; i<accumList.size(); i++) {
+            if (!Arrays.equals(firstVote, accumList.get(i))) {
+                metrics.aborts.increment();
+                return null;
+            }
+        }
+        return firstVote;
+    }
+
+    /**
+     * Asks every voter at once, with one deadline for the whole round: the longest timeout of the servers asked
+     * @param voters one vote call per server
+     * @param numbers the servers' numbers, in the same order
+     * @param <V> type of a vote
+     * @return the votes of the servers that answered in time, or null if interrupted
+     */
+    private <V> List<V> collectVotes(List<? extends Callable<V>> voters, List<Integer> numbers) {
+        // gathering votes multithreaded, with one deadline for the whole round
+        List<Future<V>> allFutures;
+        long timeout = roundTimeoutNanos(numbers);
+        try {
+            allFutures = fanOut.invokeAll(voters, timeout, TimeUnit.NANOSECONDS, voteLatency);
+        } catch (InterruptedException e) {
+            System.out.println("InterruptedException!");
+            Thread.currentThread().interrupt();
+            return null;
         }
 
         // gathering consensus
+        List<V> accumList = new ArrayList<>();
         for (int i=0; i<allFutures.size(); i++) {
-            Future<Integer> future = allFutures.get(i);
+            Future<V> future = allFutures.get(i);
+            if (future.isCancelled()) {
+                metrics.voteTimeouts.increment();
+                System.out.println("TimeoutException! server " + numbers.get(i) + " did not vote within " + LatencyHistogram.format(timeout)); // defensive coding
+                continue;
+            }
             try {
-                Integer result = future.get(3, TimeUnit.SECONDS);
-                accumList.add(result);
+                accumList.add(future.get());
             } catch (InterruptedException e) {
                 System.out.println("InterruptedException!");
-                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                return null;
             } catch (ExecutionException e) {
+                if (e.getCause() instanceof RejectedExecutionException) {
+                    System.out.println("RejectedExecutionException! no thread was free to ask server " + numbers.get(i) + " for its vote");
+                    continue;
+                }
                 System.out.println("ExecutionException!");
                 e.printStackTrace();
-            } catch (TimeoutException e) {
-                System.out.println("TimeoutException!"); // defensive coding
-                e.printStackTrace();
             }
         }
+        return accumList;
+    }
 
-        // comparing votes
-        Integer firstVote = accumList.get(0);
-        for (int i=1; i<accumList.size(); i++) {
-            if (firstVote != accumList.get(i)) {
-                return false;
+    /**
+     * Returns the servers rounds go to: those the failure detector neither suspects nor has fenced. Skipping
+     * a suspected server costs it nothing in a vote, but a commit it misses fences it, see commitWithRetries.
+     * @return server numbers, from 1
+     */
+    private List<Integer> availableServers() {
+        List<Integer> numbers = new ArrayList<>(listOfServers.size());
+        for (int number = 1; number <= listOfServers.size(); number++) {
+            if (failureDetector.isAvailable(number)) {
+                numbers.add(number);
+            } else {
+                metrics.skippedCalls.increment();
             }
         }
-        return true;
+        return numbers;
+    }
+
+    /**
+     * Returns how long a round waits for the given servers: the longest of their timeouts
+     */
+    private long roundTimeoutNanos(List<Integer> numbers) {
+        long timeout = 0;
+        for (int number : numbers) {
+            timeout = Math.max(timeout, failureDetector.timeoutNanos(number));
+        }
+        return timeout;
+    }
+
+    /**
+     * Returns how long a commit waits for a server: its round timeout, which follows its ping round trips, but
+     * no less than minCommitTimeoutMillis, since a commit also waits for the server to force its log to disk
+     * @param number server number, from 1
+     * @return timeout in nanoseconds
+     */
+    private long commitTimeoutNanos(int number) {
+        return Math.max(failureDetector.timeoutNanos(number), TimeUnit.MILLISECONDS.toNanos(minCommitTimeoutMillis));
+    }
+
+    /**
+     * Reads a key on every server at once. A QUORUM read answers as soon as a majority of servers agree on the
+     * value, without waiting for the rest. An ALL read holds the key's lock, so no commit on it is half applied,
+     * and needs every server to answer with the same value.
+     * @param key employee name
+     * @param consistency QUORUM or ALL
+     * @return the agreed value, CompactStringIntMap.MISSING if they agree the key doesn't exist, or null if too
+     *         few servers agreed within the round timeout or the read was interrupted
+     */
+    public Integer read(String key, Consistency consistency) {
+        long start = System.nanoTime();
+        int[] held = consistency == Consistency.ALL ? keyLocks.lock(key) : null;
+        metrics.keyLockWaitNanos.add(System.nanoTime() - start);
+        try {
+            return gatherReads(key, consistency.required(listOfServers.size()));
+        } catch (InterruptedException e) {
+            System.out.println("InterruptedException!");
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (held != null) {
+                keyLocks.unlock(held);
+            }
+        }
+    }
+
+    private Integer gatherReads(String key, int required) throws InterruptedException {
+        List<Integer> numbers = availableServers();
+        if (numbers.size() < required) {
+            return null;
+        }
+        BlockingQueue<Integer> answers = new LinkedBlockingQueue<>();
+        for (int number : numbers) {
+            MapServer server = listOfServers.get(number - 1);
+            try {
+                fanOut.submit(() -> {
+                    try {
+                        answers.add(server.readLocal(key));
+                    } catch (RemoteException e) {
+                        answers.add(NO_ANSWER);
+                    }
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                answers.add(NO_ANSWER); // no thread was free to ask it
+            }
+        }
+        long timeout = roundTimeoutNanos(numbers);
+        long deadline = System.nanoTime() + timeout;
+        Map<Integer, Integer> tally = new HashMap<>();
+        for (int received = 0; received < numbers.size(); received++) {
+            Integer value = answers.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (value == null) {
+                metrics.readTimeouts.increment();
+                System.out.println("TimeoutException! only " + received + " servers answered a read of " + key + " within " + LatencyHistogram.format(timeout));
+                return null;
+            }
+            if (value != NO_ANSWER && tally.merge(value, 1, Integer::sum) >= required) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns how long each voting round has taken so far
+     * @return histogram of voting round latencies
+     */
+    public LatencyHistogram getVoteRoundLatency() {
+        return voteLatency;
+    }
+
+    /**
+     * Returns how long each commit round has taken so far, one entry per attempt
+     * @return histogram of commit round latencies
+     */
+    public LatencyHistogram getCommitRoundLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * Returns the coordinator's round counts and latencies, as published over JMX
+     * @return the coordinator's metrics
+     */
+    public CoordinatorMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -92,13 +525,13 @@ public class RunCoordinator implements Remote {
      * @param clientINetAddress client's internet address
      * @param clientPORT_NUMBER client's port number
      * @param splitClientMessage client's input
+     * @return true if every server acknowledged the PUT
      * @throws RemoteException RMI methods throw remote exception
      */
-    public void executeConsensusPUT(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException {
-        // if all votes are the same, we can run executePUT on all servers
-        for (MapServer server : listOfServers) {
-            server.executePUT(clientINetAddress, clientPORT_NUMBER, splitClientMessage);
-        }
+    public boolean executeConsensusPUT(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException {
+        // if all votes are the same, we can run the PUT on all servers, as a transaction so it carries the epoch
+        Transaction put = new Transaction().put(splitClientMessage[1], Integer.parseInt(splitClientMessage[2]));
+        return executeConsensusTransaction(clientINetAddress, clientPORT_NUMBER, put);
     }
 
     /**
@@ -106,12 +539,423 @@ public class RunCoordinator implements Remote {
      * @param clientINetAddress client's internet address
      * @param clientPORT_NUMBER client's port number
      * @param splitClientMessage client's input
+     * @return true if every server acknowledged the DELETE
      * @throws RemoteException RMI methods throw remote exception
      */
-    public void executeConsensusDELETE(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException {
-        // if all votes are the same, we can run executeDELETE on all servers
-        for (MapServer server : listOfServers) {
-            server.executeDELETE(clientINetAddress, clientPORT_NUMBER, splitClientMessage);
+    public boolean executeConsensusDELETE(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException {
+        // if all votes are the same, we can run the DELETE on all servers, as a transaction so it carries the epoch
+        Transaction delete = new Transaction().delete(splitClientMessage[1]);
+        return executeConsensusTransaction(clientINetAddress, clientPORT_NUMBER, delete);
+    }
+
+    /**
+     * If all servers vote to commit the transaction, we execute all of its operations on all servers
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param transaction the PUTs and DELETEs to apply
+     * @return true if every server acknowledged the transaction
+     */
+    public boolean executeConsensusTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) {
+        CommitOutcome outcome = commitTransaction(clientINetAddress, clientPORT_NUMBER, transaction, true);
+        return outcome != null && outcome.acked;
+    }
+
+    private CommitOutcome commitTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction, boolean checkShard) {
+        long traceId = transaction.getTraceId();
+        CommitOutcome outcome = commitOnAll("TRANSACTION", transaction, checkShard, server -> {
+            long start = Tracer.start(traceId);
+            server.executeTransaction(clientINetAddress, clientPORT_NUMBER, transaction);
+            if (traceId != 0) {
+                Tracer.span(traceId, "commit Server" + (listOfServers.indexOf(server) + 1), start, null);
+            }
+        });
+        if (outcome != null) {
+            publishInvalidations(transaction.keys());
+        }
+        return outcome;
+    }
+
+    /**
+     * Registers a client's cache, which from then on hears about every key a commit changes
+     * @param listener the client's cache
+     */
+    public void addInvalidationListener(InvalidationListener listener) {
+        invalidationListeners.add(listener);
+    }
+
+    /**
+     * Tells every registered client cache which keys a commit just changed. The calls go out in the background
+     * so commits don't wait on clients; a client that can't be reached is dropped and has to register again.
+     * @param keys keys the commit changed
+     */
+    private void publishInvalidations(String[] keys) {
+        for (InvalidationListener listener : invalidationListeners) {
+            try {
+                fanOut.submit(() -> {
+                    try {
+                        listener.invalidate(keys);
+                    } catch (RemoteException e) {
+                        System.out.println("Dropping a client cache that could not be reached: " + e);
+                        invalidationListeners.remove(listener);
+                    }
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                // the cache's lease still bounds how long it serves the old values
+                System.out.println("RejectedExecutionException! no thread was free to invalidate a client cache");
+            }
+        }
+    }
+
+    /**
+     * One server's part of the commit phase
+     */
+    interface Commit {
+        void apply(MapServer server) throws RemoteException;
+    }
+
+    /**
+     * How a commit went: whether every server acked, how many did, and when every call it made is done
+     */
+    private static final class CommitOutcome {
+        final boolean acked;
+        final int acks;
+        final CompletableFuture<Void> settled; // done once no call of the commit is still running on a server
+
+        CommitOutcome(boolean acked, int acks, List<CompletableFuture<Integer>> calls) {
+            this.acked = acked;
+            this.acks = acks;
+            this.settled = CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0]));
+        }
+    }
+
+    /**
+     * Sends a commit to every server at once and waits for their acks. Servers that fail get it again, up to
+     * commitRetries more times, so a commit costs about one round trip to the slowest server instead of the sum
+     * of all of them. Retrying is safe because PUT and DELETE applied twice leave the map the same. A call that
+     * is merely slow is never interrupted, which could leave a server's log closed halfway through a write, nor
+     * sent again while it runs: later attempts just wait for it a little longer.
+     *
+     * The commit is stamped with the current epoch under the membership lock, so once CatchUp has fenced a
+     * server at a later epoch, a call to it that was still running is rejected rather than applied on top of
+     * the commits it is being caught up with.
+     *
+     * Servers the failure detector suspects aren't sent the commit, nor retried once they become suspected,
+     * and a server that misses a commit that way or by running out of retries is fenced, so it is left out of
+     * later rounds instead of voting with a map that no longer matches, until CatchUp has sent it the commits
+     * it missed. Suspected servers are only skipped while a majority of the servers remain, so a pause of the
+     * coordinator's own JVM, which makes every server look silent, can't fence them all.
+     *
+     * Whether this group may still write the commit's keys is checked under the membership lock too, so once
+     * beginShardMove has taken the write side, no commit of a key that is moving can be logged.
+     * @param operation name of the operation, for the log
+     * @param logged the commit's PUTs and DELETEs, for the commit log
+     * @param checkShard whether to refuse the commit if this group may not write its keys, see route
+     * @param commit the call to make on each server
+     * @return whether every server that wasn't fenced before acked, and when the calls that were still running
+     *         at the end are done; or null if the commit was refused and nothing was logged
+     */
+    private CommitOutcome commitOnAll(String operation, Transaction logged, boolean checkShard, Commit commit) {
+        long start = System.nanoTime();
+        membership.readLock().lock();
+        try {
+            if (checkShard && !mayWrite(logged)) {
+                return null;
+            }
+            logged.setEpoch(epoch.get());
+            return commitWithRetries(operation, commitLog.append(logged), commit);
+        } finally {
+            membership.readLock().unlock();
+            metrics.commitPhaseLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private CommitOutcome commitWithRetries(String operation, long sequence, Commit commit) {
+        List<Integer> pending = new ArrayList<>();
+        for (int number = 1; number <= listOfServers.size(); number++) {
+            if (!failureDetector.isFenced(number)) {
+                pending.add(number);
+            }
+        }
+        Map<Integer, CompletableFuture<Integer>> running = new LinkedHashMap<>(); // server -> its call, until it's done
+        List<CompletableFuture<Integer>> calls = new ArrayList<>();
+        int acks = 0;
+        boolean missed = false;
+        for (int attempt = 0; ; attempt++) {
+            missed |= fenceSuspected(operation, sequence, pending);
+            List<CompletableFuture<Integer>> waitingFor = new ArrayList<>();
+            for (int number : pending) {
+                CompletableFuture<Integer> call = running.get(number);
+                if (call == null) {
+                    MapServer server = listOfServers.get(number - 1);
+                    call = fanOut.start(() -> {
+                        long sent = System.nanoTime();
+                        commit.apply(server);
+                        failureDetector.recordRoundTrip(number, System.nanoTime() - sent);
+                        return number;
+                    });
+                    running.put(number, call);
+                    calls.add(call);
+                }
+                waitingFor.add(call);
+            }
+            long timeout = 0;
+            for (int number : pending) {
+                timeout = Math.max(timeout, commitTimeoutNanos(number));
+            }
+            try {
+                fanOut.awaitAll(waitingFor, timeout, TimeUnit.NANOSECONDS, commitLatency);
+            } catch (InterruptedException e) {
+                System.out.println("InterruptedException!");
+                Thread.currentThread().interrupt();
+                return new CommitOutcome(false, acks, calls);
+            }
+
+            List<Integer> failed = new ArrayList<>();
+            int errors = 0; // failed calls, which are sent again; slow ones are waited for instead
+            for (int number : pending) {
+                CompletableFuture<Integer> ack = running.get(number);
+                if (!ack.isDone()) {
+                    metrics.commitTimeouts.increment();
+                    System.out.println("TimeoutException! " + operation + " not acked within " + LatencyHistogram.format(timeout) + " by server " + number);
+                    failed.add(number);
+                    continue;
+                }
+                running.remove(number);
+                try {
+                    ack.join();
+                    acks++;
+                } catch (CompletionException e) {
+                    System.out.println("ExecutionException! " + operation + " failed on server " + number + ": " + e.getCause());
+                    failed.add(number);
+                    errors++;
+                }
+            }
+            if (failed.isEmpty()) {
+                return new CommitOutcome(!missed, acks, calls);
+            }
+            if (attempt == commitRetries) {
+                metrics.commitFailures.increment();
+                System.out.println(operation + " was not acked by " + failed.size() + " server(s) after " + (commitRetries + 1) + " attempts");
+                for (int number : failed) {
+                    fence(number, sequence, operation + " was not acked");
+                }
+                return new CommitOutcome(false, acks, calls);
+            }
+            pending = failed;
+            metrics.commitRetries.add(errors);
+            try {
+                Thread.sleep(50L << attempt); // back off a little before trying again
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new CommitOutcome(false, acks, calls);
+            }
+        }
+    }
+
+    /**
+     * Takes the servers the failure detector suspects out of a commit's pending list and fences them, as long
+     * as a majority of all servers are neither fenced nor suspected
+     * @return true if a server was fenced
+     */
+    private boolean fenceSuspected(String operation, long sequence, List<Integer> pending) {
+        if (availableCount() <= listOfServers.size() / 2) {
+            return false;
+        }
+        boolean fenced = false;
+        for (Iterator<Integer> servers = pending.iterator(); servers.hasNext(); ) {
+            int number = servers.next();
+            if (failureDetector.isSuspected(number)) {
+                servers.remove();
+                metrics.skippedCalls.increment();
+                fence(number, sequence, "it is suspected and missed a " + operation);
+                fenced = true;
+            }
+        }
+        return fenced;
+    }
+
+    /**
+     * Returns how many servers are neither fenced nor suspected
+     */
+    private int availableCount() {
+        int available = 0;
+        for (int number = 1; number <= listOfServers.size(); number++) {
+            if (failureDetector.isAvailable(number)) {
+                available++;
+            }
+        }
+        return available;
+    }
+
+    private void fence(int number, long sequence, String reason) {
+        catchUp.missed(number, sequence);
+        if (failureDetector.fence(number)) {
+            System.out.println("Fencing server " + number + " out of later rounds: " + reason);
+        }
+    }
+
+    /**
+     * The keys this coordinator's group is responsible for when keys are split over several groups, see
+     * ShardedClient: those the ring puts on the group, less, while a group is joining, those moving to it
+     */
+    private static final class Shard {
+        final String group;
+        final HashRing ring;
+        final HashRing joining; // the ring once the joining group is on it, or null if no move is going on
+        final Transaction exported; // the entries the move copies away, once they have been exported
+
+        Shard(String group, HashRing ring, HashRing joining, Transaction exported) {
+            this.group = group;
+            this.ring = ring;
+            this.joining = joining;
+            this.exported = exported;
+        }
+    }
+
+    /**
+     * Says whether this group can take a request for a key. Until ShardedClient puts the group on a ring it
+     * takes every key.
+     * @param key employee name
+     * @param write whether the request writes the key
+     * @return null if it can; WRONG_SHARD if the ring puts the key on another group; MOVING if it is a write
+     *         of a key that is being moved to a joining group
+     */
+    public Result.Status route(String key, boolean write) {
+        Shard current = shard;
+        if (current == null) {
+            return null;
+        }
+        if (!current.ring.owner(key).equals(current.group)) {
+            return Result.Status.WRONG_SHARD;
+        }
+        if (write && current.joining != null && !current.joining.owner(key).equals(current.group)) {
+            return Result.Status.MOVING;
+        }
+        return null;
+    }
+
+    private boolean mayWrite(Transaction transaction) {
+        for (Transaction.Operation operation : transaction.getOperations()) {
+            if (route(operation.getKey(), true) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the groups on the ring this group is on, so a client sent a WRONG_SHARD can catch up with it
+     * @return the groups, or null if this group isn't on a ring
+     */
+    public String[] getShardGroups() {
+        Shard current = shard;
+        return current == null ? null : current.ring.getGroups().toArray(new String[0]);
+    }
+
+    /**
+     * Starts moving the keys a joining group takes over from this one: from now on writes to them are turned
+     * away with MOVING, and once the commits already let through are done, their entries are exported from a
+     * server that acked every one of those commits, so the entries can't change before endShardMove.
+     * @param group this group's name, as "host:port"
+     * @param groups every group on the ring now
+     * @param joining the group joining the ring
+     * @return the entries to copy to the joining group, as PUTs
+     * @throws RemoteException if no server could export them, in which case the move is called off
+     */
+    public Transaction beginShardMove(String group, String[] groups, String joining) throws RemoteException {
+        HashRing ring = new HashRing(Arrays.asList(groups));
+        HashRing after = ring.with(joining);
+        shard = new Shard(group, ring, after, null);
+        membership.writeLock().lock(); // waits for the commits that got past mayWrite before the move began
+        membership.writeLock().unlock();
+        String[] afterGroups = after.getGroups().toArray(new String[0]);
+        for (int number = 1; number <= listOfServers.size(); number++) {
+            if (!failureDetector.isAvailable(number)) {
+                continue;
+            }
+            try {
+                Transaction exported = listOfServers.get(number - 1).exportShard(afterGroups, joining);
+                shard = new Shard(group, ring, after, exported);
+                System.out.println("Moving " + exported.size() + " keys from " + group + " to " + joining);
+                return exported;
+            } catch (RemoteException e) {
+                System.out.println("Server " + number + " could not export the keys moving to " + joining + ": " + e);
+            }
+        }
+        shard = new Shard(group, ring, null, null);
+        throw new RemoteException("No server of " + group + " could export the keys moving to " + joining);
+    }
+
+    /**
+     * Puts this group on a ring and lets writes through again. After a move, the entries beginShardMove
+     * exported are deleted, each only if it still has the value that was exported, so nothing written since
+     * can be lost; the ring no longer puts them here, so they are turned away with WRONG_SHARD meanwhile.
+     * @param group this group's name, as "host:port"
+     * @param groups every group on the ring
+     * @param moved true if the exported entries were copied to the joining group and can be deleted here;
+     *              false to only set the ring, for a group joining it or a move being called off
+     * @throws RemoteException if some of the moved entries couldn't be deleted; they stay unreachable
+     */
+    public void endShardMove(String group, String[] groups, boolean moved) throws RemoteException {
+        Shard previous = shard;
+        shard = new Shard(group, new HashRing(Arrays.asList(groups)), null, null);
+        if (!moved || previous == null || previous.exported == null) {
+            return;
+        }
+        List<Transaction.Operation> entries = previous.exported.getOperations();
+        for (int from = 0; from < entries.size(); from += SHARD_MOVE_BATCH) {
+            List<Transaction.Operation> chunk = entries.subList(from, Math.min(entries.size(), from + SHARD_MOVE_BATCH));
+            String[] keys = new String[chunk.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = chunk.get(i).getKey();
+            }
+            WriteBatcher.Resolver unchanged = current -> {
+                Transaction deletes = new Transaction();
+                for (int i = 0; i < keys.length; i++) {
+                    if (current[i] == chunk.get(i).getValue()) {
+                        deletes.delete(keys[i]);
+                    }
+                }
+                return deletes;
+            };
+            boolean deleted = false;
+            for (int attempt = 0; !deleted && attempt <= commitRetries; attempt++) {
+                deleted = runRound("rebalance", "0", keys, 0, unchanged, false);
+            }
+            if (!deleted) {
+                throw new RemoteException("Could not delete " + (entries.size() - from) + " keys moved away from " + group);
+            }
+        }
+    }
+
+    /**
+     * Creates a server. If the "replica.dataDir" system property is set, the server logs its commits under
+     * dataDir/server{number} (durability picked with "replica.durability": per-op, group or async, default group),
+     * snapshots its map there every "replica.snapshotSeconds" (default 300, 0 turns snapshots off), and reloads
+     * both on startup. Otherwise the server keeps its map in memory only.
+     * @param serverNumber server's number
+     * @return the new server
+     * @throws RemoteException if the server's log can't be opened or the server can't be exported
+     * @throws NotBoundException Thrown when a lookup or unbind call does not find the object in the registry.
+     */
+    static ServerImpl createServer(int serverNumber) throws RemoteException, NotBoundException {
+        String dataDir = System.getProperty("replica.dataDir");
+        if (dataDir == null) {
+            return new ServerImpl(serverNumber);
+        }
+        WriteAheadLog.Durability durability = WriteAheadLog.Durability.parse(System.getProperty("replica.durability", "group"));
+        long snapshotSeconds = Long.getLong("replica.snapshotSeconds", 300);
+        try {
+            Path directory = Paths.get(dataDir, "server" + serverNumber);
+            WriteAheadLog log = new WriteAheadLog(directory, durability);
+            ServerImpl server = new ServerImpl(serverNumber, log, new ReplicaSnapshot(directory));
+            if (snapshotSeconds > 0) {
+                server.startSnapshots(snapshotSeconds);
+            }
+            return server;
+        } catch (IOException e) {
+            throw new RemoteException("Could not open the log of server " + serverNumber, e);
         }
     }
 
@@ -132,11 +976,11 @@ public class RunCoordinator implements Remote {
 
             RunCoordinator coordinator = new RunCoordinator();
 
-            MapServer server1 = new ServerImpl(1);
-            MapServer server2 = new ServerImpl(2);
-            MapServer server3 = new ServerImpl(3);
-            MapServer server4 = new ServerImpl(4);
-            MapServer server5 = new ServerImpl(5);
+            MapServer server1 = createServer(1);
+            MapServer server2 = createServer(2);
+            MapServer server3 = createServer(3);
+            MapServer server4 = createServer(4);
+            MapServer server5 = createServer(5);
             coordinator.getListOfServers().add(server1);
             coordinator.getListOfServers().add(server2);
             coordinator.getListOfServers().add(server3);
@@ -155,12 +999,25 @@ public class RunCoordinator implements Remote {
             ((ServerImpl) server3).setCoordinator(coordinator);
             ((ServerImpl) server4).setCoordinator(coordinator);
             ((ServerImpl) server5).setCoordinator(coordinator);
+            coordinator.startFailureDetector();
+            coordinator.startCatchUp();
+            Metrics.register("type=Coordinator", coordinator.getMetrics());
+            for (int i = 0; i < coordinator.getListOfServers().size(); i++) {
+                Metrics.register("type=Server,name=Server" + (i + 1), ((ServerImpl) coordinator.getListOfServers().get(i)).getMetrics());
+            }
+            Metrics.startDumpsIfConfigured();
             // This is a great debug line
 //            for (MapServer server : coordinator.listOfServers) {
 //                System.out.println("server coordinator: " + ((ServerImpl) server).coordinator);
 //                System.out.println("server myMap: " + ((ServerImpl) server).myMap);
 //            }
 
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println("Voting rounds: " + coordinator.getVoteRoundLatency().summary());
+                System.out.println("Commit rounds: " + coordinator.getCommitRoundLatency().summary());
+                System.out.println("Write batches: " + coordinator.batcher);
+            }));
+
             System.out.println("RMI Coordinator started!");
         }
     }
@@ -0,0 +1,164 @@
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * ScanIterator. Streams the entries of a key range from the servers in key order, a page at a time, see
+ * MapServer.scan. Each page starts just after the last key of the one before, so however big the range is, the
+ * client holds at most two pages: the one being read and the next, which is asked for as soon as this one
+ * arrives so its round trip overlaps with reading this one.
+ *
+ * Pages are read separately, so the scan isn't a snapshot: a key written while it runs may or may not be seen,
+ * but every key that is in the range throughout is seen exactly once.
+ */
+public class ScanIterator implements Iterator<Transaction.Operation> {
+
+    /**
+     * Asks a server for one page of a range
+     */
+    public interface Pager {
+        /**
+         * @param from first key of the page
+         * @param to key the range ends before, or null for no end
+         * @param limit most entries to return
+         * @return the entries, as PUTs in key order
+         */
+        CompletableFuture<Transaction> page(String from, String to, int limit);
+    }
+
+    private final Pager pager;
+    private final String to;
+    private final int pageSize;
+    private List<Transaction.Operation> page = Collections.emptyList();
+    private int next;
+    private CompletableFuture<Transaction> ahead; // the next page, or null once the range is finished
+
+    /**
+     * Starts a scan, asking for its first page right away
+     * @param pager reads a page
+     * @param from first key of the range
+     * @param to key the range ends before, or null for no end
+     * @param pageSize entries per page, at most MapServer.MAX_SCAN_PAGE
+     */
+    public ScanIterator(Pager pager, String from, String to, int pageSize) {
+        this.pager = pager;
+        this.to = to;
+        this.pageSize = Math.max(1, Math.min(pageSize, MapServer.MAX_SCAN_PAGE));
+        this.ahead = pager.page(from, to, this.pageSize);
+    }
+
+    /**
+     * Returns the smallest key that sorts after every key starting with a prefix, to end a prefix scan with
+     * @param prefix e.g. "Sales"
+     * @return e.g. "Salet", or null if no key sorts after all of them
+     */
+    public static String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            if (prefix.charAt(i) != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (prefix.charAt(i) + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Merges scans of the same range from several replica groups, each in key order, into one in key order.
+     * A key a shard move has copied to its new group but not yet deleted from the old one is on both, with the
+     * same value, and is returned once.
+     * @param scans one scan per group
+     * @return the entries of all of them
+     */
+    public static Iterator<Transaction.Operation> merge(List<Iterator<Transaction.Operation>> scans) {
+        if (scans.size() == 1) {
+            return scans.get(0);
+        }
+        return new Iterator<Transaction.Operation>() {
+            // each scan with an entry left, ordered by that entry's key
+            private final PriorityQueue<Head> heads = new PriorityQueue<>(Comparator.comparing((Head head) -> head.entry.getKey()));
+
+            {
+                for (Iterator<Transaction.Operation> scan : scans) {
+                    if (scan.hasNext()) {
+                        heads.add(new Head(scan));
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Transaction.Operation next() {
+                Head head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                Transaction.Operation entry = head.entry;
+                advance(head);
+                while (!heads.isEmpty() && heads.peek().entry.getKey().equals(entry.getKey())) {
+                    advance(heads.poll());
+                }
+                return entry;
+            }
+
+            private void advance(Head head) {
+                if (head.scan.hasNext()) {
+                    head.entry = head.scan.next();
+                    heads.add(head);
+                }
+            }
+        };
+    }
+
+    private static final class Head {
+        final Iterator<Transaction.Operation> scan;
+        Transaction.Operation entry;
+
+        Head(Iterator<Transaction.Operation> scan) {
+            this.scan = scan;
+            this.entry = scan.next();
+        }
+    }
+
+    /**
+     * @throws MapClientException if a page couldn't be read
+     */
+    @Override
+    public boolean hasNext() {
+        while (next == page.size()) {
+            if (ahead == null) {
+                return false;
+            }
+            Transaction arrived;
+            try {
+                arrived = ahead.join();
+            } catch (CompletionException e) {
+                ahead = null;
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+            page = arrived.getOperations();
+            next = 0;
+            // a short page is the range's last; otherwise the next one starts just after this one's last key
+            ahead = page.size() < pageSize ? null : pager.page(page.get(page.size() - 1).getKey() + '\0', to, pageSize);
+        }
+        return true;
+    }
+
+    /**
+     * @throws MapClientException if a page couldn't be read
+     */
+    @Override
+    public Transaction.Operation next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(next++);
+    }
+}
@@ -1,10 +1,15 @@
+import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * ServerImpl. Implements methods of MapServer and contains all the functionality
@@ -12,17 +17,95 @@ import java.util.Map;
  */
 public class ServerImpl implements MapServer {
 
-    Integer gotResult;
     RunCoordinator coordinator;
-    Map<String, Integer> myMap;
+    ReplicaStore myMap;
+    WriteAheadLog log;
+    ReplicaSnapshot snapshots;
     int serverNumber;
+    // commits hold the read side while they are logged and applied, see takeSnapshot
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private ScheduledExecutorService snapshotTimer;
+    private SnapshotCursor exportCursor; // where exportSnapshot is up to
+    private volatile long fencedEpoch; // commits stamped with a lower epoch are rejected, see fence
+    final ServerMetrics metrics;
 
     public ServerImpl(int serverNumber) throws RemoteException, NotBoundException {
-        this.myMap = new HashMap<>();
+        this(serverNumber, null, null);
+    }
+
+    /**
+     * Creates a server whose commits are written to a log first. On startup it loads its newest snapshot
+     * and replays the part of the log written after it, so a restarted server comes back with the map it had
+     * @param serverNumber server's number
+     * @param log write-ahead log, or null to keep the map in memory only
+     * @param snapshots where snapshots of the map go, or null to never take any
+     * @throws RemoteException if the snapshot or log can't be read or the server can't be exported
+     */
+    public ServerImpl(int serverNumber, WriteAheadLog log, ReplicaSnapshot snapshots) throws RemoteException, NotBoundException {
+        this.myMap = new ReplicaStore(0, Boolean.parseBoolean(System.getProperty("replica.orderedIndex", "false")));
+        this.metrics = new ServerMetrics(myMap::size);
         this.serverNumber = serverNumber;
+        this.log = log;
+        this.snapshots = snapshots;
+        try {
+            long snapshotLsn = snapshots == null ? 0 : snapshots.loadNewest(myMap);
+            if (log != null) {
+                long replayed = log.replay(snapshotLsn, (lsn, op, key, value) -> {
+                    if (op == WriteAheadLog.PUT) {
+                        myMap.put(key, value);
+                    } else {
+                        myMap.remove(key);
+                    }
+                });
+                System.out.println("Server " + serverNumber + " replayed " + replayed + " operations from its log, map has " + myMap.size() + " keys");
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Could not recover the map of server " + serverNumber, e);
+        }
         UnicastRemoteObject.exportObject(this, 0);
     }
 
+    /**
+     * Writes a snapshot of the map and drops the log segments it covers. Commits only pause for the instant
+     * it takes to cut the log; the map itself is copied while they keep going.
+     * @throws IOException if the snapshot can't be written
+     */
+    public void takeSnapshot() throws IOException {
+        if (log == null || snapshots == null) {
+            return;
+        }
+        long lsn;
+        checkpointLock.writeLock().lock();
+        try {
+            lsn = log.rollover(); // every record up to lsn has been applied to the map
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+        long start = System.nanoTime();
+        snapshots.write(lsn, myMap);
+        log.deleteUpTo(snapshots.oldestLsn());
+        System.out.println("Server " + serverNumber + " wrote snapshot at lsn " + lsn + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Takes a snapshot every intervalSeconds on a background thread
+     * @param intervalSeconds seconds between snapshots
+     */
+    public void startSnapshots(long intervalSeconds) {
+        snapshotTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-server" + serverNumber);
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotTimer.scheduleWithFixedDelay(() -> {
+            try {
+                takeSnapshot();
+            } catch (IOException e) {
+                System.out.println("Server " + serverNumber + " could not write a snapshot: " + e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
     /**
      * Setter method for coordinator
      * @param coordinator coordinator
@@ -34,18 +117,11 @@ public class ServerImpl implements MapServer {
     /**
      * Returns a String of the current system time in "yyyy-MM-dd HH:mm:ss.SSS" format
      *
-     * This code from:
-     * https://stackoverflow.com/questions/1459656/how-to-get-the-current-time-in-yyyy-mm-dd-hhmisec-millisecond-format-in-java
-     *
      * @return String of current system time in "yyyy-MM-dd HH:mm:ss.SSS" format
      */
     @Override
     public String getFormattedCurrentSystemTime() {
-        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        // Get the current date
-        Date currentDate = new Date();
-        String currentDateTimeOutput = timeFormat.format(currentDate);
-        return currentDateTimeOutput;
+        return CachedClock.now();
     }
 
     /**
@@ -55,12 +131,7 @@ public class ServerImpl implements MapServer {
      */
     @Override
     public boolean isAlphaNumeric(String string) {
-        for (char c : string.toCharArray()) {
-            if (!Character.isLetter(c) && !Character.isDigit(c)) {
-                return false;
-            }
-        }
-        return true;
+        return CommandParser.isAlphaNumeric(string);
     }
 
     /**
@@ -70,20 +141,7 @@ public class ServerImpl implements MapServer {
      */
     @Override
     public boolean isInteger(String string) {
-        long value = 0;
-        for (char c : string.toCharArray()) {
-            if (!Character.isDigit(c)) {
-                return false;
-            }
-            if (value > 2147483647) { // integers only go up to this value
-                return false;
-            }
-            value = value*10 + Integer.parseInt(String.valueOf(c));
-        }
-        if (value > 2147483647) { // integers only go up to this value
-            return false;
-        }
-        return true;
+        return CommandParser.isInteger(string);
     }
 
     /**
@@ -94,13 +152,77 @@ public class ServerImpl implements MapServer {
      * @throws RemoteException RMI methods throw remote exception
      */
     @Override
-    public synchronized void executePUT(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException {
-        String timeStampClientINetPortNumber = "Timestamp=" + getFormattedCurrentSystemTime() + " (From " + clientINetAddress + " " + clientPORT_NUMBER + " server:" + serverNumber;
+    public void executePUT(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException {
         String key = splitClientMessage[1];
         String stringValue = splitClientMessage[2];
         int value = Integer.valueOf(stringValue);
-        myMap.put(key, value);
-        System.out.println(timeStampClientINetPortNumber + ") Server successfully execute PUT " + key + " " + value + " into the map");
+        commit(WriteAheadLog.PUT, key, value);
+        EventLog.info(serverNumber, clientINetAddress + " " + clientPORT_NUMBER, "Server successfully execute PUT {} {} into the map", key, value);
+    }
+
+    /**
+     * Appends a committed operation to the log, waits until it is durable, and then applies it to the map
+     * @param op WriteAheadLog.PUT or WriteAheadLog.DELETE
+     * @param key employee name
+     * @param value employee salary, ignored for DELETE
+     * @throws RemoteException if the log can't be written
+     */
+    private void commit(byte op, String key, int value) throws RemoteException {
+        long start = System.nanoTime();
+        checkpointLock.readLock().lock();
+        long locked = System.nanoTime();
+        try {
+            if (log != null) {
+                log.awaitDurable(log.append(op, key, value));
+            }
+            if (op == WriteAheadLog.PUT) {
+                myMap.put(key, value);
+            } else {
+                myMap.remove(key);
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Server " + serverNumber + " could not write to its log", e);
+        } finally {
+            checkpointLock.readLock().unlock();
+            metrics.commit(locked - start, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Logs all of a transaction's operations as one record, waits until it is durable, and then applies them
+     * to the map in order. Readers on this server may see the transaction half applied while this runs.
+     * @param transaction the PUTs and DELETEs to apply
+     * @param checkEpoch whether to reject the transaction if it was sent before the server was last fenced
+     * @throws RemoteException if the log can't be written, or the transaction is stale
+     */
+    private void commit(Transaction transaction, boolean checkEpoch) throws RemoteException {
+        long start = System.nanoTime();
+        checkpointLock.readLock().lock();
+        long locked = System.nanoTime();
+        try {
+            // checked under the lock, so fence can wait out every commit that got past it
+            if (checkEpoch && transaction.getEpoch() < fencedEpoch) {
+                throw new RemoteException("Server " + serverNumber + " rejected a commit from epoch " + transaction.getEpoch()
+                        + ", it was fenced at epoch " + fencedEpoch);
+            }
+            if (log != null) {
+                try {
+                    log.awaitDurable(log.appendBatch(transaction));
+                } catch (IOException e) {
+                    throw new RemoteException("Server " + serverNumber + " could not write to its log", e);
+                }
+            }
+            for (Transaction.Operation operation : transaction.getOperations()) {
+                if (operation.getOp() == WriteAheadLog.PUT) {
+                    myMap.put(operation.getKey(), operation.getValue());
+                } else {
+                    myMap.remove(operation.getKey());
+                }
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+            metrics.commit(locked - start, System.nanoTime() - start);
+        }
     }
 
     /**
@@ -113,39 +235,219 @@ public class ServerImpl implements MapServer {
      * @throws InterruptedException If response times out
      */
     @Override
-    public synchronized String handlePUT(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException, InterruptedException {
-        String timeStampClientINetPortNumber = "Timestamp=" + getFormattedCurrentSystemTime() + " (From " + clientINetAddress + ":" + clientPORT_NUMBER + " server:" + serverNumber;
-        String responseToClient = "";
+    public String handlePUT(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException, InterruptedException {
+        Command command = Command.put(splitClientMessage.length > 1 ? splitClientMessage[1] : "", 0, clientINetAddress + " " + clientPORT_NUMBER);
         if (splitClientMessage.length != 3) {
-            System.out.println(timeStampClientINetPortNumber + ") Server received bad PUT request; PUT request does not have appropriate number of arguments");
-            responseToClient = "Unsuccessful operation: PUT request does not have appropriate number of arguments";
+            EventLog.info(serverNumber, command.getClient(), "Server received bad PUT request; PUT request does not have appropriate number of arguments");
+            return new Result(Result.Status.BAD_ARGUMENTS, 0).describe(command);
+        }
+        String value = splitClientMessage[2];
+        command = Command.put(splitClientMessage[1], CommandParser.parseValue(value, 0, value.length()), command.getClient());
+        return put(command).describe(command);
+    }
+
+    /**
+     * Runs a client's GET, PUT, DELETE or conditional write. This is what the String methods (handleGET,
+     * handlePUT, handleDELETE) do too, after turning the client's words into a Command.
+     * @param command the client's command
+     * @return the result, stamped with this server's time
+     * @throws RemoteException RMI methods throw remote exception
+     * @throws InterruptedException If response times out
+     */
+    @Override
+    public Result execute(Command command) throws RemoteException, InterruptedException {
+        switch (command.getOp()) {
+            case Command.GET:
+                return get(command);
+            case Command.PUT:
+                return put(command);
+            case Command.DELETE:
+                return delete(command);
+            case Command.COMPARE_AND_SET:
+            case Command.INCREMENT:
+            case Command.PUT_IF_ABSENT:
+                return conditional(command);
+            default:
+                EventLog.info(serverNumber, command.getClient(), "Server received bad request: client did not pick from 'PUT', 'GET', 'DELETE'");
+                return new Result(Result.Status.BAD_OP, 0);
+        }
+    }
+
+    /**
+     * Runs a PUT and counts it in the server's metrics
+     */
+    private Result put(Command command) throws InterruptedException {
+        long start = metrics.startRequest();
+        long traced = Tracer.start(command.getTraceId());
+        Result result = checkAndSubmitPut(command);
+        metrics.request(Command.PUT, result.isSuccessful(), start);
+        if (command.getTraceId() != 0) {
+            Tracer.span(command.getTraceId(), "Server" + serverNumber + " PUT", traced, command.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Rejects a bad PUT, or passes a good one to the coordinator
+     */
+    private Result checkAndSubmitPut(Command command) throws InterruptedException {
+        String key = command.getKey();
+        int value = command.getValue();
+        Result.Status problem = CommandParser.check(command);
+        if (problem == null) { // valid input, lets try to get consensus
+            Result.Status misrouted = misrouted(command, true);
+            if (misrouted != null) {
+                return new Result(misrouted, 0);
+            }
+            boolean result = this.coordinator.submitWrite(WriteAheadLog.PUT, key, value, command.getTraceId());
+            if (result) {
+                EventLog.info(serverNumber, command.getClient(), "Coordinator ALL COMMIT reached. Committed PUT operation: {} {} into all maps", key, value);
+                return new Result(Result.Status.OK, 0); // no need to mention coordinator because client doesn't need to know about coordinator
+            }
+            EventLog.warn(serverNumber, command.getClient(), "Coordinator ABORT reached. Couldn't PUT {} into all servers", key);
+            return new Result(Result.Status.ABORTED, 0);
+        } else if (problem == Result.Status.BAD_KEY_AND_VALUE) {
+            EventLog.info(serverNumber, command.getClient(), "Server received bad PUT request; bad PUT key & bad PUT value");
+        } else if (problem == Result.Status.BAD_KEY) {
+            EventLog.info(serverNumber, command.getClient(), "Server received bad PUT request; bad PUT key");
         } else {
-            String key = splitClientMessage[1];
-            String stringValue = splitClientMessage[2];
-            boolean isAlphaNum = isAlphaNumeric(splitClientMessage[1]);
-            boolean isInt = isInteger(splitClientMessage[2]);
-            if (isAlphaNum && isInt) { // valid input, lets try to get consensus
-                boolean result = this.coordinator.getConsensus(splitClientMessage);
-                if (result) {
-                    System.out.println(timeStampClientINetPortNumber + ") Coordinator ALL COMMIT reached. Commencing PUT operation: " + key + " " + stringValue + " into all maps");
-                    this.coordinator.executeConsensusPUT(clientINetAddress, clientPORT_NUMBER, splitClientMessage);
-                    responseToClient = "Successful PUT operation: " + key + " " + stringValue; // no need to mention coordinator because client doesn't need to know about coordinator
-                } else {
-                    System.out.println(timeStampClientINetPortNumber + ") Coordinator ABORT reached. Couldn't PUT into all servers");
-                    responseToClient = "Unsuccessful PUT operation: " + key + " " + stringValue;
-                }
-            } else if (!isAlphaNum && !isInt) {
-                System.out.println(timeStampClientINetPortNumber + ") Server received bad PUT request; bad PUT key & bad PUT value");
-                responseToClient = "Unsuccessful operation: PUT's key must contain only alphanumeric characters and PUT's value must be a non-negative integer";
-            } else if (!isAlphaNum) {
-                System.out.println(timeStampClientINetPortNumber + ") Server received bad PUT request; bad PUT key");
-                responseToClient = "Unsuccessful operation: PUT's key must contain only alphanumeric characters";
-            } else {
-                System.out.println(timeStampClientINetPortNumber + ") Server received bad PUT request; bad PUT value");
-                responseToClient = "Unsuccessful operation: PUT's value must be a non-negative integer";
+            EventLog.info(serverNumber, command.getClient(), "Server received bad PUT request; bad PUT value");
+        }
+        return new Result(problem, 0);
+    }
+
+    /**
+     * Runs a compare-and-set, increment or put-if-absent and counts it in the server's metrics
+     */
+    private Result conditional(Command command) throws InterruptedException {
+        long start = metrics.startRequest();
+        long traced = Tracer.start(command.getTraceId());
+        Result result = checkAndSubmitConditional(command);
+        metrics.request(command.getOp(), result.isSuccessful(), start);
+        if (command.getTraceId() != 0) {
+            Tracer.span(command.getTraceId(), "Server" + serverNumber + " " + command.getOpName(), traced, command.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Rejects a bad conditional write, or passes a good one to the coordinator, which checks its condition in
+     * the same round that commits it
+     */
+    private Result checkAndSubmitConditional(Command command) throws InterruptedException {
+        String key = command.getKey();
+        Result.Status problem = CommandParser.check(command);
+        if (problem != null) {
+            EventLog.info(serverNumber, command.getClient(), problem == Result.Status.BAD_VALUE
+                    ? "Server received bad conditional write of {}; bad value" : "Server received bad conditional write of {}; bad key", key);
+            return new Result(problem, 0);
+        }
+        Result.Status misrouted = misrouted(command, true);
+        if (misrouted != null) {
+            return new Result(misrouted, 0);
+        }
+        Result result = this.coordinator.submitConditionalWrite(command.getOp(), key, command.getExpected(), command.getValue(), command.getTraceId());
+        switch (result.getStatus()) {
+            case OK:
+                EventLog.info(serverNumber, command.getClient(), "Coordinator ALL COMMIT reached. Committed conditional write: {} is now {} in all maps", key, result.getValue());
+                break;
+            case ABORTED:
+                EventLog.warn(serverNumber, command.getClient(), "Coordinator ABORT reached. Couldn't write {} on all servers", key);
+                break;
+            case NOT_FOUND:
+                EventLog.info(serverNumber, command.getClient(), "Server received bad conditional write; {} does not exist", key);
+                break;
+            default:
+                EventLog.info(serverNumber, command.getClient(), "Conditional write's condition did not hold; {} is {}", key, result.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Runs a GET and counts it in the server's metrics
+     */
+    private Result get(Command command) {
+        long start = metrics.startRequest();
+        long traced = Tracer.start(command.getTraceId());
+        Result result = lookUp(command);
+        metrics.request(Command.GET, result.isSuccessful(), start);
+        if (command.getTraceId() != 0) {
+            Tracer.span(command.getTraceId(), "Server" + serverNumber + " GET", traced, command.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Looks a key up in this server's map, or for QUORUM and ALL asks the coordinator to read it on every server
+     */
+    private Result lookUp(Command command) {
+        String key = command.getKey();
+        Consistency consistency = command.getConsistency();
+        Result.Status misrouted = misrouted(command, false);
+        if (misrouted != null) {
+            return new Result(misrouted, 0);
+        }
+        int value;
+        if (consistency == Consistency.ONE) {
+            value = myMap.getInt(key);
+        } else {
+            Integer agreed = this.coordinator.read(key, consistency);
+            if (agreed == null) {
+                EventLog.warn(serverNumber, command.getClient(), consistency == Consistency.ALL ? "Coordinator could not get ALL agreement on GET's ({})'s value" : "Coordinator could not get QUORUM agreement on GET's ({})'s value", key);
+                return new Result(Result.Status.NOT_ENOUGH_REPLICAS, 0);
             }
+            value = agreed;
+        }
+        if (value != CompactStringIntMap.MISSING) { // successful GET operation
+            EventLog.info(serverNumber, command.getClient(), "Server successfully retrieved GET's ({})'s value ({})", key, value);
+            return new Result(Result.Status.OK, value);
+        } else if (!CommandParser.isAlphaNumeric(key)) {
+            EventLog.info(serverNumber, command.getClient(), "Server received bad GET request; bad GET key");
+            return new Result(Result.Status.BAD_KEY, 0);
+        } else {
+            EventLog.info(serverNumber, command.getClient(), "Server received bad GET request; GET's key does not exist");
+            return new Result(Result.Status.NOT_FOUND, 0);
+        }
+    }
+
+    /**
+     * Runs a DELETE and counts it in the server's metrics
+     */
+    private Result delete(Command command) throws InterruptedException {
+        long start = metrics.startRequest();
+        long traced = Tracer.start(command.getTraceId());
+        Result result = checkAndSubmitDelete(command);
+        metrics.request(Command.DELETE, result.isSuccessful(), start);
+        if (command.getTraceId() != 0) {
+            Tracer.span(command.getTraceId(), "Server" + serverNumber + " DELETE", traced, command.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Rejects a DELETE of a key that isn't there, or passes it to the coordinator
+     */
+    private Result checkAndSubmitDelete(Command command) throws InterruptedException {
+        String key = command.getKey();
+        Result.Status misrouted = misrouted(command, true);
+        if (misrouted != null) {
+            return new Result(misrouted, 0);
+        }
+        if (myMap.getInt(key) != CompactStringIntMap.MISSING) { // valid input, lets try to get consensus
+            boolean result = this.coordinator.submitWrite(WriteAheadLog.DELETE, key, 0, command.getTraceId());
+            if (result) {
+                EventLog.info(serverNumber, command.getClient(), "Coordinator ALL COMMIT reached. Committed DELETE operation: {} from all maps", key);
+                return new Result(Result.Status.OK, 0); // no need to mention coordinator because client doesn't need to know about coordinator
+            }
+            EventLog.warn(serverNumber, command.getClient(), "Coordinator ABORT reached. Couldn't DELETE {} from all servers", key);
+            return new Result(Result.Status.ABORTED, 0);
+        } else if (!CommandParser.isAlphaNumeric(key)) {
+            EventLog.info(serverNumber, command.getClient(), "Server received bad DELETE request; bad DELETE key");
+            return new Result(Result.Status.BAD_KEY, 0);
+        } else {
+            EventLog.info(serverNumber, command.getClient(), "Server received bad DELETE request; DELETE's key does not exist");
+            return new Result(Result.Status.NOT_FOUND, 0);
         }
-        return responseToClient;
     }
 
     /**
@@ -157,28 +459,13 @@ public class ServerImpl implements MapServer {
      * @throws RemoteException RMI methods throw remote exception
      */
     @Override
-    public synchronized String handleGET(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException {
-        String timeStampClientINetPortNumber = "Timestamp=" + getFormattedCurrentSystemTime() + " (From " + clientINetAddress + " " + clientPORT_NUMBER + " server:" + serverNumber;
-        String responseToClient = "";
+    public String handleGET(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException {
+        Command command = Command.get(splitClientMessage.length > 1 ? splitClientMessage[1] : "", clientINetAddress + " " + clientPORT_NUMBER);
         if (splitClientMessage.length != 2) {
-            System.out.println(timeStampClientINetPortNumber + ") Server received bad GET request; GET request does not have appropriate number of arguments");
-            responseToClient = "Unsuccessful operation: GET request does not have appropriate number of arguments";
-        } else {
-            String key = splitClientMessage[1];
-            boolean isAlphaNum = isAlphaNumeric(splitClientMessage[1]);
-            Integer value = myMap.get(key);
-            if (value != null) { // successful GET operation
-                System.out.println(timeStampClientINetPortNumber + ") Server successfully retrieved GET's (" + key + ")'s value (" + value + ")");
-                responseToClient = "Successful GET operation. key=" + key + " value=" + String.valueOf(value);
-            } else if (!isAlphaNum) {
-                System.out.println(timeStampClientINetPortNumber + ") Server received bad GET request; bad GET key");
-                responseToClient = "Unsuccessful operation: GET's key must contain only alphanumeric characters";
-            } else {
-                System.out.println(timeStampClientINetPortNumber + ") Server received bad GET request; GET's key does not exist");
-                responseToClient = "Unsuccessful operation: GET's key does not exist";
-            }
+            EventLog.info(serverNumber, command.getClient(), "Server received bad GET request; GET request does not have appropriate number of arguments");
+            return new Result(Result.Status.BAD_ARGUMENTS, 0).describe(command);
         }
-        return responseToClient;
+        return get(command).describe(command);
     }
 
     /**
@@ -189,11 +476,10 @@ public class ServerImpl implements MapServer {
      * @throws RemoteException RMI methods throw remote exception
      */
     @Override
-    public synchronized void executeDELETE(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException {
-        String timeStampClientINetPortNumber = "Timestamp=" + getFormattedCurrentSystemTime() + " (From " + clientINetAddress + " " + clientPORT_NUMBER + " server:" + serverNumber;
+    public void executeDELETE(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException {
         String key = splitClientMessage[1];
-        myMap.remove(key);
-        System.out.println(timeStampClientINetPortNumber + ") Server successfully execute DELETE " + key + " from the map");
+        commit(WriteAheadLog.DELETE, key, 0);
+        EventLog.info(serverNumber, clientINetAddress + " " + clientPORT_NUMBER, "Server successfully execute DELETE {} from the map", key);
     }
 
     /**
@@ -206,54 +492,329 @@ public class ServerImpl implements MapServer {
      * @throws InterruptedException If response times out
      */
     @Override
-    public synchronized String handleDELETE(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException, InterruptedException {
-        String timeStampClientINetPortNumber = "Timestamp=" + getFormattedCurrentSystemTime() + " (From " + clientINetAddress + " " + clientPORT_NUMBER + " server:" + serverNumber;;
-        String responseToClient = "";
+    public String handleDELETE(String clientINetAddress, String clientPORT_NUMBER, String[] splitClientMessage) throws RemoteException, InterruptedException {
+        Command command = Command.delete(splitClientMessage.length > 1 ? splitClientMessage[1] : "", clientINetAddress + " " + clientPORT_NUMBER);
         if (splitClientMessage.length != 2) {
-            System.out.println(timeStampClientINetPortNumber + ") Server received bad DELETE request; DELETE request does not have appropriate number of arguments");
-            responseToClient = "Unsuccessful operation: DELETE request does not have appropriate number of arguments";
-        } else {
-            String key = splitClientMessage[1];
-            boolean isAlphaNum = isAlphaNumeric(splitClientMessage[1]);
-            Integer value = myMap.get(key);
-            if (value != null) { // valid input, lets try to get consensus
-                boolean result = this.coordinator.getConsensus(splitClientMessage);
-                if (result) {
-                    System.out.println(timeStampClientINetPortNumber + ") Coordinator ALL COMMIT reached. Commencing DELETE operation: " + key + " from all maps");
-                    this.coordinator.executeConsensusDELETE(clientINetAddress, clientPORT_NUMBER, splitClientMessage);
-                    responseToClient = "Successful DELETE operation: " + key; // no need to mention coordinator because client doesn't need to know about coordinator
-                } else {
-                    System.out.println(timeStampClientINetPortNumber + ") Coordinator ABORT reached. Couldn't DELETE from all servers");
-                    responseToClient = "Unsuccessful DELETE operation: " + key;
-                }
-            } else if (!isAlphaNum) {
-                System.out.println(timeStampClientINetPortNumber + ") Server received bad DELETE request; bad DELETE key");
-                responseToClient = "Unsuccessful operation: DELETE's key must contain only alphanumeric characters";
+            EventLog.info(serverNumber, command.getClient(), "Server received bad DELETE request; DELETE request does not have appropriate number of arguments");
+            return new Result(Result.Status.BAD_ARGUMENTS, 0).describe(command);
+        }
+        return delete(command).describe(command);
+    }
+
+    /**
+     * Handles a transaction from the client: checks every operation, then has the coordinator vote on and commit
+     * all of them in one round. If any operation is bad, nothing is applied. Returns a String response to the client
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param transaction the PUTs and DELETEs to apply together
+     * @return String representing our response to the client
+     * @throws RemoteException RMI methods throw remote exception
+     */
+    @Override
+    public String handleTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) throws RemoteException {
+        return submitTransaction(clientINetAddress, clientPORT_NUMBER, transaction).describe(transaction);
+    }
+
+    /**
+     * Runs a client's transaction like handleTransaction, and returns what happened to it rather than a sentence
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param transaction the PUTs and DELETEs to apply together
+     * @return OK with the number of operations, ABORTED, or why the transaction is bad, see Result.describe(Transaction)
+     */
+    @Override
+    public Result submitTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) {
+        long start = System.nanoTime();
+        long traced = Tracer.start(transaction.getTraceId());
+        Result result = checkAndRunTransaction(clientINetAddress, clientPORT_NUMBER, transaction);
+        metrics.transaction(result.isSuccessful(), System.nanoTime() - start);
+        if (transaction.getTraceId() != 0) {
+            Tracer.span(transaction.getTraceId(), "Server" + serverNumber + " TRANSACTION", traced, null);
+        }
+        return result;
+    }
+
+    /**
+     * Checks a transaction and has the coordinator run it
+     */
+    private Result checkAndRunTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) {
+        String client = clientINetAddress + " " + clientPORT_NUMBER;
+        Result problem = CommandParser.check(transaction);
+        if (problem != null) {
+            EventLog.info(serverNumber, client, "Server received bad TRANSACTION request; {}", problem.describe(transaction));
+            return problem;
+        }
+        for (String key : transaction.keys()) {
+            Result.Status misrouted = coordinator.route(key, true);
+            if (misrouted != null) {
+                EventLog.info(serverNumber, client, "Server turned away a TRANSACTION; {} is not a key this shard can write", key);
+                return new Result(misrouted, 0);
+            }
+        }
+        Set<String> putEarlier = new HashSet<>();
+        List<Transaction.Operation> operations = transaction.getOperations();
+        for (int i = 0; i < operations.size(); i++) {
+            String key = operations.get(i).getKey();
+            if (operations.get(i).getOp() == WriteAheadLog.PUT) {
+                putEarlier.add(key);
+            } else if (myMap.get(key) == null && !putEarlier.contains(key)) {
+                EventLog.info(serverNumber, client, "Server received bad TRANSACTION request; DELETE's key {} does not exist", key);
+                return new Result(Result.Status.NOT_FOUND, i);
             } else {
-                System.out.println(timeStampClientINetPortNumber + ") Server received bad DELETE request; DELETE's key does not exist");
-                responseToClient = "Unsuccessful operation: DELETE's key does not exist";
+                putEarlier.remove(key);
             }
         }
-        return responseToClient;
+        if (this.coordinator.runTransaction(clientINetAddress, clientPORT_NUMBER, transaction)) {
+            EventLog.info(serverNumber, client, "Coordinator ALL COMMIT reached. Committed TRANSACTION of {} operations on all maps", transaction.size());
+            return new Result(Result.Status.OK, transaction.size());
+        }
+        EventLog.warn(serverNumber, client, "Coordinator ABORT reached. Couldn't apply TRANSACTION to all servers");
+        return new Result(Result.Status.ABORTED, 0);
     }
 
     /**
-     * Long story short, this is my work-around for Callable's not taking parameters. Used for getting consensus
-     * @param key used to get the value
+     * Executes a transaction on the server, logging and applying all of its operations together
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param transaction the PUTs and DELETEs to apply
      * @throws RemoteException RMI methods throw remote exception
      */
     @Override
-    public void setValue(String key) {
-        this.gotResult = myMap.get(key);
+    public void executeTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) throws RemoteException {
+        long traced = Tracer.start(transaction.getTraceId());
+        commit(transaction, true);
+        if (transaction.getTraceId() != 0) {
+            Tracer.span(transaction.getTraceId(), "Server" + serverNumber + " apply", traced, transaction.size() + " operations");
+        }
+        EventLog.info(serverNumber, clientINetAddress + " " + clientPORT_NUMBER, "Server successfully execute TRANSACTION of {} operations on the map", transaction.size());
+    }
+
+    /**
+     * Registers a client's cache with the coordinator, which from then on tells it about every key a commit
+     * changes. A listener that can't be reached is dropped.
+     * @param listener the client's cache
+     */
+    @Override
+    public void addInvalidationListener(InvalidationListener listener) {
+        coordinator.addInvalidationListener(listener);
+    }
+
+    /**
+     * Returns the server's vote in a round: its current value for each of the round's keys. Votes carry
+     * everything they need, so any number of rounds can be voting at once
+     * @param keys the keys the round touches
+     * @return the value of each key, or CompactStringIntMap.MISSING for keys that aren't in the map
+     */
+    @Override
+    public int[] vote(String[] keys) {
+        int[] values = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = myMap.getInt(keys[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the server's own value for a key, without logging
+     * @param key employee name
+     * @return the value, or CompactStringIntMap.MISSING if the key isn't in the map
+     */
+    @Override
+    public int readLocal(String key) {
+        return myMap.getInt(key);
+    }
+
+    /**
+     * Answers the coordinator's heartbeat
+     */
+    @Override
+    public void ping() {
+    }
+
+    /**
+     * Returns this server's entries whose keys a hash ring of the given groups puts on one of them
+     * @param groups every group on the ring, see HashRing
+     * @param owner the group whose keys are wanted
+     * @return the entries, as PUTs
+     */
+    @Override
+    public Transaction exportShard(String[] groups, String owner) {
+        HashRing ring = new HashRing(Arrays.asList(groups));
+        Transaction entries = new Transaction();
+        myMap.forEachEntry((key, value) -> {
+            if (ring.owner(key).equals(owner)) {
+                entries.put(key, value);
+            }
+        });
+        return entries;
     }
 
     /**
-     * Required override for Callable<T>
-     * @return value of our key-value pair
+     * Returns the next chunk of a copy of the map, copying one stripe at a time so only that stripe is held
+     * @param position how many entries have been read so far, 0 to start a new copy
+     * @param maxEntries most entries to return
+     * @return the entries, as PUTs
+     * @throws RemoteException if the position isn't where the last chunk ended
      */
     @Override
-    public Integer call() {
-        return myMap.get(this.gotResult);
+    public synchronized Transaction exportSnapshot(long position, int maxEntries) throws RemoteException {
+        if (position == 0) {
+            exportCursor = new SnapshotCursor();
+        } else if (exportCursor == null || exportCursor.position != position) {
+            throw new RemoteException("Server " + serverNumber + " has no snapshot copy at position " + position);
+        }
+        SnapshotCursor cursor = exportCursor;
+        Transaction chunk = new Transaction();
+        while (chunk.size() < maxEntries) {
+            if (cursor.offset == cursor.entries.length) {
+                if (++cursor.stripe == myMap.stripeCount()) {
+                    break;
+                }
+                cursor.entries = myMap.copyStripe(cursor.stripe);
+                cursor.offset = 0;
+                continue;
+            }
+            cursor.offset = CompactStringIntMap.forEachEntry(cursor.entries, cursor.offset, maxEntries - chunk.size(), chunk::put);
+        }
+        cursor.position += chunk.size();
+        if (chunk.size() < maxEntries) {
+            exportCursor = null;
+        }
+        return chunk;
+    }
+
+    /**
+     * Rejects commits stamped with an epoch lower than the given one from now on, and waits for the commits
+     * already past that check to finish
+     * @param epoch the catch-up's epoch
+     */
+    @Override
+    public void fence(long epoch) {
+        checkpointLock.writeLock().lock();
+        try {
+            fencedEpoch = Math.max(fencedEpoch, epoch);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+        EventLog.info(serverNumber, "coordinator", "Server fenced at epoch {}, rejecting older commits", epoch);
+    }
+
+    /**
+     * Has the coordinator fence off the keys moving to a joining group and export them
+     * @param group this server's group, as "host:port"
+     * @param groups every group on the ring now
+     * @param joining the group joining the ring
+     * @return the entries to copy, as PUTs
+     * @throws RemoteException if the entries couldn't be exported
+     */
+    @Override
+    public Transaction beginShardMove(String group, String[] groups, String joining) throws RemoteException {
+        return coordinator.beginShardMove(group, groups, joining);
+    }
+
+    /**
+     * Has the coordinator put the group on a ring, deleting the entries it moved away if there are any
+     * @param group this server's group, as "host:port"
+     * @param groups every group on the ring
+     * @param moved true to delete the entries beginShardMove exported
+     * @throws RemoteException if the moved entries couldn't be deleted
+     */
+    @Override
+    public void endShardMove(String group, String[] groups, boolean moved) throws RemoteException {
+        coordinator.endShardMove(group, groups, moved);
+    }
+
+    /**
+     * Returns the groups on the ring this server's group is on
+     * @return the groups, or null if the group isn't on a ring
+     */
+    @Override
+    public String[] getShardGroups() {
+        return coordinator.getShardGroups();
+    }
+
+    /**
+     * Returns why this server's group can't take a request for the command's key right now, or null if it can
+     */
+    private Result.Status misrouted(Command command, boolean write) {
+        Result.Status status = coordinator == null ? null : coordinator.route(command.getKey(), write);
+        if (status == Result.Status.WRONG_SHARD) {
+            EventLog.info(serverNumber, command.getClient(), "Server turned away a request for {}; it is on another shard", command.getKey());
+        } else if (status == Result.Status.MOVING) {
+            EventLog.info(serverNumber, command.getClient(), "Server turned away a write of {}; it is being moved to another shard", command.getKey());
+        }
+        return status;
+    }
+
+    /**
+     * Deletes every key, one stripe at a time and a few thousand keys at a time, each batch logged like a
+     * commit, so only one stripe's copy and one batch are held at once however big the map is
+     * @return how many keys were deleted
+     * @throws RemoteException if the log can't be written
+     */
+    @Override
+    public int clearMap() throws RemoteException {
+        int deleted = 0;
+        for (int stripe = 0; stripe < myMap.stripeCount(); stripe++) {
+            byte[] entries = myMap.copyStripe(stripe);
+            int offset = 0;
+            while (offset < entries.length) {
+                Transaction batch = new Transaction();
+                offset = CompactStringIntMap.forEachEntry(entries, offset, 4096, (key, value) -> batch.delete(key));
+                commit(batch, false);
+                deleted += batch.size();
+            }
+        }
+        EventLog.info(serverNumber, "coordinator", "Server cleared its map of {} keys for a snapshot copy", deleted);
+        return deleted;
+    }
+
+    /**
+     * Returns one page of this server's entries in key order, read from its ordered index. Keys the group's
+     * ring puts on another group, left behind by a shard move, are skipped.
+     * @param from first key of the range
+     * @param to key the range ends before, or null for no end
+     * @param limit most entries to return, capped at MAX_SCAN_PAGE
+     * @return the entries, as PUTs in key order
+     */
+    @Override
+    public Transaction scan(String from, String to, int limit) {
+        int max = Math.min(limit, MAX_SCAN_PAGE);
+        Transaction page = new Transaction();
+        String next = from;
+        while (page.size() < max) {
+            Transaction read = new Transaction();
+            int wanted = max - page.size();
+            myMap.scan(next, to, wanted, read::put);
+            for (Transaction.Operation entry : read.getOperations()) {
+                if (coordinator == null || coordinator.route(entry.getKey(), false) == null) {
+                    page.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (read.size() < wanted) {
+                break;
+            }
+            next = read.getOperations().get(read.size() - 1).getKey() + '\0';
+        }
+        return page;
+    }
+
+    /**
+     * Where a copy of the map being read by exportSnapshot is up to: which stripe's copy, and how far into it
+     */
+    private static class SnapshotCursor {
+        int stripe = -1;
+        byte[] entries = new byte[0];
+        int offset;
+        long position;
+    }
+
+    /**
+     * Returns the server's request counts and latencies, as published over JMX
+     * @return the server's metrics
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
     }
 
 }
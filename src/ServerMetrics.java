@@ -0,0 +1,177 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * ServerMetrics. Counts and times one server's requests for JMX, see ServerMetricsMBean. Counters are
+ * LongAdders, which spread concurrent increments over cells instead of having every handler thread fight over
+ * one word. A GET on this server's own map only takes a couple of hundred nanoseconds, about what reading
+ * the clock twice and recording into a histogram costs, so only one request in SAMPLE_EVERY is timed; the
+ * counts are exact. Commits take microseconds and are all timed.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    static final int SAMPLE_EVERY = 16;
+
+    final LongAdder gets = new LongAdder();
+    final LongAdder puts = new LongAdder();
+    final LongAdder deletes = new LongAdder();
+    final LongAdder transactions = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder commits = new LongAdder();
+    final LongAdder lockWaitNanos = new LongAdder();
+    final LatencyHistogram getLatency = new LatencyHistogram();
+    final LatencyHistogram putLatency = new LatencyHistogram();
+    final LatencyHistogram deleteLatency = new LatencyHistogram();
+    final LatencyHistogram transactionLatency = new LatencyHistogram();
+    final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final IntSupplier mapSize;
+
+    /**
+     * @param mapSize returns the number of keys in the server's map
+     */
+    public ServerMetrics(IntSupplier mapSize) {
+        this.mapSize = mapSize;
+    }
+
+    /**
+     * Starts timing a client request, if it is one of the sampled ones
+     * @return the start time to pass to request, or 0 if this request isn't timed
+     */
+    long startRequest() {
+        return ThreadLocalRandom.current().nextInt(SAMPLE_EVERY) == 0 ? System.nanoTime() | 1 : 0;
+    }
+
+    /**
+     * Counts a client request
+     * @param op Command.GET, DELETE, or PUT; conditional writes count as PUTs
+     * @param ok whether it was answered with OK
+     * @param start what startRequest returned
+     */
+    void request(byte op, boolean ok, long start) {
+        LatencyHistogram latency;
+        if (op == Command.GET) {
+            gets.increment();
+            latency = getLatency;
+        } else if (op == Command.DELETE) {
+            deletes.increment();
+            latency = deleteLatency;
+        } else {
+            puts.increment();
+            latency = putLatency;
+        }
+        if (start != 0) {
+            latency.record(System.nanoTime() - start);
+        }
+        if (!ok) {
+            failed.increment();
+        }
+    }
+
+    /**
+     * Counts a client transaction
+     * @param ok whether it was committed
+     * @param nanos how long it took
+     */
+    void transaction(boolean ok, long nanos) {
+        transactions.increment();
+        transactionLatency.record(nanos);
+        if (!ok) {
+            failed.increment();
+        }
+    }
+
+    /**
+     * Counts a commit applied to the map
+     * @param lockWaitNanos how long it waited for the snapshot lock
+     * @param nanos how long it took, logging included
+     */
+    void commit(long lockWaitNanos, long nanos) {
+        commits.increment();
+        this.lockWaitNanos.add(lockWaitNanos);
+        commitLatency.record(nanos);
+    }
+
+    @Override
+    public long getGetCount() {
+        return gets.sum();
+    }
+
+    @Override
+    public long getPutCount() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getDeleteCount() {
+        return deletes.sum();
+    }
+
+    @Override
+    public long getTransactionCount() {
+        return transactions.sum();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getCommitCount() {
+        return commits.sum();
+    }
+
+    @Override
+    public int getMapSize() {
+        return mapSize.getAsInt();
+    }
+
+    @Override
+    public long getLockWaitMicros() {
+        return lockWaitNanos.sum() / 1000;
+    }
+
+    @Override
+    public double getGetLatencyP50Micros() {
+        return getLatency.percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getGetLatencyP99Micros() {
+        return getLatency.percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getPutLatencyP50Micros() {
+        return putLatency.percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getPutLatencyP99Micros() {
+        return putLatency.percentile(99) / 1e3;
+    }
+
+    @Override
+    public String getLatencySummary() {
+        return "GET " + getLatency.summary() + "; PUT " + putLatency.summary() + "; DELETE " + deleteLatency.summary()
+                + "; TRANSACTION " + transactionLatency.summary() + "; commit " + commitLatency.summary();
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder counter : new LongAdder[] {gets, puts, deletes, transactions, failed, commits, lockWaitNanos}) {
+            counter.reset();
+        }
+        for (LatencyHistogram histogram : new LatencyHistogram[] {getLatency, putLatency, deleteLatency, transactionLatency, commitLatency}) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("gets=%d puts=%d deletes=%d transactions=%d failed=%d commits=%d mapSize=%d lockWait=%s%n  %s",
+                getGetCount(), getPutCount(), getDeleteCount(), getTransactionCount(), getFailedCount(), getCommitCount(),
+                getMapSize(), LatencyHistogram.format(lockWaitNanos.sum()), getLatencySummary());
+    }
+}
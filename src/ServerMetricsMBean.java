@@ -0,0 +1,51 @@
+/**
+ * ServerMetricsMBean. What JMX shows of a server's ServerMetrics, under
+ * "RMIServerClient:type=Server,name=Server{number}". Latencies are in microseconds; request latencies come
+ * from a sample of the requests, see ServerMetrics.
+ */
+public interface ServerMetricsMBean {
+
+    /** @return client GETs handled, at any consistency level */
+    long getGetCount();
+
+    /** @return client PUTs handled, including rejected ones */
+    long getPutCount();
+
+    /** @return client DELETEs handled, including rejected ones */
+    long getDeleteCount();
+
+    /** @return client transactions handled, including rejected ones */
+    long getTransactionCount();
+
+    /** @return client requests answered with anything but OK */
+    long getFailedCount();
+
+    /** @return commits the coordinator applied to this server's map */
+    long getCommitCount();
+
+    /** @return keys in this server's map */
+    int getMapSize();
+
+    /** @return total time commits waited for the snapshot lock, in microseconds */
+    long getLockWaitMicros();
+
+    /** @return median GET latency */
+    double getGetLatencyP50Micros();
+
+    /** @return 99th percentile GET latency */
+    double getGetLatencyP99Micros();
+
+    /** @return median PUT latency, vote and commit included */
+    double getPutLatencyP50Micros();
+
+    /** @return 99th percentile PUT latency, vote and commit included */
+    double getPutLatencyP99Micros();
+
+    /** @return summary of each latency histogram */
+    String getLatencySummary();
+
+    /**
+     * Forgets everything counted so far
+     */
+    void reset();
+}
@@ -0,0 +1,16 @@
+/**
+ * ServerUnavailableException. The client couldn't reach its server at all (connection refused, unknown host,
+ * or the server object is gone), so the request was never carried out and is safe to send again.
+ */
+public class ServerUnavailableException extends MapClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message what went wrong
+     * @param cause the underlying RemoteException
+     */
+    public ServerUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,357 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ShardedClient. Splits the keys over several replica groups, each a RunCoordinator with its own servers and
+ * registry, so writes to different groups are voted on and committed independently and write throughput
+ * grows with the number of groups. Each key is sent to the group a HashRing puts it on, through an RMIClient
+ * connected to that group, which still picks among the group's servers and fails over between them.
+ *
+ * A transaction has to stay within one group, since each coordinator only commits on its own servers.
+ * Groups are named "host:port"; every client of the same groups must start with the same list. Once addGroup
+ * has added a group, the groups turn away requests for keys they no longer hold with WRONG_SHARD, and a
+ * client told that catches up with the ring the group is on and sends the request again, so other clients
+ * follow without being restarted.
+ */
+public class ShardedClient implements MapClient {
+
+    private static final int MOVE_BATCH = 500;
+    private static final int MAX_REDIRECTS = 16; // most times one request is sent again after being turned away
+    private static final long MOVING_BACKOFF_MILLIS = 10;
+    private static final long MAX_MOVING_BACKOFF_MILLIS = 500;
+
+    /**
+     * A ring and the client of each of its groups, in ring order, swapped together so a key's index always fits
+     */
+    private static final class Route {
+        final HashRing ring;
+        final RMIClient[] clients;
+
+        Route(HashRing ring, RMIClient[] clients) {
+            this.ring = ring;
+            this.clients = clients;
+        }
+    }
+
+    private final Map<String, RMIClient> clients = new ConcurrentHashMap<>();
+    private final HashRing initialRing;
+    private volatile Route route;
+
+    /**
+     * @param groups each group's registry, as "host:port"
+     */
+    public ShardedClient(List<String> groups) {
+        this.initialRing = new HashRing(groups);
+    }
+
+    /**
+     * Parses a comma separated list of ports into groups on one host
+     * @param host the registries' address
+     * @param ports e.g. "32000,32001,32002"
+     * @return the groups, e.g. "127.0.0.1:32000"
+     */
+    public static List<String> groupsOn(String host, String ports) {
+        List<String> groups = new ArrayList<>();
+        for (String port : ports.split(",")) {
+            groups.add(host + ":" + Integer.parseInt(port.trim()));
+        }
+        return groups;
+    }
+
+    /**
+     * Connects to every group
+     * @throws Exception if a group's registry or servers can't be reached
+     */
+    @Override
+    public void startClient() throws Exception {
+        for (String group : initialRing.getGroups()) {
+            connect(group);
+        }
+        route = new Route(initialRing, index(initialRing));
+    }
+
+    /**
+     * Returns the ring keys are placed with
+     * @return the current ring
+     */
+    public HashRing getRing() {
+        Route current = route;
+        return current == null ? initialRing : current.ring;
+    }
+
+    /**
+     * Returns the client of the group a key belongs to
+     * @param key employee name
+     * @return that group's client
+     */
+    public RMIClient clientFor(String key) {
+        Route current = route;
+        return current.clients[current.ring.ownerIndex(key)];
+    }
+
+    /**
+     * Sends a command to its key's group. If the group turns it away because the key is on another group now,
+     * it is sent there; if the key is being moved, it is sent again after a short wait, for about five seconds.
+     * @param command the command
+     * @return the group's result
+     */
+    @Override
+    public Result execute(Command command) {
+        for (int attempt = 0; ; attempt++) {
+            Route seen = route;
+            RMIClient client = seen.clients[seen.ring.ownerIndex(command.getKey())];
+            Result result = client.execute(command);
+            long delay = retryDelay(result.getStatus(), seen, client, attempt);
+            if (delay < 0 || !pause(delay)) {
+                return result;
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Result> executeAsync(Command command) {
+        return executeAsync(command, 0);
+    }
+
+    private CompletableFuture<Result> executeAsync(Command command, int attempt) {
+        Route seen = route;
+        RMIClient client = seen.clients[seen.ring.ownerIndex(command.getKey())];
+        return client.executeAsync(command).thenCompose(result -> {
+            if (result.getStatus() != Result.Status.WRONG_SHARD && result.getStatus() != Result.Status.MOVING) {
+                return CompletableFuture.completedFuture(result);
+            }
+            // catching up with the ring makes remote calls, so it runs off the client's own threads
+            return CompletableFuture.supplyAsync(() -> retryDelay(result.getStatus(), seen, client, attempt)).thenCompose(delay -> delay < 0
+                    ? CompletableFuture.completedFuture(result)
+                    : CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                            .thenCompose(ignored -> executeAsync(command, attempt + 1)));
+        });
+    }
+
+    /**
+     * Sends a transaction to the group its keys are on, and again like execute if that group turns it away
+     * @param clientINetAddress client's internet address
+     * @param clientPORT_NUMBER client's port number
+     * @param transaction the PUTs and DELETEs to apply together
+     * @return the server's response, or why the transaction can't be run
+     */
+    @Override
+    public String handleTransaction(String clientINetAddress, String clientPORT_NUMBER, Transaction transaction) {
+        String[] keys = transaction.keys();
+        for (int attempt = 0; ; attempt++) {
+            Route seen = route;
+            if (keys.length == 0) {
+                return seen.clients[0].handleTransaction(clientINetAddress, clientPORT_NUMBER, transaction); // the server explains
+            }
+            int group = seen.ring.ownerIndex(keys[0]);
+            for (String key : keys) {
+                if (seen.ring.ownerIndex(key) != group) {
+                    return "Unsuccessful operation: TRANSACTION's keys are on different shards (" + keys[0] + ", " + key + ")";
+                }
+            }
+            RMIClient client = seen.clients[group];
+            Result result = client.submitTransaction(clientINetAddress, clientPORT_NUMBER, transaction);
+            long delay = retryDelay(result.getStatus(), seen, client, attempt);
+            if (delay < 0 || !pause(delay)) {
+                return result.describe(transaction);
+            }
+        }
+    }
+
+    /**
+     * Streams a key range from every group at once, merged into key order. Hashing scatters a range's keys over
+     * all the groups, so each one is scanned, holding up to two pages per group. Every group is first asked
+     * which ring it is on, since a scan can't be turned away like a GET and would miss a group added since.
+     * @param from first key of the range
+     * @param to key the range ends before, or null for no end
+     * @param pageSize entries per round trip to each group, at most MapServer.MAX_SCAN_PAGE
+     * @return the entries, as PUTs; its methods throw MapClientException if a page can't be read
+     */
+    @Override
+    public Iterator<Transaction.Operation> scan(String from, String to, int pageSize) {
+        Route seen = route;
+        refresh(seen, Arrays.asList(seen.clients));
+        List<Iterator<Transaction.Operation>> scans = new ArrayList<>();
+        for (RMIClient client : route.clients) {
+            scans.add(client.scan(from, to, pageSize));
+        }
+        return ScanIterator.merge(scans);
+    }
+
+    @Override
+    public String getFormattedCurrentSystemTime() {
+        return route.clients[0].getFormattedCurrentSystemTime();
+    }
+
+    /**
+     * Adds a group to the ring and moves the keys that now belong to it. The new group is put on the new ring,
+     * then each existing group fences off the ranges the new group takes, turning writes to them away with
+     * MOVING, and hands over their entries, which are written to the new group. Only then do the existing
+     * groups move to the new ring, which lets writes through again and redirects requests for the moved keys,
+     * and delete the moved entries, each only if it still has the value that was copied. Keys in every other
+     * range stay where they are and can be written throughout. If the move fails, the existing groups stay on
+     * the old ring and the entries already copied are left on the new group, to be overwritten by the next try.
+     * @param group the new group's registry, as "host:port"
+     * @return how many keys were moved
+     * @throws Exception if a group can't be reached or a move isn't committed
+     */
+    public synchronized int addGroup(String group) throws Exception {
+        Route before = route;
+        List<String> names = before.ring.getGroups();
+        HashRing after = before.ring.with(group);
+        String[] beforeGroups = names.toArray(new String[0]);
+        String[] afterGroups = after.getGroups().toArray(new String[0]);
+        RMIClient target = connect(group);
+        target.endShardMove(group, afterGroups, false); // it only takes the keys the new ring gives it
+        int begun = 0;
+        int count = 0;
+        try {
+            for (; begun < names.size(); begun++) {
+                Transaction entries = before.clients[begun].beginShardMove(names.get(begun), beforeGroups, group);
+                for (Transaction chunk : split(entries)) {
+                    commit(target, chunk);
+                    count += chunk.size();
+                }
+            }
+        } catch (RuntimeException e) {
+            for (int i = 0; i <= begun && i < names.size(); i++) {
+                before.clients[i].endShardMove(names.get(i), beforeGroups, false);
+            }
+            throw e;
+        }
+        for (int i = 0; i < names.size(); i++) {
+            before.clients[i].endShardMove(names.get(i), afterGroups, true);
+        }
+        route = new Route(after, index(after));
+        return count;
+    }
+
+    @Override
+    public void close() {
+        for (RMIClient client : clients.values()) {
+            client.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getRing().toString();
+    }
+
+    /**
+     * Decides whether to send a request again after its group answered: after WRONG_SHARD, right away if the
+     * group is on a newer ring than this client; after MOVING, once a backoff has passed
+     * @return how many milliseconds to wait before sending it again, or -1 to return the answer
+     */
+    private long retryDelay(Result.Status status, Route seen, RMIClient answered, int attempt) {
+        if (attempt >= MAX_REDIRECTS) {
+            return -1;
+        }
+        if (status == Result.Status.WRONG_SHARD) {
+            return refresh(seen, Collections.singletonList(answered)) ? 0 : -1;
+        }
+        if (status == Result.Status.MOVING) {
+            return Math.min(MOVING_BACKOFF_MILLIS << attempt, MAX_MOVING_BACKOFF_MILLIS);
+        }
+        return -1;
+    }
+
+    /**
+     * Moves on to the newest ring any of the given groups is on, connecting to the groups it adds. Groups are
+     * only ever added, so the ring with the most groups is the newest.
+     * @return true if the ring is now newer than the one seen
+     * @throws MapClientException if a group couldn't be asked or connected to
+     */
+    private synchronized boolean refresh(Route seen, Collection<RMIClient> ask) {
+        if (route != seen) {
+            return true; // someone else already has
+        }
+        String[] newest = null;
+        for (RMIClient client : ask) {
+            String[] groups = client.getShardGroups();
+            if (groups != null && groups.length > (newest == null ? seen.ring.getGroups().size() : newest.length)) {
+                newest = groups;
+            }
+        }
+        if (newest == null) {
+            return false;
+        }
+        HashRing ring = new HashRing(Arrays.asList(newest));
+        try {
+            for (String group : ring.getGroups()) {
+                connect(group);
+            }
+        } catch (Exception e) {
+            throw new ServerUnavailableException("could not connect to the groups of " + ring, e);
+        }
+        route = new Route(ring, index(ring));
+        return true;
+    }
+
+    private static boolean pause(long millis) {
+        if (millis == 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private RMIClient connect(String group) throws Exception {
+        RMIClient client = clients.get(group);
+        if (client == null) {
+            int colon = group.lastIndexOf(':');
+            client = new RMIClient(group.substring(0, colon), Integer.valueOf(group.substring(colon + 1)));
+            client.startClient();
+            clients.put(group, client);
+        }
+        return client;
+    }
+
+    private RMIClient[] index(HashRing ring) {
+        List<String> groups = ring.getGroups();
+        RMIClient[] index = new RMIClient[groups.size()];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = clients.get(groups.get(i));
+        }
+        return index;
+    }
+
+    /**
+     * Splits entries into transactions of at most MOVE_BATCH PUTs
+     */
+    private static List<Transaction> split(Transaction entries) {
+        List<Transaction> chunks = new ArrayList<>();
+        Transaction chunk = new Transaction();
+        for (Transaction.Operation entry : entries.getOperations()) {
+            chunk.put(entry.getKey(), entry.getValue());
+            if (chunk.size() == MOVE_BATCH) {
+                chunks.add(chunk);
+                chunk = new Transaction();
+            }
+        }
+        if (chunk.size() > 0) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static void commit(RMIClient client, Transaction chunk) {
+        Result result = client.submitTransaction("rebalance", "0", chunk);
+        if (!result.isSuccessful()) {
+            throw new IllegalStateException("could not move " + chunk.size() + " keys: " + result.getStatus());
+        }
+    }
+}
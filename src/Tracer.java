@@ -0,0 +1,187 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tracer. Follows sampled requests from the client through the server and the coordinator's rounds to every
+ * replica, and writes where the time went as spans in the Chrome trace event format, which chrome://tracing,
+ * Perfetto (ui.perfetto.dev) and speedscope open directly.
+ *
+ * RMIClient decides whether a request is traced and gives it a trace id, which travels in the Command, through
+ * the coordinator's write batch and in the Transaction each replica commits. Every span carries the trace id,
+ * so the spans of one request can be found in the trace files of the client's and the coordinator's JVMs;
+ * timestamps are wall clock microseconds, so the files line up when loaded together. A request that isn't
+ * sampled costs one random number on the client and a comparison with 0 everywhere else, as long as callers
+ * whose span name or detail has to be built, e.g. "Server" + number, only call span when the trace id isn't 0.
+ *
+ * Tracing is on when "trace.file" names the file to write (default off). "trace.sampleRate" is the fraction
+ * of requests the client traces (default 0.01). Spans are queued and written by a background thread; when
+ * the queue is full they are dropped.
+ */
+public final class Tracer {
+
+    private static final Path FILE = System.getProperty("trace.file") == null ? null : Path.of(System.getProperty("trace.file"));
+    private static final double SAMPLE_RATE = Double.parseDouble(System.getProperty("trace.sampleRate", "0.01"));
+    private static final long PID = ProcessHandle.current().pid();
+    // nanoTime has no epoch; this turns it into wall clock microseconds
+    private static final long EPOCH_MICROS = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(65536);
+    private static final LongAdder dropped = new LongAdder();
+    private static final AtomicLong queued = new AtomicLong();
+    private static volatile long written;
+
+    static {
+        if (FILE != null) {
+            Thread writer = new Thread(Tracer::writeForever, "trace-writer");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Tracer::flush, "trace-flush"));
+        }
+    }
+
+    private Tracer() {
+    }
+
+    /**
+     * Returns whether this JVM writes spans
+     * @return true if "trace.file" is set
+     */
+    public static boolean isEnabled() {
+        return FILE != null;
+    }
+
+    /**
+     * Decides whether to trace a new request
+     * @return a new trace id, or 0 if the request isn't traced
+     */
+    public static long startTrace() {
+        if (FILE == null || SAMPLE_RATE <= 0) {
+            return 0;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() >= SAMPLE_RATE) {
+            return 0;
+        }
+        long id;
+        do {
+            id = random.nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * Returns the start time to pass to span, if the request is traced
+     * @param traceId the request's trace id
+     * @return System.nanoTime(), or 0 if the request isn't traced
+     */
+    public static long start(long traceId) {
+        return traceId == 0 || FILE == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Records a span that started at startNanos and ends now
+     * @param traceId the request's trace id; nothing is recorded for 0
+     * @param name what the time was spent on, e.g. "vote Server3"
+     * @param startNanos what start returned
+     * @param detail e.g. the key, or null
+     */
+    public static void span(long traceId, String name, long startNanos, String detail) {
+        if (traceId == 0 || FILE == null || startNanos == 0) {
+            return;
+        }
+        long end = System.nanoTime();
+        StringBuilder event = new StringBuilder(160);
+        event.append("{\"name\":\"");
+        escape(event, name);
+        event.append("\",\"cat\":\"request\",\"ph\":\"X\",\"ts\":").append(EPOCH_MICROS + startNanos / 1000)
+                .append(",\"dur\":").append(Math.max(0, (end - startNanos) / 1000))
+                .append(",\"pid\":").append(PID)
+                .append(",\"tid\":").append(Thread.currentThread().getId())
+                .append(",\"args\":{\"traceId\":\"").append(Long.toHexString(traceId)).append('"');
+        if (detail != null) {
+            event.append(",\"detail\":\"");
+            escape(event, detail);
+            event.append('"');
+        }
+        event.append("}}");
+        if (queue.offer(event.toString())) {
+            queued.incrementAndGet();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Blocks until every span recorded so far is in the file, or a second has passed
+     */
+    public static void flush() {
+        long target = queued.get();
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (FILE != null && written < target && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    /**
+     * Returns how many spans were dropped because the queue was full
+     * @return dropped spans
+     */
+    public static long droppedSpans() {
+        return dropped.sum();
+    }
+
+    private static void escape(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static void writeForever() {
+        // a JSON array that is never closed: the trace format allows that, so a killed JVM still leaves a
+        // readable file
+        try (BufferedWriter out = Files.newBufferedWriter(FILE, StandardCharsets.UTF_8)) {
+            out.write("[\n{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + PID + ",\"args\":{\"name\":\""
+                    + ManagementFactory.getRuntimeMXBean().getName() + "\"}}");
+            out.flush();
+            List<String> batch = new ArrayList<>();
+            while (true) {
+                String first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                for (String event : batch) {
+                    out.write(",\n");
+                    out.write(event);
+                }
+                out.flush();
+                written += batch.size();
+                batch.clear();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not write the trace to " + FILE + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
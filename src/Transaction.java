@@ -0,0 +1,180 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Transaction. A set of PUTs and DELETEs that the coordinator votes on and commits as one, so either every
+ * operation is applied on every server or none is. Operations are applied in the order they were added.
+ */
+public class Transaction implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * One PUT or DELETE in a transaction
+     */
+    public static class Operation implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final byte op;
+        final String key;
+        final int value;
+
+        Operation(byte op, String key, int value) {
+            this.op = op;
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * Returns WriteAheadLog.PUT or WriteAheadLog.DELETE
+         * @return the operation's type
+         */
+        public byte getOp() {
+            return op;
+        }
+
+        /**
+         * Getter method for the key
+         * @return employee name
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the value to put, 0 for a DELETE
+         * @return employee salary
+         */
+        public int getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return op == WriteAheadLog.PUT ? "PUT " + key + " " + value : "DELETE " + key;
+        }
+    }
+
+    private final List<Operation> operations = new ArrayList<>();
+    private long traceId;
+    private long epoch;
+
+    /**
+     * Returns the id the transaction is traced under, see Tracer
+     * @return trace id, or 0 if the transaction isn't traced
+     */
+    public long getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Traces the transaction, and each replica's commit of it, under the given id
+     * @param traceId trace id
+     * @return this transaction
+     */
+    public Transaction setTraceId(long traceId) {
+        this.traceId = traceId;
+        return this;
+    }
+
+    /**
+     * Returns the coordinator's fencing epoch when it sent this transaction, see MapServer.fence
+     * @return epoch, 0 if the transaction wasn't sent by a coordinator
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Stamps the transaction with the coordinator's fencing epoch, so a server fenced at a later epoch rejects it
+     * @param epoch fencing epoch
+     * @return this transaction
+     */
+    public Transaction setEpoch(long epoch) {
+        this.epoch = epoch;
+        return this;
+    }
+
+    /**
+     * Adds a PUT to the transaction
+     * @param key employee name
+     * @param value employee salary
+     * @return this transaction
+     */
+    public Transaction put(String key, int value) {
+        operations.add(new Operation(WriteAheadLog.PUT, key, value));
+        return this;
+    }
+
+    /**
+     * Adds a DELETE to the transaction
+     * @param key employee name
+     * @return this transaction
+     */
+    public Transaction delete(String key) {
+        operations.add(new Operation(WriteAheadLog.DELETE, key, 0));
+        return this;
+    }
+
+    /**
+     * Returns the operations in the order they were added
+     * @return the transaction's operations
+     */
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * Returns the keys the transaction touches, in operation order (a key can appear more than once)
+     * @return the keys
+     */
+    public String[] keys() {
+        String[] keys = new String[operations.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = operations.get(i).key;
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the number of operations
+     * @return number of operations
+     */
+    public int size() {
+        return operations.size();
+    }
+
+    /**
+     * Parses a client's transaction, e.g. "PUT Tom 70000, DELETE Jerry, PUT Billy 150000". Only the shape and
+     * the values are checked here; CommandParser.check checks the keys.
+     * @param commands comma separated PUT and DELETE commands
+     * @return the transaction
+     * @throws IllegalArgumentException if a command is not a PUT with a key and a number, or a DELETE with a key
+     */
+    public static Transaction parse(String commands) {
+        Transaction transaction = new Transaction();
+        for (String command : commands.split(",")) {
+            String[] split = command.trim().split(" ");
+            if (split[0].equals("PUT") && split.length == 3) {
+                int value = CommandParser.parseValue(split[2], 0, split[2].length());
+                if (value < 0) {
+                    throw new IllegalArgumentException("PUT's value must be a non-negative integer: " + command.trim());
+                }
+                transaction.put(split[1], value);
+            } else if (split[0].equals("DELETE") && split.length == 2) {
+                transaction.delete(split[1]);
+            } else {
+                throw new IllegalArgumentException("not a PUT (KEY) (VALUE) or DELETE (KEY): " + command.trim());
+            }
+        }
+        return transaction;
+    }
+
+    @Override
+    public String toString() {
+        return operations.toString();
+    }
+}
@@ -0,0 +1,516 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog. An append-only log of the PUTs and DELETEs a replica has committed, so that a restarted
+ * ServerImpl can rebuild its map. executePUT/executeDELETE append a record, wait until it is durable
+ * (according to the Durability mode), and only then apply it to the store.
+ *
+ * Each record is [int length][int crc32][long lsn][byte op][int key length][key bytes][int value]. A
+ * transaction is a single BATCH record, [int length][int crc32][long lsn][byte BATCH][int count] followed by
+ * count times [byte op][int key length][key bytes][int value], so one checksum covers all of it and a crash
+ * can never leave half a transaction in the log.
+ *
+ * In GROUP mode, commits share fsyncs: the first thread that needs a flush becomes the leader and forces
+ * everything appended so far in one FileChannel.force, while the threads that appended in the meantime
+ * just wait for it and return without touching the disk.
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    /**
+     * How long a commit waits before it is acknowledged
+     */
+    public enum Durability {
+        /** Every record is written and forced on its own before the commit returns */
+        PER_OP,
+        /** Concurrent commits share a single force, and each waits for the force covering its record */
+        GROUP,
+        /** Commits return right away and a background thread forces the log every few milliseconds */
+        ASYNC;
+
+        /**
+         * Parses a durability mode, ignoring case and allowing "per-op" for PER_OP
+         * @param name mode name
+         * @return the durability mode
+         */
+        public static Durability parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    /**
+     * Called for each record found when replaying the log
+     */
+    public interface Replayer {
+        void apply(long lsn, byte op, String key, int value);
+    }
+
+    public static final byte PUT = 1;
+    public static final byte DELETE = 2;
+    public static final byte BATCH = 3;
+
+    private static final int HEADER_BYTES = 8;
+    private static final int ASYNC_FLUSH_MILLIS = 10;
+    private static final int MAX_BUFFERED_BYTES = 1 << 20;
+
+    private final Path directory;
+    private final Durability durability;
+    private final CRC32 crc = new CRC32();
+    private final Thread flusher;
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+
+    private Path file;
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long lastLsn;
+    private long durableLsn;
+    private boolean flushing;
+    private volatile boolean closed;
+    private IOException failure; // set once a write or force fails; the log is unusable from then on
+
+    /**
+     * Opens (or creates) the log in a directory. The log is split into segment files named after the first
+     * lsn they hold, and new records go to the newest segment. A single "wal.log" left by an older version is
+     * renamed to the first segment.
+     * @param directory directory holding the log's segments
+     * @param durability when commits are acknowledged
+     * @throws IOException if the log can't be opened
+     */
+    public WriteAheadLog(Path directory, Durability durability) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.durability = durability;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path segment : stream) {
+                String name = segment.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(4, name.length() - 4)), segment);
+            }
+        }
+        Path legacy = directory.resolve("wal.log");
+        if (Files.exists(legacy)) {
+            // a log written before segments existed: it holds every lsn from 1, so it becomes the first segment
+            if (!segments.isEmpty()) {
+                throw new IOException("WriteAheadLog found both " + legacy + " and segment files in " + directory
+                        + "; move one of them away");
+            }
+            Files.move(legacy, segmentPath(1), StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("WriteAheadLog: adopted " + legacy + " as " + segmentPath(1));
+        }
+        if (segments.isEmpty()) {
+            segments.put(1L, segmentPath(1));
+        }
+        this.file = segments.lastEntry().getValue();
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.channel.position(channel.size());
+        if (durability == Durability.ASYNC) {
+            this.flusher = new Thread(this::flushPeriodically, "wal-flusher-" + directory.getFileName());
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    /**
+     * Reads every intact record in the log, in order, and positions the log for new appends. A torn
+     * record at the end (from a crash in the middle of a write) is cut off.
+     * @param afterLsn records up to and including this lsn are skipped, e.g. because a snapshot already has them
+     * @param replayer receives each record, or each operation of a BATCH record
+     * @return number of operations replayed
+     * @throws IOException if the log can't be read
+     */
+    public synchronized long replay(long afterLsn, Replayer replayer) throws IOException {
+        long count = 0;
+        lastLsn = Math.max(lastLsn, afterLsn);
+        for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+            boolean current = segment.getValue().equals(file);
+            if (current) {
+                count += replaySegment(channel, segment.getValue(), afterLsn, replayer, true);
+            } else {
+                try (FileChannel old = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+                    count += replaySegment(old, segment.getValue(), afterLsn, replayer, false);
+                }
+            }
+        }
+        durableLsn = lastLsn;
+        return count;
+    }
+
+    private long replaySegment(FileChannel source, Path path, long afterLsn, Replayer replayer, boolean current) throws IOException {
+        long count = 0;
+        long position = 0;
+        long size = source.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(source, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || position + HEADER_BYTES + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(source, body, position + HEADER_BYTES);
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            body.flip();
+            long lsn = body.getLong();
+            byte op = body.get();
+            int operations = op == BATCH ? body.getInt() : 1;
+            for (int i = 0; i < operations; i++) {
+                byte entryOp = op == BATCH ? body.get() : op;
+                byte[] key = new byte[body.getInt()];
+                body.get(key);
+                int value = body.getInt();
+                if (lsn > afterLsn) {
+                    replayer.apply(lsn, entryOp, new String(key, StandardCharsets.UTF_8), value);
+                    count++;
+                }
+            }
+            lastLsn = Math.max(lastLsn, lsn);
+            position += HEADER_BYTES + length;
+        }
+        if (position < size) {
+            System.out.println("WriteAheadLog: dropping " + (size - position) + " torn bytes at the end of " + path);
+            if (current) {
+                source.truncate(position);
+            }
+        }
+        if (current) {
+            source.position(position);
+        }
+        return count;
+    }
+
+    /**
+     * Appends a record to the log. The record is not durable until awaitDurable returns for its lsn.
+     * @param op PUT or DELETE
+     * @param key employee name
+     * @param value employee salary, ignored for DELETE
+     * @return the record's log sequence number
+     * @throws IOException if the log can't be written
+     */
+    public long append(byte op, String key, int value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 1 + 4 + keyBytes.length + 4;
+        long lsn;
+        boolean backlog;
+        synchronized (this) {
+            checkOpen();
+            lsn = ++lastLsn;
+            int start = beginRecord(length);
+            buffer.putLong(lsn).put(op).putInt(keyBytes.length).put(keyBytes).putInt(value);
+            backlog = endRecord(start, length, lsn);
+        }
+        if (backlog) {
+            flush(lsn); // don't let the buffer grow without bound between background flushes
+        }
+        return lsn;
+    }
+
+    /**
+     * Appends every operation of a transaction as a single record, so that after a crash the log holds
+     * either all of them or none. The record is not durable until awaitDurable returns for its lsn.
+     * @param transaction the transaction's PUTs and DELETEs
+     * @return the record's log sequence number, shared by all its operations
+     * @throws IOException if the log can't be written
+     */
+    public long appendBatch(Transaction transaction) throws IOException {
+        List<Transaction.Operation> operations = transaction.getOperations();
+        byte[][] keyBytes = new byte[operations.size()][];
+        int length = 8 + 1 + 4;
+        for (int i = 0; i < keyBytes.length; i++) {
+            keyBytes[i] = operations.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+            length += 1 + 4 + keyBytes[i].length + 4;
+        }
+        long lsn;
+        boolean backlog;
+        synchronized (this) {
+            checkOpen();
+            lsn = ++lastLsn;
+            int start = beginRecord(length);
+            buffer.putLong(lsn).put(BATCH).putInt(keyBytes.length);
+            for (int i = 0; i < keyBytes.length; i++) {
+                Transaction.Operation operation = operations.get(i);
+                buffer.put(operation.getOp()).putInt(keyBytes[i].length).put(keyBytes[i]).putInt(operation.getValue());
+            }
+            backlog = endRecord(start, length, lsn);
+        }
+        if (backlog) {
+            flush(lsn);
+        }
+        return lsn;
+    }
+
+    /**
+     * Throws if the log is closed or an earlier write failed. Caller holds the lock.
+     */
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException("WriteAheadLog failed to write " + directory, failure);
+        }
+        if (closed) {
+            throw new IOException("WriteAheadLog is closed: " + directory);
+        }
+    }
+
+    /**
+     * Makes room for a record in the buffer and skips its header, which endRecord fills in. Caller holds the lock.
+     * @return where the record starts in the buffer
+     */
+    private int beginRecord(int length) {
+        if (buffer.remaining() < HEADER_BYTES + length) {
+            buffer = grow(buffer, HEADER_BYTES + length);
+        }
+        int start = buffer.position();
+        buffer.position(start + HEADER_BYTES);
+        return start;
+    }
+
+    /**
+     * Fills in the record's header, and in PER_OP mode writes it out. Caller holds the lock.
+     * @return true if an ASYNC log has buffered so much that the caller should flush it
+     */
+    private boolean endRecord(int start, int length, long lsn) throws IOException {
+        crc.reset();
+        crc.update(buffer.array(), start + HEADER_BYTES, length);
+        buffer.putInt(start, length).putInt(start + 4, (int) crc.getValue());
+        if (durability == Durability.PER_OP) {
+            try {
+                writeBuffer(channel, buffer);
+                channel.force(false);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+            durableLsn = lsn;
+        }
+        return durability == Durability.ASYNC && buffer.position() > MAX_BUFFERED_BYTES;
+    }
+
+    /**
+     * Blocks until the record with the given lsn is durable, according to the log's Durability mode
+     * @param lsn sequence number returned by append
+     * @throws IOException if the log can't be written
+     */
+    public void awaitDurable(long lsn) throws IOException {
+        if (durability == Durability.GROUP) {
+            flush(lsn);
+        }
+    }
+
+    /**
+     * Writes and forces everything appended so far
+     * @throws IOException if the log can't be written
+     */
+    public void sync() throws IOException {
+        long upTo;
+        synchronized (this) {
+            upTo = lastLsn;
+        }
+        flush(upTo);
+    }
+
+    /**
+     * Forces everything appended so far and starts a new segment. Records in the old segments can then be
+     * dropped with deleteUpTo once something else (a snapshot) has them.
+     * @return lsn of the last record in the old segments
+     * @throws IOException if the log can't be written
+     */
+    public long rollover() throws IOException {
+        sync();
+        synchronized (this) {
+            while (flushing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the log to flush", e);
+                }
+            }
+            checkOpen();
+            try {
+                writeBuffer(channel, buffer);
+                channel.force(false);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+            channel.close();
+            durableLsn = lastLsn;
+            file = segmentPath(lastLsn + 1);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            segments.put(lastLsn + 1, file);
+            return lastLsn;
+        }
+    }
+
+    /**
+     * Deletes the old segments whose records all have an lsn of at most upToLsn. The current segment is kept.
+     * @param upToLsn highest lsn that no longer needs to be replayed
+     * @throws IOException if a segment can't be deleted
+     */
+    public synchronized void deleteUpTo(long upToLsn) throws IOException {
+        while (segments.size() > 1) {
+            Map.Entry<Long, Path> oldest = segments.firstEntry();
+            long nextStart = segments.higherKey(oldest.getKey());
+            if (nextStart - 1 > upToLsn) {
+                return;
+            }
+            Files.deleteIfExists(oldest.getValue());
+            segments.remove(oldest.getKey());
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last record appended
+     * @return last lsn
+     */
+    public synchronized long lastLsn() {
+        return lastLsn;
+    }
+
+    /**
+     * Returns the durability mode the log was opened with
+     * @return durability mode
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Leader/follower group commit. Whoever finds no flush in progress takes the buffered records and
+     * writes them out while holding no lock, so that new appends keep filling the other buffer.
+     *
+     * If the write or force fails, it is unknown how much of the buffer reached the disk, so the log is marked
+     * failed rather than retried: durableLsn never moves past the lost records, and every later append and
+     * flush throws, so no commit after them can be acknowledged either.
+     */
+    private void flush(long lsn) throws IOException {
+        FileChannel target;
+        ByteBuffer toWrite;
+        long upTo;
+        synchronized (this) {
+            while (durableLsn < lsn && flushing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the log to flush", e);
+                }
+            }
+            if (durableLsn >= lsn) {
+                return;
+            }
+            checkOpen();
+            flushing = true;
+            target = channel;
+            toWrite = buffer;
+            buffer = spare;
+            spare = null;
+            upTo = lastLsn;
+        }
+        IOException failed = null;
+        try {
+            writeBuffer(target, toWrite);
+            target.force(false);
+        } catch (IOException e) {
+            failed = e;
+        } catch (RuntimeException e) {
+            failed = new IOException("Log write failed", e);
+        }
+        synchronized (this) {
+            toWrite.clear();
+            spare = toWrite;
+            flushing = false;
+            if (failed == null) {
+                durableLsn = Math.max(durableLsn, upTo);
+            } else if (failure == null) {
+                failure = failed;
+            }
+            notifyAll();
+        }
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            if (source.read(target, position + target.position()) < 0) {
+                throw new IOException("Unexpected end of log segment");
+            }
+        }
+    }
+
+    private static void writeBuffer(FileChannel target, ByteBuffer source) throws IOException {
+        source.flip();
+        while (source.hasRemaining()) {
+            target.write(source);
+        }
+        source.clear();
+    }
+
+    private Path segmentPath(long firstLsn) {
+        return directory.resolve(String.format("wal-%020d.log", firstLsn));
+    }
+
+    private void flushPeriodically() {
+        while (!closed) {
+            try {
+                Thread.sleep(ASYNC_FLUSH_MILLIS);
+                sync();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("WriteAheadLog: background flush of " + directory + " failed: " + e);
+                return; // the log is failed for good, see flush
+            }
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Forces everything appended so far and closes the log
+     * @throws IOException if the final flush fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            closed = true;
+            if (flusher != null) {
+                flusher.interrupt();
+            }
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * WriteBatcher. Group commit for the coordinator: PUTs and DELETEs from many clients are queued, and a few
+ * batching threads each turn whatever has queued up into a single Transaction, so the whole batch costs one
+ * vote and one commit round instead of one of each per write. While rounds are running the next batches keep
+ * filling up, so the busier the coordinator is, the bigger its batches get. Batches on different threads run
+ * their rounds at the same time; the Round orders batches that share a key.
+ *
+ * Writes to the same key within a batch collapse to the last one. If the servers can't agree on a batch,
+ * its writes are retried one at a time so that one bad key doesn't fail everybody else's writes. That is only
+ * done for a batch the Round reports as aborted, which means nothing of it was committed; a round that throws
+ * may have committed its batch, so its writes are failed rather than run again. A batch that
+ * holds a traced write is traced under that write's id; a traced write's time in the queue is its own span.
+ *
+ * Conditional writes (compare-and-set, increment, put-if-absent) are batched like the rest. Once the servers
+ * have agreed on the batch's keys' values, the batch's writes are decided one after the other in the order
+ * they were queued, each against the values the ones before it left, and only what they leave behind is
+ * committed. So a hundred increments of one key cost one round and none of them is lost.
+ */
+public class WriteBatcher implements AutoCloseable {
+
+    /**
+     * Runs one vote and commit round for a batch
+     */
+    public interface Round {
+        /**
+         * @param keys the keys the batch's writes touch, each once
+         * @param traceId trace id of the round, or 0 if it isn't traced
+         * @param resolver turns the values the servers agreed on into the batch's writes
+         * @return true if the batch was committed, false if it was aborted before any of it was committed
+         */
+        boolean run(String[] keys, long traceId, Resolver resolver);
+    }
+
+    /**
+     * Decides what a batch writes, once the servers have agreed on its keys' values
+     */
+    public interface Resolver {
+        /**
+         * @param current each key's value, CompactStringIntMap.MISSING if it isn't in the map, in the order of
+         *                the round's keys
+         * @return the PUTs and DELETEs to commit, none if every write's condition failed
+         */
+        Transaction resolve(int[] current);
+    }
+
+    private static class Write {
+        final byte op;
+        final String key;
+        final int value;
+        final int expected;
+        final long traceId;
+        final long queuedAt;
+        final CompletableFuture<Result> done = new CompletableFuture<>();
+        Result outcome; // decided when its round's votes are in, and kept if the round commits
+
+        Write(byte op, String key, int value, int expected, long traceId) {
+            this.op = op;
+            this.key = key;
+            this.value = value;
+            this.expected = expected;
+            this.traceId = traceId;
+            this.queuedAt = Tracer.start(traceId);
+        }
+    }
+
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final Round round;
+    private final int maxBatch;
+    private final long windowNanos;
+    private final Thread[] workers;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * @param round runs the vote and commit for each batch
+     * @param maxBatch most writes in one batch
+     * @param windowMicros how long to wait for more writes after the first one of a batch arrives; with 0 a
+     *                     batch is just whatever queued up while the previous round ran
+     * @param threads number of batching threads, i.e. how many batches can be in their rounds at once
+     * @param name prefix for the batching threads' names
+     */
+    public WriteBatcher(Round round, int maxBatch, long windowMicros, int threads, String name) {
+        this.round = round;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.workers = new Thread[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::run, name + "-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a write and waits until the batch it ends up in has been committed or aborted
+     * @param op WriteAheadLog.PUT or WriteAheadLog.DELETE
+     * @param key employee name
+     * @param value employee salary, ignored for DELETE
+     * @return true if the write was committed on the servers
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean submit(byte op, String key, int value) throws InterruptedException {
+        return submit(op, key, value, 0);
+    }
+
+    /**
+     * Queues a traced write and waits until the batch it ends up in has been committed or aborted
+     * @param op WriteAheadLog.PUT or WriteAheadLog.DELETE
+     * @param key employee name
+     * @param value employee salary, ignored for DELETE
+     * @param traceId the write's trace id, or 0 if it isn't traced
+     * @return true if the write was committed on the servers
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean submit(byte op, String key, int value, long traceId) throws InterruptedException {
+        return await(new Write(op, key, value, 0, traceId)).isSuccessful();
+    }
+
+    /**
+     * Queues a conditional write and waits until the batch it ends up in has been committed or aborted
+     * @param op Command.COMPARE_AND_SET, Command.INCREMENT or Command.PUT_IF_ABSENT
+     * @param key employee name
+     * @param expected the value a COMPARE_AND_SET expects, ignored otherwise
+     * @param value the value to set, or for INCREMENT the amount to add
+     * @param traceId the write's trace id, or 0 if it isn't traced
+     * @return OK with the key's new value; CONDITION_FAILED or NOT_FOUND, with the key's value, if the
+     *         condition didn't hold; or ABORTED
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Result submitConditional(byte op, String key, int expected, int value, long traceId) throws InterruptedException {
+        return await(new Write(op, key, value, expected, traceId));
+    }
+
+    private Result await(Write write) throws InterruptedException {
+        if (closed) {
+            return new Result(Result.Status.ABORTED, 0);
+        }
+        queue.add(write);
+        if (closed) {
+            write.done.complete(new Result(Result.Status.ABORTED, 0)); // the batcher may already be gone
+        }
+        try {
+            return write.done.get();
+        } catch (ExecutionException e) {
+            System.out.println("ExecutionException! " + e.getCause());
+            return new Result(Result.Status.ABORTED, 0);
+        }
+    }
+
+    /**
+     * Returns the number of rounds run so far
+     * @return number of batches
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * Returns the number of writes that went through the batcher
+     * @return number of writes
+     */
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public String toString() {
+        long count = batches.sum();
+        return String.format("batches=%d writes=%d avg batch=%.1f", count, writes.sum(), count == 0 ? 0.0 : (double) writes.sum() / count);
+    }
+
+    private void run() {
+        List<Write> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatch) {
+                    Write next = windowNanos == 0 ? queue.poll() : queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                commit(batch);
+            } catch (InterruptedException e) {
+                for (Write write : batch) {
+                    write.done.complete(new Result(Result.Status.ABORTED, 0));
+                }
+                break;
+            } catch (RuntimeException e) {
+                // a round that blew up fails its own writes but must not stop the batcher
+                for (Write write : batch) {
+                    write.done.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+        Write write;
+        while ((write = queue.poll()) != null) {
+            write.done.complete(new Result(Result.Status.ABORTED, 0));
+        }
+    }
+
+    private void commit(List<Write> batch) {
+        batches.increment();
+        writes.add(batch.size());
+        long traceId = 0;
+        for (Write write : batch) {
+            if (write.traceId != 0) {
+                Tracer.span(write.traceId, "coordinator queue", write.queuedAt, "batch of " + batch.size());
+                if (traceId == 0) {
+                    traceId = write.traceId;
+                }
+            }
+        }
+        boolean committed = run(batch, traceId);
+        if (committed || batch.size() == 1) {
+            for (Write write : batch) {
+                write.done.complete(committed ? write.outcome : new Result(Result.Status.ABORTED, 0));
+            }
+            return;
+        }
+        for (Write write : batch) {
+            batches.increment();
+            boolean alone = run(Collections.singletonList(write), write.traceId);
+            write.done.complete(alone ? write.outcome : new Result(Result.Status.ABORTED, 0));
+        }
+    }
+
+    /**
+     * Runs one round for some writes: decides each of them in order against the agreed values and the writes
+     * before it, and commits the value each key is left with
+     */
+    private boolean run(List<Write> writes, long traceId) {
+        Map<String, Integer> slots = new LinkedHashMap<>(); // key -> its place in the round's keys
+        for (Write write : writes) {
+            slots.putIfAbsent(write.key, slots.size());
+        }
+        String[] keys = slots.keySet().toArray(new String[0]);
+        return round.run(keys, traceId, current -> {
+            int[] values = current.clone();
+            boolean[] written = new boolean[keys.length];
+            for (Write write : writes) {
+                int slot = slots.get(write.key);
+                write.outcome = decide(write, values[slot]);
+                if (write.outcome.isSuccessful()) {
+                    values[slot] = write.op == WriteAheadLog.DELETE ? CompactStringIntMap.MISSING : write.outcome.getValue();
+                    written[slot] = true;
+                }
+            }
+            Transaction transaction = new Transaction().setTraceId(traceId);
+            for (int i = 0; i < keys.length; i++) {
+                if (written[i]) {
+                    if (values[i] == CompactStringIntMap.MISSING) {
+                        transaction.delete(keys[i]);
+                    } else {
+                        transaction.put(keys[i], values[i]);
+                    }
+                }
+            }
+            return transaction;
+        });
+    }
+
+    /**
+     * Decides one write against its key's value
+     * @return OK with the value the write leaves, or why a conditional write doesn't go ahead
+     */
+    private static Result decide(Write write, int current) {
+        switch (write.op) {
+            case Command.COMPARE_AND_SET:
+                if (current == CompactStringIntMap.MISSING) {
+                    return new Result(Result.Status.NOT_FOUND, 0);
+                }
+                return current == write.expected ? new Result(Result.Status.OK, write.value) : new Result(Result.Status.CONDITION_FAILED, current);
+            case Command.INCREMENT:
+                if (current == CompactStringIntMap.MISSING) {
+                    return new Result(Result.Status.NOT_FOUND, 0);
+                }
+                long sum = (long) current + write.value;
+                return sum < 0 || sum > Integer.MAX_VALUE ? new Result(Result.Status.CONDITION_FAILED, current) : new Result(Result.Status.OK, (int) sum);
+            case Command.PUT_IF_ABSENT:
+                return current == CompactStringIntMap.MISSING ? new Result(Result.Status.OK, write.value) : new Result(Result.Status.CONDITION_FAILED, current);
+            default:
+                return new Result(Result.Status.OK, write.op == WriteAheadLog.PUT ? write.value : 0); // PUT and DELETE always go ahead
+        }
+    }
+
+    /**
+     * Stops the batching threads. Writes still queued are reported as not committed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+}